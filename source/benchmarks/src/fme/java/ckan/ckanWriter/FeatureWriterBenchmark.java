@@ -0,0 +1,190 @@
+package ckan.ckanWriter;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import COM.safe.fmeobjects.FMEException;
+import COM.safe.fmeobjects.IFMEFeature;
+import COM.safe.fmeobjects.IFMELogFile;
+import COM.safe.fmeobjects.IFMEMappingFile;
+
+import ckan.CKANclient.SampleRows;
+
+/**
+ * Measures FeatureWriter.writeFeature() writing wide features to the CSV
+ * file, the path every feature takes when the DataStore is not used. Run
+ * with -prof gc to see the allocation per feature.
+ *
+ * The FME objects are stood in for by proxies that answer the few calls
+ * the writer makes. The writer is aborted after each iteration, so the CSV
+ * file is never uploaded; the CKAN domain refuses connections so that
+ * opening the writer does not wait on a network.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FeatureWriterBenchmark
+{
+	@Param({ "10", "100" })
+	public int columns;
+
+	private IFMEFeature[] features_;
+	private FeatureWriter writer_;
+	private File directory_;
+	private int next_ = 0;
+
+	@Setup(Level.Trial)
+	public void setUpFeatures()
+	{
+		List<String> names = SampleRows.names(columns);
+		features_ = new IFMEFeature[64];
+		for (int i = 0; i < features_.length; i++)
+		{
+			String[] values = SampleRows.row(i, columns);
+			Map<String, String> attributes = new HashMap<String, String>();
+			for (int c = 0; c < columns; c++)
+			{
+				if (values[c] != null)
+				{
+					attributes.put(names.get(c), values[c]);
+				}
+			}
+			// FME features carry attributes the writer does not write as well
+			attributes.put("fme_type", "fme_no_geom");
+			attributes.put("fme_feature_type", "Benchmark");
+			features_[i] = feature(attributes);
+		}
+	}
+
+	@Setup(Level.Iteration)
+	public void openWriter() throws Exception
+	{
+		directory_ = File.createTempFile("ckan-benchmark", "");
+		directory_.delete();
+		directory_.mkdirs();
+
+		Map<String, String> settings = new HashMap<String, String>();
+		settings.put("_DESTINATION_DOMAIN", "http://127.0.0.1:1");
+		settings.put("_DATASTORE", "NO");
+
+		writer_ = new FeatureWriter("CKAN_DATASTORE", "CKAN_DATASTORE_1");
+		writer_.init(mappingFile(settings), logFile(), null, null);
+
+		ArrayList<String> parameters = new ArrayList<String>();
+		parameters.add(new File(directory_, "benchmark").getPath());
+		parameters.add("");
+		parameters.add("");
+		parameters.add("");
+		List<String> names = SampleRows.names(columns);
+		for (int c = 0; c < columns; c++)
+		{
+			parameters.add(names.get(c));
+			parameters.add(c % 8 == 0 || c % 8 == 6 ? "char(200)" : "number(20,5)");
+		}
+		writer_.openAdvance(parameters);
+	}
+
+	@TearDown(Level.Iteration)
+	public void abortWriter() throws Exception
+	{
+		writer_.abortWriter();
+		for (File file : directory_.listFiles())
+		{
+			file.delete();
+		}
+		directory_.delete();
+	}
+
+	@Benchmark
+	public void writeFeature() throws Exception
+	{
+		writer_.writeFeature(features_[next_]);
+		next_ = (next_ + 1) & (features_.length - 1);
+	}
+
+	private static IFMEFeature feature(final Map<String, String> attributes)
+	{
+		return proxy(IFMEFeature.class, new InvocationHandler()
+		{
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+			{
+				if (method.getName().equals("getStringAttribute"))
+				{
+					String value = attributes.get(args[0]);
+					if (value == null)
+					{
+						throw new FMEException("No attribute " + args[0]);
+					}
+					return value;
+				}
+				if (method.getName().equals("getFeatureType"))
+				{
+					return "Benchmark";
+				}
+				throw new UnsupportedOperationException(method.getName());
+			}
+		});
+	}
+
+	private static IFMEMappingFile mappingFile(final Map<String, String> settings)
+	{
+		return proxy(IFMEMappingFile.class, new InvocationHandler()
+		{
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+			{
+				if (method.getName().equals("fetchString"))
+				{
+					String value = settings.get(args[0]);
+					if (value == null)
+					{
+						// A setting left out, which the writer uses its default for
+						throw new FMEException("No value for " + args[0]);
+					}
+					return value;
+				}
+				throw new UnsupportedOperationException(method.getName());
+			}
+		});
+	}
+
+	private static IFMELogFile logFile()
+	{
+		return proxy(IFMELogFile.class, new InvocationHandler()
+		{
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+			{
+				// The log is not part of what is measured
+				return null;
+			}
+		});
+	}
+
+	private static <T> T proxy(Class<T> type, InvocationHandler handler)
+	{
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, handler));
+	}
+}
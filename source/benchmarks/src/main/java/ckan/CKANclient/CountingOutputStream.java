@@ -0,0 +1,24 @@
+package ckan.CKANclient;
+
+import java.io.OutputStream;
+
+/**
+ * An output stream that only counts the bytes written to it, so that the
+ * benchmarks measure encoding rather than disk or network writes.
+ */
+public final class CountingOutputStream extends OutputStream {
+
+	private long _count = 0;
+
+	public void write(int b) {
+		_count++;
+	}
+
+	public void write(byte[] b, int off, int len) {
+		_count += len;
+	}
+
+	public long getCount() {
+		return _count;
+	}
+}
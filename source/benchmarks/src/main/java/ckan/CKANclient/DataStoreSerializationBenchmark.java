@@ -0,0 +1,69 @@
+package ckan.CKANclient;
+
+import com.google.gson.Gson;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the two ways a batch of DataStore records is turned into a
+ * request body: streamed from a RecordBatch by DataStoreEntity, as the
+ * writer does now, and built as one string by a new reflective Gson from
+ * a list of record maps, as it did before.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DataStoreSerializationBenchmark {
+
+	@Param({ "1000", "5000" })
+	public int rows;
+
+	@Param({ "20" })
+	public int columns;
+
+	private DataStore _streamed;
+	private DataStore _reflected;
+
+	@Setup
+	public void setUp() {
+		_streamed = new DataStore();
+		_streamed.setResource_id("benchmark");
+		_streamed.setMethod("upsert");
+		_streamed.setForce("True");
+		_streamed.setRecordBatch(SampleRows.batch(rows, columns));
+
+		_reflected = new DataStore();
+		_reflected.setResource_id("benchmark");
+		_reflected.setMethod("upsert");
+		_reflected.setForce("True");
+		_reflected.setRecords(SampleRows.records(rows, columns));
+	}
+
+	@Benchmark
+	public long streamRecordBatch() throws IOException {
+		CountingOutputStream out = new CountingOutputStream();
+		new DataStoreEntity(_streamed, JsonAdapters.GSON).writeTo(out);
+		return out.getCount();
+	}
+
+	@Benchmark
+	public int reflectiveGsonString() throws IOException {
+		return new Gson().toJson(_reflected).getBytes("UTF-8").length;
+	}
+}
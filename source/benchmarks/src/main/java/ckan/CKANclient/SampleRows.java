@@ -0,0 +1,99 @@
+package ckan.CKANclient;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Builds repeatable rows of mixed types, as FME hands them to the writer,
+ * for the benchmarks.
+ */
+public final class SampleRows {
+
+	private static final RecordBatch.Type[] TYPES = {
+		RecordBatch.Type.TEXT, RecordBatch.Type.INTEGER, RecordBatch.Type.FLOAT, RecordBatch.Type.BOOLEAN,
+		RecordBatch.Type.TIMESTAMP, RecordBatch.Type.NUMERIC, RecordBatch.Type.TEXT, RecordBatch.Type.DATE
+	};
+
+	private SampleRows() {
+	}
+
+	public static List<String> names(int columns) {
+		List<String> names = new ArrayList<String>(columns);
+		for (int c = 0; c < columns; c++) {
+			names.add("column_" + c);
+		}
+		return names;
+	}
+
+	public static List<RecordBatch.Type> types(int columns) {
+		List<RecordBatch.Type> types = new ArrayList<RecordBatch.Type>(columns);
+		for (int c = 0; c < columns; c++) {
+			types.add(TYPES[c % TYPES.length]);
+		}
+		return types;
+	}
+
+	/**
+	 * Returns the text of every value of a row, with a null in every
+	 * tenth column and a comma or quote in some of the text.
+	 */
+	public static String[] row(int row, int columns) {
+		String[] values = new String[columns];
+		for (int c = 0; c < columns; c++) {
+			if ((row + c) % 10 == 9) {
+				continue;
+			}
+			switch (TYPES[c % TYPES.length]) {
+			case INTEGER:
+				values[c] = Integer.toString(row * 31 + c);
+				break;
+			case FLOAT:
+				values[c] = (row % 1000) + "." + (c % 10) + "5";
+				break;
+			case BOOLEAN:
+				values[c] = row % 2 == 0 ? "yes" : "no";
+				break;
+			case TIMESTAMP:
+				values[c] = "20160729" + String.format("%06d", row % 240000);
+				break;
+			case NUMERIC:
+				values[c] = "12345678901234567890." + (row % 100);
+				break;
+			case DATE:
+				values[c] = "201607" + String.format("%02d", 1 + row % 28);
+				break;
+			default:
+				values[c] = row % 7 == 0 ? "Street \"" + row + "\", Town" : "Feature " + row + " of column " + c;
+				break;
+			}
+		}
+		return values;
+	}
+
+	public static RecordBatch batch(int rows, int columns) {
+		RecordBatch batch = new RecordBatch(names(columns), types(columns), rows);
+		for (int r = 0; r < rows; r++) {
+			batch.add(row(r, columns));
+		}
+		return batch;
+	}
+
+	/**
+	 * Returns the rows as the records the writer built before RecordBatch,
+	 * one map of column names to text values per row.
+	 */
+	public static List<LinkedHashMap<String, Object>> records(int rows, int columns) {
+		List<String> names = names(columns);
+		List<LinkedHashMap<String, Object>> records = new ArrayList<LinkedHashMap<String, Object>>(rows);
+		for (int r = 0; r < rows; r++) {
+			String[] values = row(r, columns);
+			LinkedHashMap<String, Object> record = new LinkedHashMap<String, Object>();
+			for (int c = 0; c < columns; c++) {
+				record.put(names.get(c), values[c]);
+			}
+			records.add(record);
+		}
+		return records;
+	}
+}
@@ -0,0 +1,75 @@
+package ckan.ckanWriter;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ckan.CKANclient.CountingOutputStream;
+import ckan.CKANclient.RecordBatch;
+import ckan.CKANclient.SampleRows;
+
+/**
+ * Measures writing rows to the CSV file of a resource, with every tenth
+ * value empty and some text needing quotes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CsvEncoderBenchmark
+{
+	@Param({ "1000" })
+	public int rows;
+
+	@Param({ "20", "100" })
+	public int columns;
+
+	private String[][] rows_;
+	private boolean[] quote_;
+
+	@Setup
+	public void setUp()
+	{
+		rows_ = new String[rows][];
+		for (int r = 0; r < rows; r++)
+		{
+			rows_[r] = SampleRows.row(r, columns);
+		}
+		// Text columns are quoted, as writeSchemaFeature() sets them up
+		quote_ = new boolean[columns];
+		for (int c = 0; c < columns; c++)
+		{
+			quote_[c] = SampleRows.types(columns).get(c) == RecordBatch.Type.TEXT;
+		}
+	}
+
+	@Benchmark
+	public long writeRows() throws IOException
+	{
+		CountingOutputStream out = new CountingOutputStream();
+		CsvEncoder encoder = new CsvEncoder(out, "\r\n");
+		for (String[] row : rows_)
+		{
+			for (int c = 0; c < row.length; c++)
+			{
+				encoder.writeField(row[c], quote_[c]);
+			}
+			encoder.endRecord();
+		}
+		encoder.close();
+		return out.getCount();
+	}
+}
@@ -0,0 +1,19 @@
+package ckan.CKANclient;
+
+import java.util.Map;
+
+/**
+ * Represents the response of a CKAN action
+ *
+ * Every action answers with whether it succeeded, its result and, when it
+ * failed, the error details. Each class returned by an action declares its
+ * own Response subclass with the type of its result, which JsonAdapters
+ * reads and writes without reflection once it is registered there.
+ */
+public abstract class ActionResponse<T> {
+
+    public boolean success;
+    public T result;
+    // The error details of a failed action
+    public Map<String, Object> error;
+}
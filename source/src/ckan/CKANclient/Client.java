@@ -1,11 +1,21 @@
 package ckan.CKANclient;
 
-import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
 
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.entity.mime.HttpMultipartMode;
+import org.apache.http.entity.mime.MultipartEntity;
+import org.apache.http.entity.mime.content.StringBody;
+
+import java.io.File;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.HashMap;
 
@@ -20,6 +30,7 @@ import java.util.HashMap;
 public final class Client {
 
 	private Connection _connection = null;
+	private RetryPolicy _retryPolicy = RetryPolicy.DEFAULT;
 
 	/**
 	 * Constructs a new Client for making requests to a remote CKAN instance.
@@ -32,12 +43,20 @@ public final class Client {
 		this._connection.setApiKey(apikey);
 	}
 
+	/**
+	 * Sets how failed DataStore requests are retried.
+	 *
+	 * @param policy	The retry policy, or RetryPolicy.NONE to never retry
+	 */
+	public void setRetryPolicy(RetryPolicy policy) {
+		this._retryPolicy = policy;
+	}
+
 	/**
 	 * Loads a JSON string into a class of the specified type.
 	 */
 	protected <T> T LoadClass(Class<T> cls, String data) {
-		Gson gson = new Gson();
-		return gson.fromJson(data, cls);
+		return JsonAdapters.GSON.fromJson(data, cls);
 	}
 
 	/**
@@ -51,11 +70,26 @@ public final class Client {
 	 * @throws A CKANException containing the error messages contained in the provided JSON.
 	 */
 	private void HandleError(String json, String action) throws CKANException {
+		HashMap hm = LoadClass(HashMap.class, json);
+		HandleError(hm != null && hm.get("error") instanceof Map ? (Map<String, Object>) hm.get("error") : null, action);
+	}
+
+	/**
+	 * Handles error responses from CKAN whose error details have already
+	 * been read along with the rest of the response.
+	 *
+	 * @param m			The error details, or null if the response had none
+	 * @param action	The name of the action calling this for the primary error message.
+	 * @throws A CKANException containing the error messages.
+	 */
+	private void HandleError(Map<String, Object> m, String action) throws CKANException {
 
 		CKANException exception = new CKANException("Errors occured performing: " + action);
 
-		HashMap hm = LoadClass(HashMap.class, json);
-		Map<String, Object> m = (Map<String, Object>) hm.get("error");
+		if (m == null) {
+			// No response, or one without CKAN's error details
+			throw exception;
+		}
 		for (Map.Entry<String, Object> entry : m.entrySet()) {
 			if (entry.getKey().startsWith("_"))
 				continue;
@@ -64,6 +98,123 @@ public final class Client {
 		throw exception;
 	}
 
+	/**
+	 * Makes a POST request, retrying it while it fails in a way that may pass
+	 *
+	 * The request body is serialized once and the same bytes are resent on
+	 * every retry. When the policy gives up on a request that never got a
+	 * response an exception is thrown, otherwise the last response is
+	 * returned for the caller to check.
+	 *
+	 * @param path			The URL path to make the POST request to
+	 * @param data			The request body
+	 * @param maxRetries	The most times the request is sent again
+	 * @param action		The name of the action for error messages
+	 * @returns The contents of the last response
+	 * @throws A CKANException if no response was received
+	 */
+	private String PostWithRetry(String path, HttpEntity data, int maxRetries, String action) throws CKANException {
+		return Send(path, data, maxRetries, action, null).getBody();
+	}
+
+	/**
+	 * Makes a POST request like PostWithRetry(), reading the response into
+	 * the given class
+	 *
+	 * A successful response is read as it arrives from the connection, so
+	 * that the parts of it nothing uses, such as the records CKAN echoes
+	 * back from datastore_upsert, are skipped rather than held in memory.
+	 * An error response is read from its text, which is treated as an
+	 * error page when it is not JSON.
+	 *
+	 * @param path			The URL path to make the POST request to
+	 * @param data			The request body
+	 * @param maxRetries	The most times the request is sent again
+	 * @param action		The name of the action for error messages
+	 * @param cls			The class of the response
+	 * @returns The last response, or null if it was empty
+	 * @throws A CKANException if no response was received, or it was an error page
+	 */
+	private <T> T PostWithRetry(String path, HttpEntity data, int maxRetries, String action, Class<T> cls) throws CKANException {
+		Connection.Response response = Send(path, data, maxRetries, action, cls);
+		if (response.getResult() != null) {
+			return cls.cast(response.getResult());
+		}
+		return LoadResponse(cls, response.getBody(), action);
+	}
+
+	/**
+	 * Sends a POST request until it succeeds or the retry policy gives up.
+	 *
+	 * @returns The last response
+	 * @throws A CKANException if no response was received
+	 */
+	private Connection.Response Send(String path, HttpEntity data, int maxRetries, String action, Class<?> resultClass) throws CKANException {
+		RetryPolicy policy = this._retryPolicy;
+		if (maxRetries + 1 < policy.getMaxAttempts()) {
+			policy = policy.withMaxAttempts(maxRetries + 1);
+		}
+		HttpEntity body = this._connection.Prepare(data);
+		long start = System.currentTimeMillis();
+
+		for (int attempt = 1; ; attempt++) {
+			Connection.Response response = this._connection.Execute(path, body, resultClass);
+			if (response.getError() == null && response.getStatusCode() < 300) {
+				return response;
+			}
+			long delay = -1;
+			if (policy.isRetryable(response)) {
+				delay = policy.getDelay(attempt, System.currentTimeMillis() - start, response.getRetryAfterMs());
+			}
+			if (delay < 0) {
+				if (response.getError() != null) {
+					CKANException exception = new CKANException("Errors occured performing: " + action);
+					exception.addError(response.getError().toString());
+					throw exception;
+				}
+				return response;
+			}
+			this._connection.recordRetry(action, attempt, response, delay);
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new CKANException("Interrupted while retrying: " + action);
+			}
+		}
+	}
+
+	/**
+	 * Loads a response, treating a page that is not JSON, such as the error
+	 * page of a proxy, as an error.
+	 */
+	private <T> T LoadResponse(Class<T> cls, String json, String action) throws CKANException {
+		try {
+			return LoadClass(cls, json);
+		} catch (JsonSyntaxException jse) {
+			HandleHtmlError(json, action);
+			return null;
+		}
+	}
+
+	/**
+	 * Throws an exception unless the response reports success.
+	 */
+	private void CheckSuccess(String json, String action) throws CKANException {
+		Map<?, ?> hm = LoadResponse(Map.class, json, action);
+		if (hm == null || !Boolean.TRUE.equals(hm.get("success"))) {
+			// This will always throw an exception
+			HandleError(json, action);
+		}
+	}
+
+	/**
+	 * Builds a JSON request body.
+	 */
+	private static HttpEntity JsonEntity(Map<String, Object> data) {
+		return new StringEntity(JsonAdapters.GSON.toJson(data), ContentType.APPLICATION_JSON);
+	}
+
 	/**
 	 * Handles html error responses from CKAN
 	 */
@@ -123,8 +274,7 @@ public final class Client {
 	 * @throws A CKANException if the request fails
 	 */
 	public Dataset createDataset(Dataset dataset) throws CKANException {
-		Gson gson = new Gson();
-		String data = gson.toJson(dataset);
+		String data = JsonAdapters.GSON.toJson(dataset);
 		System.out.println(data);
 		String returned_json = this._connection.Post("/api/action/package_create", data);
 		System.out.println(returned_json);
@@ -152,9 +302,9 @@ public final class Client {
 		System.out.println(returned_json);
 		if (returned_json.lastIndexOf("<html>", 0) != 0) {
 			Resource.Response r = LoadClass(Resource.Response.class, returned_json);
-			if (!r.success) {
+			if (r == null || !r.success) {
 				// This will always throw an exception
-				HandleError(returned_json, "createResource");
+				HandleError(r == null ? null : r.error, "createResource");
 			}
 			return r.result;
 		}
@@ -176,15 +326,13 @@ public final class Client {
 	 * @throws A CKANException if the request fails
 	 */
 	public Resource urlCreateResource(Resource resource) throws CKANException {
-		Gson gson = new Gson();
-		String data = gson.toJson(resource);
+		String data = JsonAdapters.GSON.toJson(resource);
 		//System.out.println(data);
 		String returned_json = this._connection.Post("/api/action/resource_create", data);
-		System.out.println(returned_json);
 		Resource.Response r = LoadClass(Resource.Response.class, returned_json);
-		if (!r.success) {
+		if (r == null || !r.success) {
 			// This will always throw an exception
-			HandleError(returned_json, "createResource");
+			HandleError(r == null ? null : r.error, "createResource");
 		}
 		return r.result;
 	}
@@ -205,9 +353,9 @@ public final class Client {
 		System.out.println(returned_json);
 		if (returned_json.lastIndexOf("<html>", 0) != 0) {
 			Resource.Response r = LoadClass(Resource.Response.class, returned_json);
-			if (!r.success) {
+			if (r == null || !r.success) {
 				// This will always throw an exception
-				HandleError(returned_json, "updateResource");
+				HandleError(r == null ? null : r.error, "updateResource");
 			}
 			return r.result;
 		}
@@ -217,6 +365,135 @@ public final class Client {
 		}
 	}
 
+	/**
+	 * Updates a resource on the server without uploading a file
+	 *
+	 * Takes the provided resource and sends it to the server to perform an
+	 * update of its metadata.
+	 *
+	 * @param resource	A resource instance with its id set
+	 * @returns The Resource as it now exists
+	 * @throws A CKANException if the request fails
+	 */
+	public Resource urlUpdateResource(Resource resource) throws CKANException {
+		String data = JsonAdapters.GSON.toJson(resource);
+		String returned_json = this._connection.Post("/api/action/resource_update", data);
+		Resource.Response r = LoadClass(Resource.Response.class, returned_json);
+		if (r == null || !r.success) {
+			// This will always throw an exception
+			HandleError(r == null ? null : r.error, "updateResource");
+		}
+		return r.result;
+	}
+
+	/**
+	 * Starts uploading the file of a resource in parts
+	 *
+	 * Any upload of the resource already in progress is replaced. Needs the
+	 * cloudstorage extension on the server.
+	 *
+	 * @param resourceId	The ID of the resource the file belongs to
+	 * @param name		The file name
+	 * @param size		The size of the whole file in bytes
+	 * @returns The upload, whose id is passed with every part
+	 * @throws A CKANException if the request fails
+	 */
+	public MultipartUpload initiateMultipartUpload(String resourceId, String name, long size) throws CKANException {
+		Map<String, Object> data = new LinkedHashMap<String, Object>();
+		data.put("id", resourceId);
+		data.put("name", name);
+		data.put("size", size);
+		String returned_json = PostWithRetry("/api/action/cloudstorage_initiate_multipart", JsonEntity(data),
+				this._retryPolicy.getMaxAttempts(), "initiateMultipartUpload");
+		MultipartUpload.Response r = LoadResponse(MultipartUpload.Response.class, returned_json, "initiateMultipartUpload");
+		if (r == null || !r.success || r.result == null) {
+			// This will always throw an exception
+			HandleError(returned_json, "initiateMultipartUpload");
+		}
+		return r.result;
+	}
+
+	/**
+	 * Retrieves the upload in progress for a resource
+	 *
+	 * @param resourceId	The ID of the resource
+	 * @returns The upload with the number of parts received, or null if none
+	 * @throws A CKANException if the request fails
+	 */
+	public MultipartUpload checkMultipartUpload(String resourceId) throws CKANException {
+		Map<String, Object> data = new LinkedHashMap<String, Object>();
+		data.put("id", resourceId);
+		String returned_json = PostWithRetry("/api/action/cloudstorage_check_multipart", JsonEntity(data),
+				this._retryPolicy.getMaxAttempts(), "checkMultipartUpload");
+		MultipartUpload.CheckResponse r = LoadResponse(MultipartUpload.CheckResponse.class, returned_json, "checkMultipartUpload");
+		if (r == null || !r.success) {
+			// This will always throw an exception
+			HandleError(returned_json, "checkMultipartUpload");
+		}
+		return r.result == null ? null : r.result.upload;
+	}
+
+	/**
+	 * Uploads one part of a file
+	 *
+	 * The bytes are read straight from the file as they are sent. Sending a
+	 * part number again replaces the part sent before.
+	 *
+	 * @param uploadId	The id of the upload returned by initiateMultipartUpload()
+	 * @param partNumber	The number of the part, counting from 1
+	 * @param file		The file being uploaded
+	 * @param offset		Where the part starts in the file
+	 * @param length		The size of the part in bytes
+	 * @throws A CKANException if the request fails
+	 */
+	public void uploadMultipartPart(String uploadId, int partNumber, File file, long offset, long length) throws CKANException {
+		MultipartEntity data = new MultipartEntity(HttpMultipartMode.STRICT);
+		try {
+			data.addPart("uploadId", new StringBody(uploadId));
+			data.addPart("partNumber", new StringBody(String.valueOf(partNumber)));
+		} catch (UnsupportedEncodingException uee) {
+			throw new CKANException(uee.toString());
+		}
+		data.addPart("upload", new FilePartBody(file, offset, length));
+		String returned_json = PostWithRetry("/api/action/cloudstorage_upload_multipart", data,
+				this._retryPolicy.getMaxAttempts(), "uploadMultipartPart");
+		CheckSuccess(returned_json, "uploadMultipartPart");
+	}
+
+	/**
+	 * Finishes uploading a file in parts
+	 *
+	 * The server joins the parts received into the file of the resource.
+	 *
+	 * @param uploadId	The id of the upload returned by initiateMultipartUpload()
+	 * @param resourceId	The ID of the resource the file belongs to
+	 * @throws A CKANException if the request fails
+	 */
+	public void finishMultipartUpload(String uploadId, String resourceId) throws CKANException {
+		Map<String, Object> data = new LinkedHashMap<String, Object>();
+		data.put("uploadId", uploadId);
+		data.put("id", resourceId);
+		String returned_json = PostWithRetry("/api/action/cloudstorage_finish_multipart", JsonEntity(data),
+				this._retryPolicy.getMaxAttempts(), "finishMultipartUpload");
+		CheckSuccess(returned_json, "finishMultipartUpload");
+	}
+
+	/**
+	 * Abandons the upload in progress for a resource
+	 *
+	 * The parts received so far are deleted from the server.
+	 *
+	 * @param resourceId	The ID of the resource
+	 * @throws A CKANException if the request fails
+	 */
+	public void abortMultipartUpload(String resourceId) throws CKANException {
+		Map<String, Object> data = new LinkedHashMap<String, Object>();
+		data.put("id", resourceId);
+		String returned_json = PostWithRetry("/api/action/cloudstorage_abort_multipart", JsonEntity(data),
+				this._retryPolicy.getMaxAttempts(), "abortMultipartUpload");
+		CheckSuccess(returned_json, "abortMultipartUpload");
+	}
+
 	/**
 	 * Retrieves a group
 	 *
@@ -263,8 +540,7 @@ public final class Client {
 	 * @throws A CKANException if the request fails
 	 */
 	public Group createGroup(Group group) throws CKANException {
-		Gson gson = new Gson();
-		String data = gson.toJson(group);
+		String data = JsonAdapters.GSON.toJson(group);
 		String returned_json = this._connection.Post("/api/action/package_create", data);
 		Group.Response r = LoadClass(Group.Response.class, returned_json);
 		if (!r.success) {
@@ -298,41 +574,20 @@ public final class Client {
 	 * Creates a datastore table on the server
 	 *
 	 * Takes the provided datastore table and sends it to the server to perform an
-	 * create, and then returns the newly created datastore table.
+	 * create, and then returns the newly created datastore table. The records
+	 * are streamed to the server rather than built up as one JSON string.
 	 *
 	 * @param datastore	A datastore table instance
+	 * @param attemptNum	The most times the request is retried after failing
 	 * @returns The datastore table as it now exists
 	 * @throws A CKANException if the request fails
 	 */
 	public DataStore createDataStore(DataStore datastore, int attemptNum) throws CKANException {
-		Gson gson = new Gson();
-		String data = gson.toJson(datastore);
-		String returned_json = this._connection.Post("/api/action/datastore_create", data);
-		DataStore.Response r = LoadClass(DataStore.Response.class, returned_json);
-		if (!r.success) {
-			if (attemptNum > 0){
-				attemptNum = attemptNum-1;
-				// Sleep awhile before trying again
-				try {
-					Thread.sleep(2000);
-				} catch (InterruptedException e) {
-					System.out.println( e.toString() );
-				}
-				HashMap hm = LoadClass(HashMap.class, returned_json);
-				Map<String, Object> m = (Map<String, Object>) hm.get("error");
-				String errorStatement = "";
-				for (Map.Entry<String, Object> entry : m.entrySet()) {
-					if (entry.getKey().startsWith("_"))
-						continue;
-					errorStatement += entry.getValue() + " - " + entry.getKey();
-				}
-				System.out.println(errorStatement);
-				createDataStore(datastore, attemptNum);
-			}
-			else {
-				// This will always throw an exception
-				HandleError(returned_json, "createDataStore");
-			}
+		DataStoreEntity data = new DataStoreEntity(datastore, JsonAdapters.GSON);
+		DataStore.Response r = PostWithRetry("/api/action/datastore_create", data, attemptNum, "createDataStore", DataStore.Response.class);
+		if (r == null || !r.success) {
+			// This will always throw an exception
+			HandleError(r == null ? null : r.error, "createDataStore");
 		}
 		return r.result;
 	}
@@ -341,43 +596,112 @@ public final class Client {
 	 * Upserts to a datastore table on the server
 	 *
 	 * Takes the provided datastore table and sends it to the server to perform an
-	 * upsert, and then returns the newly updated datastore table.
+	 * upsert, and then returns the newly updated datastore table. The records
+	 * are streamed to the server rather than built up as one JSON string.
 	 *
 	 * @param datastore	A datastore table instance
+	 * @param attemptNum	The most times the request is retried after failing
 	 * @returns The DataStore as it now exists
 	 * @throws A CKANException if the request fails
 	 */
 	public DataStore upsertDataStore(DataStore datastore, int attemptNum) throws CKANException {
-		Gson gson = new Gson();
-		String data = gson.toJson(datastore);
-		String returned_json = this._connection.Post("/api/action/datastore_upsert", data);
-		DataStore.Response r = LoadClass(DataStore.Response.class, returned_json);
-		if (!r.success) {
-			if (attemptNum > 0){
-				attemptNum = attemptNum-1;
-				// Sleep awhile before trying again
-				try {
-					Thread.sleep(2000);
-				} catch (InterruptedException e) {
-					System.out.println( e.toString() );
-				}
-				HashMap hm = LoadClass(HashMap.class, returned_json);
-				Map<String, Object> m = (Map<String, Object>) hm.get("error");
-				String errorStatement = "";
-				for (Map.Entry<String, Object> entry : m.entrySet()) {
-					if (entry.getKey().startsWith("_"))
-						continue;
-					errorStatement += entry.getValue() + " - " + entry.getKey();
+		DataStoreEntity data = new DataStoreEntity(datastore, JsonAdapters.GSON);
+		DataStore.Response r = PostWithRetry("/api/action/datastore_upsert", data, attemptNum, "upsertDataStore", DataStore.Response.class);
+		if (r == null || !r.success) {
+			// This will always throw an exception
+			HandleError(r == null ? null : r.error, "upsertDataStore");
+		}
+		return r.result;
+	}
+
+	/**
+	 * Deletes records from a datastore table on the server
+	 *
+	 * Deletes the records of the provided datastore table that match its
+	 * filters. Without filters the whole table would be deleted, so that
+	 * is refused here.
+	 *
+	 * @param datastore	A datastore table instance with resource_id and filters set
+	 * @throws A CKANException if the request fails
+	 */
+	public void deleteDataStoreRecords(DataStore datastore) throws CKANException {
+		if (datastore.getFilters() == null || datastore.getFilters().isEmpty()) {
+			throw new CKANException("Refusing to delete records without filters");
+		}
+		DataStoreEntity data = new DataStoreEntity(datastore, JsonAdapters.GSON);
+		DataStore.Response r = PostWithRetry("/api/action/datastore_delete", data, this._retryPolicy.getMaxAttempts(), "deleteDataStoreRecords", DataStore.Response.class);
+		if (r == null || !r.success) {
+			// This will always throw an exception
+			HandleError(r == null ? null : r.error, "deleteDataStoreRecords");
+		}
+	}
+
+	/**
+	 * Finds the resource a datastore alias reads from
+	 *
+	 * Searches the _table_metadata table, where CKAN lists every datastore
+	 * table and alias, for the alias with the provided name.
+	 *
+	 * @param alias		The name of the alias
+	 * @returns The ID of the resource behind the alias, or an empty string if there is no such alias
+	 * @throws A CKANException if the request fails
+	 */
+	public String findAliasResourceId(String alias) throws CKANException {
+		Map<String, Object> filters = new LinkedHashMap<String, Object>();
+		filters.put("name", alias);
+		Map<String, Object> search = new LinkedHashMap<String, Object>();
+		search.put("resource_id", "_table_metadata");
+		search.put("filters", filters);
+		String returned_json = this._connection.Post("/api/action/datastore_search", JsonAdapters.GSON.toJson(search));
+		DataStore.SearchResponse r = LoadClass(DataStore.SearchResponse.class, returned_json);
+		if (r == null || !r.success) {
+			// This will always throw an exception
+			HandleError(r == null ? null : r.error, "findAliasResourceId");
+		}
+		if (r.result != null && r.result.records != null) {
+			for (Map<String, Object> record : r.result.records) {
+				// Tables are listed too, with no alias_of
+				if (record.get("alias_of") != null) {
+					return record.get("alias_of").toString();
 				}
-				System.out.println(errorStatement);
-				upsertDataStore(datastore, attemptNum);
-			}
-			else {
-				// This will always throw an exception
-				HandleError(returned_json, "upsertDataStore");
 			}
 		}
-		return r.result;
+		return "";
 	}
-	
+
+	/**
+	 * Deletes a datastore table
+	 *
+	 * Deletes the whole datastore table of the resource with the provided
+	 * ID, along with its aliases. The resource itself is kept.
+	 *
+	 * @param id		The ID of the resource whose datastore table is deleted
+	 * @throws A CKANException if the request fails
+	 */
+	public void deleteDataStore(String id) throws CKANException {
+		String returned_json = this._connection.Post("/api/action/datastore_delete", "{\"resource_id\":\"" + id + "\",\"force\":\"True\"}");
+		DataStore.Response r = LoadClass(DataStore.Response.class, returned_json);
+		if (r == null || !r.success) {
+			// This will always throw an exception
+			HandleError(r == null ? null : r.error, "deleteDataStore");
+		}
+	}
+
+	/**
+	 * Deletes a resource
+	 *
+	 * Deletes the resource specified with the provided ID
+	 *
+	 * @param id		The ID of the resource to delete
+	 * @throws A CKANException if the request fails
+	 */
+	public void deleteResource(String id) throws CKANException {
+		String returned_json = this._connection.Post("/api/action/resource_delete", "{\"id\":\"" + id + "\"}");
+		Resource.Response r = LoadClass(Resource.Response.class, returned_json);
+		if (r == null || !r.success) {
+			// This will always throw an exception
+			HandleError(r == null ? null : r.error, "deleteResource");
+		}
+	}
+
 }
@@ -2,11 +2,21 @@ package ckan.CKANclient;
 
 import java.net.URL;
 import java.net.MalformedURLException;
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.File;
 import java.io.IOException;
-
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
@@ -16,6 +26,14 @@ import org.apache.http.entity.mime.MultipartEntity;
 import org.apache.http.entity.mime.content.FileBody;
 import org.apache.http.entity.mime.content.StringBody;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.util.EntityUtils;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.MalformedJsonException;
 
 /**
  * Connection holds the connection details for this session
@@ -26,9 +44,41 @@ import org.apache.http.impl.client.DefaultHttpClient;
  */
 public final class Connection {
 
+	/**
+	 * Default number of pooled connections kept open to a single CKAN host.
+	 */
+	public static final int DEFAULT_MAX_PER_ROUTE = 4;
+
+	/**
+	 * Default number of pooled connections kept open in total.
+	 */
+	public static final int DEFAULT_MAX_TOTAL = 20;
+
+	// Pooled connections idle for longer than this are closed before the
+	// next request instead of being reused, since servers drop them anyway.
+	private static final long IDLE_TIMEOUT_MS = 30000;
+
+	// The largest serialized or compressed body kept in memory for retries.
+	// Each upload thread holds one while its request is being retried.
+	private static final int MAX_REPLAY_BYTES = 16 * 1024 * 1024;
+
+	// Shared HTTP clients, keyed by host and port, so that every Connection
+	// to the same CKAN instance reuses the same keep-alive connections.
+	private static final Map<String, SharedClient> _clients = new HashMap<String, SharedClient>();
+
 	private String m_host;
 	private int m_port;
+	private String _basePath = "";
 	private String _apikey = null;
+	private int _gzipLevel = 0;
+	private SharedClient _client = null;
+
+	// Metrics of the requests made through this Connection, with the time
+	// from sending a request to reading its response in microseconds
+	private final LatencyHistogram _latency = new LatencyHistogram();
+	private final AtomicLong _failedRequests = new AtomicLong();
+	private final AtomicLong _retries = new AtomicLong();
+	private volatile RetryListener _retryListener = null;
 
 	public Connection(  ) {
 		this("http://datahub.io", 80);
@@ -39,21 +89,268 @@ public final class Connection {
 	}
 
 	public Connection( String host, int port ) {
+		this( host, port, DEFAULT_MAX_PER_ROUTE, DEFAULT_MAX_TOTAL );
+	}
+
+	/**
+	 * Constructs a Connection which shares a pool of keep-alive connections
+	 * with every other open Connection to the same host and port.
+	 *
+	 * @param  host        The CKAN instance, including the scheme
+	 * @param  port        The port of the CKAN instance
+	 * @param  maxPerRoute The most connections kept open to the host
+	 * @param  maxTotal    The most connections kept open in total
+	 */
+	public Connection( String host, int port, int maxPerRoute, int maxTotal ) {
 		this.m_host = host;
 		this.m_port = port;
 
-		try {
-			URL u = new URL( this.m_host + ":" + this.m_port + "/api");
-		} catch ( MalformedURLException mue ) {
-			System.out.println(mue);
-		}
+		this._client = acquireClient( this.m_host + ":" + this.m_port, maxPerRoute, maxTotal );
+	}
 
+	/**
+	 * Sets the path CKAN is served under, for an instance that does not sit
+	 * at the root of its host (eg: /data for http://example.org/data)
+	 *
+	 * @param  path The path, starting with a slash, or empty for the root
+	 */
+	public void setBasePath( String path ) {
+		while ( path.endsWith( "/" ) ) {
+			path = path.substring( 0, path.length() - 1 );
+		}
+		this._basePath = path;
 	}
 
 	public void setApiKey( String key ) {
 		this._apikey = key;
 	}
 
+	/**
+	 * Sets whether request bodies are compressed with gzip
+	 *
+	 * The server, or a proxy in front of it, must accept requests with
+	 * Content-Encoding: gzip.
+	 *
+	 * @param  level The deflate level from 1 to 9, or 0 to send bodies uncompressed
+	 */
+	public void setCompression( int level ) {
+		if ( level < 0 || level > 9 ) {
+			throw new IllegalArgumentException( "Compression level must be from 0 to 9" );
+		}
+		this._gzipLevel = level;
+	}
+
+	/**
+	 * Wraps a request body for gzip compression when it is turned on.
+	 */
+	private HttpEntity compress( HttpEntity entity ) {
+		if ( this._gzipLevel == 0 ) {
+			return entity;
+		}
+		return new GzipEntity( entity, this._gzipLevel );
+	}
+
+	/**
+	 * Limits the requests made to this Connection's host
+	 *
+	 * The limits are shared by every Connection to the same host and port
+	 * in the JVM. When several Connections set limits the strictest ones
+	 * apply, and they last until the last Connection to the host is closed.
+	 *
+	 * @param  requestsPerSecond The most requests started per second, or 0 for no limit
+	 * @param  maxConcurrent     The most requests running at once, or 0 for no limit
+	 */
+	public void setRateLimit( double requestsPerSecond, int maxConcurrent ) {
+		if ( this._client != null ) {
+			this._client.throttle.limit( requestsPerSecond, maxConcurrent );
+		}
+	}
+
+	/**
+	 * Returns the number of requests made to this host by all Connections.
+	 */
+	public long getRequestCount() {
+		return this._client == null ? 0 : this._client.throttle.getRequestCount();
+	}
+
+	/**
+	 * Returns the number of requests to this host that had to wait for the rate limit.
+	 */
+	public long getThrottledRequestCount() {
+		return this._client == null ? 0 : this._client.throttle.getWaitedRequestCount();
+	}
+
+	/**
+	 * Returns the total time requests to this host spent waiting for the rate limit.
+	 */
+	public long getThrottleWaitMillis() {
+		return this._client == null ? 0 : this._client.throttle.getWaitMillis();
+	}
+
+	/**
+	 * Returns how long the requests made through this Connection took, in
+	 * microseconds, not counting the wait for the rate limit.
+	 */
+	public LatencyHistogram getLatencyHistogram() {
+		return this._latency;
+	}
+
+	/**
+	 * Returns the number of requests made through this Connection that got
+	 * no response or an error status.
+	 */
+	public long getFailedRequestCount() {
+		return this._failedRequests.get();
+	}
+
+	/**
+	 * Returns the number of requests made through this Connection that were
+	 * sent again after failing.
+	 */
+	public long getRetryCount() {
+		return this._retries.get();
+	}
+
+	/**
+	 * Sets who is told about the requests made through this Connection that
+	 * are sent again after failing.
+	 *
+	 * @param  listener The listener, called on the thread making the request, or null
+	 */
+	public void setRetryListener( RetryListener listener ) {
+		this._retryListener = listener;
+	}
+
+	/**
+	 * Counts a request that is about to be sent again and tells the listener.
+	 */
+	void recordRetry( String action, int attempt, Response response, long delayMs ) {
+		this._retries.incrementAndGet();
+		RetryListener listener = this._retryListener;
+		if ( listener != null ) {
+			listener.retrying( action, attempt, response, delayMs );
+		}
+	}
+
+	/**
+	 * Told about each request that failed and is about to be sent again
+	 */
+	public interface RetryListener {
+		/**
+		 * @param  action   The name of the action being retried
+		 * @param  attempt  The number of the attempt that failed, counting from 1
+		 * @param  response The outcome of the attempt that failed
+		 * @param  delayMs  How long until the request is sent again
+		 */
+		void retrying( String action, int attempt, Response response, long delayMs );
+	}
+
+	/**
+	 * Waits until the host's limits allow another request.
+	 *
+	 * @returns The throttle to release once the response has been read
+	 */
+	private HostThrottle acquirePermit() throws IOException {
+		SharedClient client = this._client;
+		if ( client == null ) {
+			throw new IOException( "Connection to " + this.m_host + " has been closed" );
+		}
+		HostThrottle throttle = client.throttle;
+		try {
+			throttle.acquire();
+		} catch ( InterruptedException ie ) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException( "Interrupted while waiting to send a request to " + this.m_host );
+		}
+		return throttle;
+	}
+
+	/**
+	 * Releases this Connection's share of the pooled HTTP client
+	 *
+	 * The pooled connections to the host are shut down once the last
+	 * Connection to it has been closed. Calling close() more than once has
+	 * no further effect.
+	 */
+	public void close() {
+		synchronized ( _clients ) {
+			if ( this._client == null ) {
+				return;
+			}
+			if ( --this._client.references == 0 ) {
+				_clients.remove( this._client.key );
+				this._client.connectionManager.shutdown();
+			}
+			this._client = null;
+		}
+	}
+
+	/**
+	 * Looks up the shared HTTP client for a host, creating it on first use.
+	 */
+	private static SharedClient acquireClient( String key, int maxPerRoute, int maxTotal ) {
+		synchronized ( _clients ) {
+			SharedClient client = _clients.get( key );
+			if ( client == null ) {
+				client = new SharedClient( key );
+				_clients.put( key, client );
+			}
+			client.setPoolSize( maxPerRoute, maxTotal );
+			client.references++;
+			return client;
+		}
+	}
+
+	/**
+	 * Returns the shared HTTP client, after evicting stale pooled connections.
+	 */
+	private HttpClient getHttpClient() throws IOException {
+		if ( this._client == null ) {
+			throw new IOException( "Connection to " + this.m_host + " has been closed" );
+		}
+		this._client.evictIdleConnections();
+		return this._client.httpclient;
+	}
+
+	/**
+	 * A keep-alive HTTP client with a pooled connection manager, shared by
+	 * all of the Connections to one host.
+	 */
+	private static final class SharedClient {
+		final String key;
+		final PoolingClientConnectionManager connectionManager;
+		final HttpClient httpclient;
+		final HostThrottle throttle = new HostThrottle();
+		int references = 0;
+		private long lastEviction = System.currentTimeMillis();
+
+		SharedClient( String key ) {
+			this.key = key;
+			this.connectionManager = new PoolingClientConnectionManager();
+			this.httpclient = new DefaultHttpClient( this.connectionManager );
+		}
+
+		void setPoolSize( int maxPerRoute, int maxTotal ) {
+			maxTotal = Math.max( maxTotal, maxPerRoute );
+			if ( maxTotal > this.connectionManager.getMaxTotal() ) {
+				this.connectionManager.setMaxTotal( maxTotal );
+			}
+			if ( maxPerRoute > this.connectionManager.getDefaultMaxPerRoute() ) {
+				this.connectionManager.setDefaultMaxPerRoute( maxPerRoute );
+			}
+		}
+
+		synchronized void evictIdleConnections() {
+			long now = System.currentTimeMillis();
+			if ( now - this.lastEviction < IDLE_TIMEOUT_MS / 2 ) {
+				return;
+			}
+			this.lastEviction = now;
+			this.connectionManager.closeExpiredConnections();
+			this.connectionManager.closeIdleConnections( IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS );
+		}
+	}
+
 
 	/**
 	 * Makes a POST request
@@ -67,44 +364,290 @@ public final class Connection {
 	 * @throws A CKANException if the request fails
 	 */
 	protected String Post(String path, String data) throws CKANException {
-		URL url = null;
+		StringEntity input = null;
 
 		try {
-			url = new URL( this.m_host + ":" + this.m_port + path);
-		} catch ( MalformedURLException mue ) {
-			System.err.println(mue);
+			input = new StringEntity(data);
+		} catch ( UnsupportedEncodingException uee ) {
+			System.err.println(uee);
 			return null;
 		}
+		input.setContentType("application/json");
+
+		return Post(path, input);
+	}
+
+	/**
+	 * Makes a POST request with a prepared request body
+	 *
+	 * Submits a POST HTTP request to the CKAN instance configured within
+	 * the constructor, returning the entire contents of the response.
+	 *
+	 * @param  path  The URL path to make the POST request to
+	 * @param  input The request body, which must set its own content type
+	 * @returns The String contents of the response
+	 * @throws A CKANException if the request fails
+	 */
+	protected String Post(String path, HttpEntity input) throws CKANException {
+		Response response = Execute(path, compress(input));
+		if (response.getError() != null) {
+			CKANException exception = new CKANException("Errors occured performing: " + path);
+			exception.addError(response.getError().toString());
+			throw exception;
+		}
+		return response.getBody();
+	}
 
-		String body = "";
+	/**
+	 * Prepares a request body to be sent by Execute(), possibly more than once
+	 *
+	 * The body is compressed if compression is turned on. The bytes sent
+	 * by the first attempt are kept so that retries resend them rather than
+	 * serializing the records, and compressing them, all over again. A body
+	 * that is costly to write again, a DataStoreEntity or any compressed
+	 * body, is only kept up to 16 MB; a larger one is written again from
+	 * its source on each attempt instead of being held in memory. A body
+	 * that cannot be written twice is always kept, and the file range of an
+	 * uncompressed part is read from the file again as that costs no more.
+	 *
+	 * @param  input The request body, which must set its own content type
+	 * @returns The request body to pass to Execute()
+	 */
+	protected HttpEntity Prepare(HttpEntity input) {
+		HttpEntity body = compress(input);
+		if (!input.isRepeatable()) {
+			return new ReplayableEntity(body, -1);
+		}
+		if (body != input || input instanceof DataStoreEntity) {
+			return new ReplayableEntity(body, MAX_REPLAY_BYTES);
+		}
+		return body;
+	}
 
-		HttpClient httpclient = new DefaultHttpClient();
+	/**
+	 * Makes a POST request and reports how it went
+	 *
+	 * Unlike Post(), the body is sent as it is and a failed connection is
+	 * returned in the Response rather than printed, so that the caller can
+	 * decide whether to try again.
+	 *
+	 * @param  path The URL path to make the POST request to
+	 * @param  body The request body, compressed already if need be
+	 * @returns The status, headers and contents of the response
+	 */
+	protected Response Execute(String path, HttpEntity body) {
+		return Execute(path, body, null);
+	}
+
+	/**
+	 * Makes a POST request and reports how it went, reading a successful
+	 * JSON response as it arrives
+	 *
+	 * A successful response that is a JSON object is read straight from the
+	 * connection into an instance of resultClass, which is then returned by
+	 * Response.getResult(), so a large response is never held as a string.
+	 * Any other response is read into the body as by Execute(path, body).
+	 *
+	 * @param  path        The URL path to make the POST request to
+	 * @param  body        The request body, compressed already if need be
+	 * @param  resultClass The class a successful response is read into, or
+	 *                     null to read every response into the body
+	 * @returns The status, headers and contents of the response
+	 */
+	protected Response Execute(String path, HttpEntity body, Class<?> resultClass) {
+		Response result = new Response();
+
+		URL url = null;
 		try {
-			HttpPost postRequest = new HttpPost(url.toString());
-			postRequest.setHeader( "X-CKAN-API-Key", this._apikey );
+			url = new URL( this.m_host + ":" + this.m_port + this._basePath + path);
+		} catch ( MalformedURLException mue ) {
+			// Reported like a failed connection, but never retried
+			result._error = mue;
+			return result;
+		}
 
-			StringEntity input = new StringEntity(data);
-			input.setContentType("application/json");
-			postRequest.setEntity(input);
+		HttpPost postRequest = new HttpPost(url.toString());
+		HostThrottle throttle = null;
+		try {
+			HttpClient httpclient = getHttpClient();
+			postRequest.setHeader( "X-CKAN-API-Key", this._apikey );
+			postRequest.setEntity(body);
 
+			throttle = acquirePermit();
+			long start = System.nanoTime();
 			HttpResponse response = httpclient.execute(postRequest);
-			int statusCode = response.getStatusLine().getStatusCode();
+			result._statusCode = response.getStatusLine().getStatusCode();
+			result._retryAfterMs = parseRetryAfter(response.getFirstHeader("Retry-After"));
+			readResponse(response.getEntity(), result._statusCode < 300 ? resultClass : null, result);
+			this._latency.record((System.nanoTime() - start) / 1000);
+			if (result._statusCode >= 400) {
+				this._failedRequests.incrementAndGet();
+			}
 
-			BufferedReader br = new BufferedReader(
-					new InputStreamReader((response.getEntity().getContent())));
+		} catch( IOException ioe ) {
+			// Drop the connection instead of returning it to the pool
+			postRequest.abort();
+			this._failedRequests.incrementAndGet();
+			result._error = ioe;
+		} finally {
+			if ( throttle != null ) {
+				throttle.release();
+			}
+		}
+
+		return result;
+	}
 
-			String line = "";
-			while ((line = br.readLine()) != null) {
-				body += line;
+	/**
+	 * Reads the contents of a response
+	 *
+	 * When a result class is given and the response starts as a JSON object
+	 * it is read into the result through the client's type adapters, which
+	 * skip the parts of a response nothing uses. Otherwise it is read as
+	 * UTF-8 text into the body. Either way the response is read to the end,
+	 * which releases the connection back to the pool.
+	 */
+	private static void readResponse( HttpEntity entity, Class<?> resultClass, Response result ) throws IOException {
+		if ( entity == null ) {
+			return;
+		}
+		InputStream in = new BufferedInputStream( entity.getContent() );
+		try {
+			if ( resultClass != null && startsWithObject( in ) ) {
+				JsonReader reader = new JsonReader( new InputStreamReader( in, "UTF-8" ) );
+				reader.setLenient( true );
+				try {
+					result._result = JsonAdapters.GSON.getAdapter( resultClass ).read( reader );
+				} catch ( MalformedJsonException mje ) {
+					// Not JSON after all, leave the result empty for the caller to report
+				} catch ( JsonParseException jpe ) {
+					// As above
+				} catch ( IllegalStateException ise ) {
+					// Not the JSON expected, as above
+				}
+			} else {
+				StringBuilder text = new StringBuilder();
+				InputStreamReader reader = new InputStreamReader( in, "UTF-8" );
+				char[] buffer = new char[8192];
+				int count;
+				while ( ( count = reader.read( buffer ) ) != -1 ) {
+					text.append( buffer, 0, count );
+				}
+				result._body = text.toString();
 			}
+		} finally {
+			EntityUtils.consume( entity );
+		}
+	}
 
-		} catch( IOException ioe ) {
-			System.out.println( ioe );
+	/**
+	 * Looks ahead at the first character of a response, other than white
+	 * space, without consuming it.
+	 */
+	private static boolean startsWithObject( InputStream in ) throws IOException {
+		in.mark( 256 );
+		try {
+			for ( int i = 0; i < 256; i++ ) {
+				int b = in.read();
+				if ( b != ' ' && b != '\t' && b != '\r' && b != '\n' ) {
+					return b == '{';
+				}
+			}
+			return false;
 		} finally {
-			httpclient.getConnectionManager().shutdown();
+			in.reset();
 		}
+	}
 
-		return body;
+	/**
+	 * Reads a Retry-After header, given either in seconds or as a date.
+	 *
+	 * @returns The wait in milliseconds, or -1 if there is no usable header
+	 */
+	private static long parseRetryAfter( Header header ) {
+		if ( header == null ) {
+			return -1;
+		}
+		String value = header.getValue().trim();
+		try {
+			return Math.max( 0, Long.parseLong( value ) * 1000 );
+		} catch ( NumberFormatException nfe ) {
+			// Not a number of seconds, try a date
+		}
+		try {
+			Date date = DateUtils.parseDate( value );
+			return Math.max( 0, date.getTime() - System.currentTimeMillis() );
+		} catch ( DateParseException dpe ) {
+			return -1;
+		}
+	}
+
+	/**
+	 * The outcome of a request made with Execute()
+	 */
+	public static final class Response {
+		private int _statusCode = 0;
+		private long _retryAfterMs = -1;
+		private String _body = "";
+		private Object _result = null;
+		private IOException _error = null;
+
+		Response() {
+		}
+
+		/**
+		 * A response that has already been received, or the error that
+		 * kept it from being received.
+		 */
+		Response(int statusCode, String body, IOException error) {
+			this._statusCode = statusCode;
+			this._body = body;
+			this._error = error;
+		}
+
+		/**
+		 * The HTTP status code, or 0 if no response was received.
+		 */
+		public int getStatusCode() {
+			return _statusCode;
+		}
+
+		/**
+		 * How long the server asked to wait before trying again, or -1.
+		 */
+		public long getRetryAfterMs() {
+			return _retryAfterMs;
+		}
+
+		/**
+		 * The contents of the response, empty when it was read into the
+		 * result instead.
+		 */
+		public String getBody() {
+			return _body;
+		}
+
+		/**
+		 * The successful response read as it arrived, or null if it was not
+		 * read that way. See Execute(path, body, resultClass).
+		 */
+		public Object getResult() {
+			return _result;
+		}
+
+		/**
+		 * The reason no response was received, if the request failed.
+		 */
+		public IOException getError() {
+			return _error;
+		}
+
+		/**
+		 * Whether CKAN rejected the request as invalid, which no retry fixes.
+		 */
+		public boolean isValidationError() {
+			return _body.contains("\"Validation Error\"");
+		}
 	}
 
 	/**
@@ -123,17 +666,19 @@ public final class Connection {
 		URL url = null;
 
 		try {
-			url = new URL(this.m_host + ":" + this.m_port + path);
+			url = new URL(this.m_host + ":" + this.m_port + this._basePath + path);
 		} catch (MalformedURLException mue) {
-			System.err.println(mue);
-			return null;
+			CKANException exception = new CKANException("Invalid CKAN URL: " + this.m_host + ":" + this.m_port + this._basePath + path);
+			exception.addError(mue.toString());
+			throw exception;
 		}
 
-		String body = "";
+		Response result = new Response();
 		
-		HttpClient httpclient = new DefaultHttpClient();
+		HttpPost postRequest = new HttpPost(url.toString());
+		HostThrottle throttle = null;
 		try {
-			HttpPost postRequest = new HttpPost(url.toString());
+			HttpClient httpclient = getHttpClient();
 			postRequest.setHeader( "Authorization", this._apikey );
 
 			MultipartEntity mpEntity = new MultipartEntity(HttpMultipartMode.STRICT);
@@ -149,30 +694,36 @@ public final class Connection {
 				mpEntity.addPart("id",  new StringBody(resource.getId()));
 			}
 
-			postRequest.setEntity(mpEntity);
+			postRequest.setEntity(compress(mpEntity));
 
 			//ByteArrayOutputStream bytes = new ByteArrayOutputStream();
 			//mpEntity.writeTo(bytes);
 			//String content = bytes.toString();
 			//System.out.println(content);
 
+			throttle = acquirePermit();
+			long start = System.nanoTime();
 			HttpResponse response = httpclient.execute(postRequest);
-			int statusCode = response.getStatusLine().getStatusCode();
-
-			BufferedReader br = new BufferedReader(
-					new InputStreamReader((response.getEntity().getContent())));
-
-			String line = "";
-			while ((line = br.readLine()) != null) {
-				body += line;
+			result._statusCode = response.getStatusLine().getStatusCode();
+			readResponse(response.getEntity(), null, result);
+			this._latency.record((System.nanoTime() - start) / 1000);
+			if (result._statusCode >= 400) {
+				this._failedRequests.incrementAndGet();
 			}
 
 		} catch (IOException ioe) {
-			System.out.println(ioe);
+			// Drop the connection instead of returning it to the pool
+			postRequest.abort();
+			this._failedRequests.incrementAndGet();
+			CKANException exception = new CKANException("Errors occured performing: " + path);
+			exception.addError(ioe.toString());
+			throw exception;
 		} finally {
-			httpclient.getConnectionManager().shutdown();
+			if ( throttle != null ) {
+				throttle.release();
+			}
 		}
 
-		return body;
+		return result._body;
 	}
 }
@@ -2,23 +2,36 @@ package ckan.CKANclient;
 
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class DataStore{
 
-    public class Response {
-        public boolean success;
-        public DataStore result;
+    public static class Response extends ActionResponse<DataStore> {
+    }
+
+    public static class SearchResponse extends ActionResponse<SearchResults> {
+    }
+
+    /**
+     * The rows found by datastore_search
+     */
+    public static class SearchResults {
+        public int total;
+        public List<Map<String, Object>> records;
     }
 
     private String resource_id;
     private Resource resource;
     private List<Field> fields;
     private List<LinkedHashMap<String, Object>> records;
+    // Sent in place of records when set, never read back from a response
+    private transient RecordBatch recordBatch;
     private String method;
     private String force;
     private List<String> aliases;
     private List<String> primary_key;
     private List<String> indexes;
+    private Map<String, Object> filters;
     
     
     public DataStore() {}
@@ -55,6 +68,14 @@ public class DataStore{
         return records;
     }
     
+    public void setRecordBatch(RecordBatch recordBatch) {
+        this.recordBatch = recordBatch;
+    }
+
+    public RecordBatch getRecordBatch() {
+        return recordBatch;
+    }
+    
     public void setMethod(String method) {
     	if (method.equals("upsert") || method.equals("insert") || method.equals("update")) {
     		this.method = method;
@@ -98,4 +119,12 @@ public class DataStore{
     public void setIndexes( List<String> indexes ) {
         this.indexes = indexes;
     }
+    
+    public Map<String, Object> getFilters() {
+        return filters;
+    }
+
+    public void setFilters( Map<String, Object> filters ) {
+        this.filters = filters;
+    }
 }
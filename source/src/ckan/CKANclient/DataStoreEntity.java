@@ -0,0 +1,123 @@
+package ckan.CKANclient;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * A request body that writes a DataStore as JSON straight to the connection
+ *
+ * The records are written one at a time while the request is sent, so a
+ * batch is never held in memory a second time as a JSON string or byte
+ * array. The entity can be written more than once, which lets a failed
+ * request be retried.
+ */
+final class DataStoreEntity extends AbstractHttpEntity {
+
+	private final DataStore _datastore;
+	private final Gson _gson;
+
+	DataStoreEntity(DataStore datastore, Gson gson) {
+		this._datastore = datastore;
+		this._gson = gson;
+		setContentType("application/json; charset=UTF-8");
+		setChunked(true);
+	}
+
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	public long getContentLength() {
+		return -1;
+	}
+
+	public boolean isStreaming() {
+		return false;
+	}
+
+	/**
+	 * Serializes the whole DataStore into memory, only for callers that
+	 * need to read the body instead of writing it to a connection.
+	 */
+	public InputStream getContent() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		writeTo(bytes);
+		return new ByteArrayInputStream(bytes.toByteArray());
+	}
+
+	public void writeTo(OutputStream outstream) throws IOException {
+		JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(outstream, "UTF-8")));
+		writer.beginObject();
+		writeValue(writer, "resource_id", _datastore.getResource_id());
+		writeValue(writer, "resource", _datastore.getResource());
+		writeValue(writer, "fields", _datastore.getFields());
+		writeValue(writer, "method", _datastore.getMethod());
+		writeValue(writer, "force", _datastore.getForce());
+		writeValue(writer, "aliases", _datastore.getAliases());
+		writeValue(writer, "primary_key", _datastore.getPrimary_key());
+		writeValue(writer, "indexes", _datastore.getIndexes());
+		writeValue(writer, "filters", _datastore.getFilters());
+
+		RecordBatch batch = _datastore.getRecordBatch();
+		List<LinkedHashMap<String, Object>> records = _datastore.getRecords();
+		if (batch != null) {
+			writer.name("records");
+			batch.writeTo(writer);
+		} else if (records != null) {
+			writer.name("records");
+			writer.beginArray();
+			for (Map<String, Object> record : records) {
+				writeRecord(writer, record);
+			}
+			writer.endArray();
+		}
+		writer.endObject();
+		// Flush without closing, the connection owns the stream
+		writer.flush();
+	}
+
+	/**
+	 * Writes a single record, leaving out null values as Gson would.
+	 */
+	private void writeRecord(JsonWriter writer, Map<String, Object> record) throws IOException {
+		writer.beginObject();
+		for (Map.Entry<String, Object> column : record.entrySet()) {
+			Object value = column.getValue();
+			if (value == null) {
+				continue;
+			}
+			writer.name(column.getKey());
+			if (value instanceof String) {
+				writer.value((String) value);
+			} else if (value instanceof Number) {
+				writer.value((Number) value);
+			} else if (value instanceof Boolean) {
+				writer.value(((Boolean) value).booleanValue());
+			} else {
+				_gson.toJson(value, value.getClass(), writer);
+			}
+		}
+		writer.endObject();
+	}
+
+	private void writeValue(JsonWriter writer, String name, Object value) throws IOException {
+		if (value == null) {
+			return;
+		}
+		writer.name(name);
+		_gson.toJson(value, value.getClass(), writer);
+	}
+}
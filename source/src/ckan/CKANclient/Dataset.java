@@ -16,14 +16,10 @@ import java.util.ArrayList;
  */
 public class Dataset {
 
-    public class Response {
-        public boolean success;
-        public Dataset result;
+    public static class Response extends ActionResponse<Dataset> {
     }
 
-    public class SearchResponse {
-        public boolean success;
-        public SearchResults result;
+    public static class SearchResponse extends ActionResponse<SearchResults> {
     }
 
     /**
@@ -34,7 +30,7 @@ public class Dataset {
      * @version     1.7
      * @since       2012-05-01
      */
-    public class SearchResults {
+    public static class SearchResults {
         //{"count": 4, "search_facets": {}, "facets": {}, "results":
         public int count;
         public List<Dataset> results;
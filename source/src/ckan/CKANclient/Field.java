@@ -1,20 +1,45 @@
 package ckan.CKANclient;
 
+/**
+ * Represents a field in a DataStore
+ *
+ * The type is a PostgreSQL type name such as int4, float8, numeric, bool,
+ * date, timestamp or text. Without a type CKAN guesses one from the first
+ * records, which for values sent as strings is always text.
+ */
 public class Field {
 
     private String id;
-    private String value;
-
-    public String getValue() { return value; }
-    public void setValue(String v) { value = v; }
+    private String type;
 
     public Field() {}
 
-    public Field(String v) {
-        id = v;
+    public Field(String id) {
+        this.id = id;
+    }
+
+    public Field(String id, String type) {
+        this.id = id;
+        this.type = type;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public void setType(String type) {
+        this.type = type;
     }
 
     public String toString() {
-        return "<Field: id=" + this.getValue() + ">";
+        return "<Field: id=" + this.getId() + ", type=" + this.getType() + ">";
     }
 }
@@ -0,0 +1,65 @@
+package ckan.CKANclient;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import org.apache.http.entity.mime.MIME;
+import org.apache.http.entity.mime.content.AbstractContentBody;
+
+/**
+ * A part of a multipart request holding a range of bytes of a file
+ *
+ * The bytes are read from the file as the request is sent, so a part of a
+ * large file never has to be loaded into memory to build the request.
+ */
+final class FilePartBody extends AbstractContentBody {
+
+	private final File _file;
+	private final long _offset;
+	private final long _length;
+
+	FilePartBody(File file, long offset, long length) {
+		super("application/octet-stream");
+		this._file = file;
+		this._offset = offset;
+		this._length = length;
+	}
+
+	public String getFilename() {
+		return _file.getName();
+	}
+
+	public String getCharset() {
+		return null;
+	}
+
+	public String getTransferEncoding() {
+		return MIME.ENC_BINARY;
+	}
+
+	public long getContentLength() {
+		return _length;
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(_file, "r");
+		try {
+			file.seek(_offset);
+			byte[] buffer = new byte[65536];
+			long remaining = _length;
+			while (remaining > 0) {
+				int read = file.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+				if (read < 0) {
+					throw new IOException("The file " + _file + " ended before the part was sent");
+				}
+				out.write(buffer, 0, read);
+				remaining -= read;
+			}
+			out.flush();
+		} finally {
+			file.close();
+		}
+	}
+}
@@ -12,9 +12,7 @@ import java.util.List;
  */
 public class Group {
 
-    public class Response {
-        public boolean success;
-        public Group result;
+    public static class Response extends ActionResponse<Group> {
     }
 
 
@@ -0,0 +1,67 @@
+package ckan.CKANclient;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.message.BasicHeader;
+
+/**
+ * Compresses a request body with gzip while it is being sent
+ *
+ * The wrapped entity is written through a GZIPOutputStream, so the body is
+ * never held in memory compressed or uncompressed. The compressed length is
+ * unknown up front, so the request is sent chunked.
+ */
+final class GzipEntity extends HttpEntityWrapper {
+
+	private final int _level;
+
+	/**
+	 * @param entity The request body to compress
+	 * @param level  The deflate level, from 1 (fastest) to 9 (smallest)
+	 */
+	GzipEntity(HttpEntity entity, int level) {
+		super(entity);
+		this._level = level;
+	}
+
+	public Header getContentEncoding() {
+		return new BasicHeader("Content-Encoding", "gzip");
+	}
+
+	public long getContentLength() {
+		return -1;
+	}
+
+	public boolean isChunked() {
+		return true;
+	}
+
+	/**
+	 * Compresses the whole body into memory, only for callers that need to
+	 * read the body instead of writing it to a connection.
+	 */
+	public InputStream getContent() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		writeTo(bytes);
+		return new ByteArrayInputStream(bytes.toByteArray());
+	}
+
+	public void writeTo(OutputStream outstream) throws IOException {
+		GZIPOutputStream gzip = new GZIPOutputStream(outstream, 8192) {
+			{
+				def.setLevel(_level);
+			}
+		};
+		wrappedEntity.writeTo(gzip);
+		// Write the gzip trailer without closing the connection's stream
+		gzip.finish();
+	}
+}
@@ -0,0 +1,109 @@
+package ckan.CKANclient;
+
+/**
+ * Limits the requests made to one CKAN host
+ *
+ * A token bucket caps the rate at which requests are started, allowing a
+ * burst of up to one second's worth, and a count of requests in flight
+ * caps how many run at the same time. A throttle is shared by every
+ * Connection to the host in the JVM, so writers running side by side in
+ * one FME session stay within the limits together. A limit of 0 means
+ * unlimited.
+ */
+final class HostThrottle {
+
+	private double _requestsPerSecond = 0;
+	private int _maxConcurrent = 0;
+
+	private double _tokens = 0;
+	private long _lastRefill = System.nanoTime();
+	private int _inFlight = 0;
+
+	// Metrics
+	private long _requests = 0;
+	private long _waitedRequests = 0;
+	private long _waitNanos = 0;
+
+	/**
+	 * Sets the limits, keeping the stricter of each limit already set by
+	 * another Connection to the host.
+	 *
+	 * @param requestsPerSecond	The most requests started per second, or 0
+	 * @param maxConcurrent		The most requests running at once, or 0
+	 */
+	synchronized void limit(double requestsPerSecond, int maxConcurrent) {
+		if (requestsPerSecond > 0 && (_requestsPerSecond == 0 || requestsPerSecond < _requestsPerSecond)) {
+			boolean first = _requestsPerSecond == 0;
+			refill();
+			_requestsPerSecond = requestsPerSecond;
+			// Start with a full bucket
+			_tokens = first ? burst() : Math.min(_tokens, burst());
+		}
+		if (maxConcurrent > 0 && (_maxConcurrent == 0 || maxConcurrent < _maxConcurrent)) {
+			_maxConcurrent = maxConcurrent;
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Waits until a request may be started. Every call must be followed by
+	 * a call to release() once the response has been read.
+	 */
+	synchronized void acquire() throws InterruptedException {
+		long start = System.nanoTime();
+		boolean waited = false;
+		while (true) {
+			if (_maxConcurrent > 0 && _inFlight >= _maxConcurrent) {
+				waited = true;
+				wait();
+				continue;
+			}
+			if (_requestsPerSecond > 0) {
+				refill();
+				if (_tokens < 1) {
+					long waitMs = (long) Math.ceil((1 - _tokens) * 1000 / _requestsPerSecond);
+					waited = true;
+					wait(Math.max(1, waitMs));
+					continue;
+				}
+				_tokens -= 1;
+			}
+			break;
+		}
+		_inFlight++;
+		_requests++;
+		if (waited) {
+			_waitedRequests++;
+			_waitNanos += System.nanoTime() - start;
+		}
+	}
+
+	synchronized void release() {
+		_inFlight--;
+		notifyAll();
+	}
+
+	synchronized long getRequestCount() {
+		return _requests;
+	}
+
+	synchronized long getWaitedRequestCount() {
+		return _waitedRequests;
+	}
+
+	synchronized long getWaitMillis() {
+		return _waitNanos / 1000000;
+	}
+
+	private double burst() {
+		return Math.max(1, _requestsPerSecond);
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		if (_requestsPerSecond > 0) {
+			_tokens = Math.min(burst(), _tokens + (now - _lastRefill) * _requestsPerSecond / 1e9);
+		}
+		_lastRefill = now;
+	}
+}
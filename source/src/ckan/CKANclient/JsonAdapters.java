@@ -0,0 +1,489 @@
+package ckan.CKANclient;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.InstanceCreator;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The Gson instance shared by the client, and the type adapters it uses for
+ * the classes sent and read on every DataStore request
+ *
+ * Gson builds a reflective adapter for each class the first time an
+ * instance meets it, so a new Gson per request repeated that work for
+ * every batch. Gson is thread-safe, so one instance serves every upload
+ * thread. DataStore, Field and Resource are read and written by the
+ * hand-written adapters below, field by field, without reflection, and so
+ * is the ActionResponse wrapper of every action, created by the creator
+ * registered for its class. Fields a response has
+ * that these classes do not know about are skipped. Dataset and Group,
+ * read once per run, still go through Gson's reflective adapters.
+ */
+final class JsonAdapters {
+
+	static final Gson GSON = new GsonBuilder()
+			.registerTypeAdapter(Field.class, new FieldAdapter())
+			.registerTypeAdapter(Resource.class, new ResourceAdapter())
+			.registerTypeAdapter(DataStore.class, new DataStoreAdapter())
+			.registerTypeAdapterFactory(new ActionResponseAdapterFactory()
+					.register(DataStore.Response.class, new InstanceCreator<DataStore.Response>() {
+						public DataStore.Response createInstance(Type type) {
+							return new DataStore.Response();
+						}
+					})
+					.register(DataStore.SearchResponse.class, new InstanceCreator<DataStore.SearchResponse>() {
+						public DataStore.SearchResponse createInstance(Type type) {
+							return new DataStore.SearchResponse();
+						}
+					})
+					.register(Resource.Response.class, new InstanceCreator<Resource.Response>() {
+						public Resource.Response createInstance(Type type) {
+							return new Resource.Response();
+						}
+					})
+					.register(Dataset.Response.class, new InstanceCreator<Dataset.Response>() {
+						public Dataset.Response createInstance(Type type) {
+							return new Dataset.Response();
+						}
+					})
+					.register(Dataset.SearchResponse.class, new InstanceCreator<Dataset.SearchResponse>() {
+						public Dataset.SearchResponse createInstance(Type type) {
+							return new Dataset.SearchResponse();
+						}
+					})
+					.register(Group.Response.class, new InstanceCreator<Group.Response>() {
+						public Group.Response createInstance(Type type) {
+							return new Group.Response();
+						}
+					})
+					.register(MultipartUpload.Response.class, new InstanceCreator<MultipartUpload.Response>() {
+						public MultipartUpload.Response createInstance(Type type) {
+							return new MultipartUpload.Response();
+						}
+					})
+					.register(MultipartUpload.CheckResponse.class, new InstanceCreator<MultipartUpload.CheckResponse>() {
+						public MultipartUpload.CheckResponse createInstance(Type type) {
+							return new MultipartUpload.CheckResponse();
+						}
+					}))
+			.create();
+
+	private static final TypeToken<List<String>> STRING_LIST = new TypeToken<List<String>>() {};
+	private static final TypeToken<Map<String, Object>> OBJECT_MAP = new TypeToken<Map<String, Object>>() {};
+
+	private JsonAdapters() {
+	}
+
+	/**
+	 * Reads and writes a DataStore field
+	 */
+	static final class FieldAdapter extends TypeAdapter<Field> {
+
+		public void write(JsonWriter out, Field field) throws IOException {
+			if (field == null) {
+				out.nullValue();
+				return;
+			}
+			out.beginObject();
+			writeString(out, "id", field.getId());
+			writeString(out, "type", field.getType());
+			out.endObject();
+		}
+
+		public Field read(JsonReader in) throws IOException {
+			if (in.peek() == JsonToken.NULL) {
+				in.nextNull();
+				return null;
+			}
+			Field field = new Field();
+			in.beginObject();
+			while (in.hasNext()) {
+				String name = in.nextName();
+				if (name.equals("id")) {
+					field.setId(readString(in));
+				} else if (name.equals("type")) {
+					field.setType(readString(in));
+				} else {
+					in.skipValue();
+				}
+			}
+			in.endObject();
+			return field;
+		}
+	}
+
+	/**
+	 * Reads and writes a resource
+	 *
+	 * The size and position are always written, as they were when Gson
+	 * wrote the int fields of a Resource.
+	 */
+	static final class ResourceAdapter extends TypeAdapter<Resource> {
+
+		public void write(JsonWriter out, Resource resource) throws IOException {
+			if (resource == null) {
+				out.nullValue();
+				return;
+			}
+			out.beginObject();
+			writeString(out, "id", resource.getId());
+			writeString(out, "resource_group_id", resource.getResource_group_id());
+			writeString(out, "name", resource.getName());
+			writeString(out, "description", resource.getDescription());
+			writeString(out, "created", resource.getCreated());
+			writeString(out, "url", resource.getUrl());
+			writeString(out, "webstore_url", resource.getWebstore_url());
+			writeString(out, "cache_last_updated", resource.getCache_last_updated());
+			writeString(out, "package_id", resource.getPackage_id());
+			writeString(out, "webstore_last_updated", resource.getWebstore_last_updated());
+			out.name("size").value(resource.getSize());
+			out.name("position").value(resource.getPosition());
+			writeString(out, "resource_type", resource.getResource_type());
+			writeString(out, "last_modified", resource.getLast_modified());
+			writeString(out, "hash", resource.getHash());
+			writeString(out, "format", resource.getFormat());
+			writeString(out, "mimetype", resource.getMimetype());
+			writeString(out, "mimetype_inner", resource.getMimetype_inner());
+			writeString(out, "cache_url", resource.getCache_url());
+			writeString(out, "url_type", resource.getUrl_type());
+			out.endObject();
+		}
+
+		public Resource read(JsonReader in) throws IOException {
+			if (in.peek() == JsonToken.NULL) {
+				in.nextNull();
+				return null;
+			}
+			Resource resource = new Resource();
+			in.beginObject();
+			while (in.hasNext()) {
+				String name = in.nextName();
+				if (name.equals("id")) {
+					resource.setId(readString(in));
+				} else if (name.equals("resource_group_id")) {
+					resource.setResource_group_id(readString(in));
+				} else if (name.equals("name")) {
+					resource.setName(readString(in));
+				} else if (name.equals("description")) {
+					resource.setDescription(readString(in));
+				} else if (name.equals("created")) {
+					resource.setCreated(readString(in));
+				} else if (name.equals("url")) {
+					resource.setUrl(readString(in));
+				} else if (name.equals("webstore_url")) {
+					resource.setWebstore_url(readString(in));
+				} else if (name.equals("cache_last_updated")) {
+					resource.setCache_last_updated(readString(in));
+				} else if (name.equals("package_id")) {
+					resource.setPackage_id(readString(in));
+				} else if (name.equals("webstore_last_updated")) {
+					resource.setWebstore_last_updated(readString(in));
+				} else if (name.equals("size")) {
+					resource.setSize(readInt(in, resource.getSize()));
+				} else if (name.equals("position")) {
+					resource.setPosition(readInt(in, resource.getPosition()));
+				} else if (name.equals("resource_type")) {
+					resource.setResource_type(readString(in));
+				} else if (name.equals("last_modified")) {
+					resource.setLast_modified(readString(in));
+				} else if (name.equals("hash")) {
+					resource.setHash(readString(in));
+				} else if (name.equals("format")) {
+					resource.setFormat(readString(in));
+				} else if (name.equals("mimetype")) {
+					resource.setMimetype(readString(in));
+				} else if (name.equals("mimetype_inner")) {
+					resource.setMimetype_inner(readString(in));
+				} else if (name.equals("cache_url")) {
+					resource.setCache_url(readString(in));
+				} else if (name.equals("url_type")) {
+					resource.setUrl_type(readString(in));
+				} else {
+					in.skipValue();
+				}
+			}
+			in.endObject();
+			return resource;
+		}
+	}
+
+	/**
+	 * Reads and writes a DataStore table
+	 *
+	 * Requests are normally written by DataStoreEntity, which streams the
+	 * records; this writes the records held in getRecords(). When reading,
+	 * the records CKAN echoes back in the result of datastore_create and
+	 * datastore_upsert are skipped rather than loaded, as nothing reads
+	 * them and they are as large as the batch sent.
+	 */
+	static final class DataStoreAdapter extends TypeAdapter<DataStore> {
+
+		public void write(JsonWriter out, DataStore datastore) throws IOException {
+			if (datastore == null) {
+				out.nullValue();
+				return;
+			}
+			out.beginObject();
+			writeString(out, "resource_id", datastore.getResource_id());
+			if (datastore.getResource() != null) {
+				out.name("resource");
+				GSON.getAdapter(Resource.class).write(out, datastore.getResource());
+			}
+			if (datastore.getFields() != null) {
+				out.name("fields");
+				out.beginArray();
+				TypeAdapter<Field> fields = GSON.getAdapter(Field.class);
+				for (Field field : datastore.getFields()) {
+					fields.write(out, field);
+				}
+				out.endArray();
+			}
+			writeString(out, "method", datastore.getMethod());
+			writeString(out, "force", datastore.getForce());
+			writeStrings(out, "aliases", datastore.getAliases());
+			writeStrings(out, "primary_key", datastore.getPrimary_key());
+			writeStrings(out, "indexes", datastore.getIndexes());
+			if (datastore.getFilters() != null) {
+				out.name("filters");
+				GSON.getAdapter(OBJECT_MAP).write(out, datastore.getFilters());
+			}
+			if (datastore.getRecords() != null) {
+				out.name("records");
+				GSON.toJson(datastore.getRecords(), datastore.getRecords().getClass(), out);
+			}
+			out.endObject();
+		}
+
+		public DataStore read(JsonReader in) throws IOException {
+			if (in.peek() == JsonToken.NULL) {
+				in.nextNull();
+				return null;
+			}
+			DataStore datastore = new DataStore();
+			in.beginObject();
+			while (in.hasNext()) {
+				String name = in.nextName();
+				if (in.peek() == JsonToken.NULL) {
+					in.nextNull();
+				} else if (name.equals("resource_id")) {
+					datastore.setResource_id(readString(in));
+				} else if (name.equals("resource")) {
+					datastore.setResource(GSON.getAdapter(Resource.class).read(in));
+				} else if (name.equals("fields")) {
+					List<Field> fields = new ArrayList<Field>();
+					TypeAdapter<Field> adapter = GSON.getAdapter(Field.class);
+					in.beginArray();
+					while (in.hasNext()) {
+						fields.add(adapter.read(in));
+					}
+					in.endArray();
+					datastore.setFields(fields);
+				} else if (name.equals("method")) {
+					datastore.setMethod(readString(in));
+				} else if (name.equals("force")) {
+					datastore.setForce(readString(in));
+				} else if (name.equals("aliases")) {
+					datastore.setAliases(readStrings(in));
+				} else if (name.equals("primary_key")) {
+					datastore.setPrimary_key(readStrings(in));
+				} else if (name.equals("indexes")) {
+					datastore.setIndexes(readStrings(in));
+				} else if (name.equals("filters")) {
+					datastore.setFilters(GSON.getAdapter(OBJECT_MAP).read(in));
+				} else {
+					in.skipValue();
+				}
+			}
+			in.endObject();
+			return datastore;
+		}
+	}
+
+	/**
+	 * Creates the adapter of every registered ActionResponse subclass. The
+	 * class of the result is found from the subclass once, when Gson first
+	 * asks for its adapter, rather than on every read. A subclass that is
+	 * not registered is left to Gson's reflective adapter.
+	 */
+	static final class ActionResponseAdapterFactory implements TypeAdapterFactory {
+
+		private final Map<Class<?>, InstanceCreator<?>> _creators = new HashMap<Class<?>, InstanceCreator<?>>();
+
+		/**
+		 * Registers how to create an empty response of a class
+		 *
+		 * @param responseClass The ActionResponse subclass
+		 * @param creator       Creates an instance of it
+		 * @returns This factory
+		 */
+		<R extends ActionResponse<?>> ActionResponseAdapterFactory register(Class<R> responseClass, InstanceCreator<R> creator) {
+			_creators.put(responseClass, creator);
+			return this;
+		}
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		public <R> TypeAdapter<R> create(Gson gson, TypeToken<R> type) {
+			Class<? super R> responseClass = type.getRawType();
+			InstanceCreator<?> creator = _creators.get(responseClass);
+			if (creator == null || !(responseClass.getGenericSuperclass() instanceof ParameterizedType)) {
+				return null;
+			}
+			Type resultType = ((ParameterizedType) responseClass.getGenericSuperclass()).getActualTypeArguments()[0];
+			return new ActionResponseAdapter(responseClass, creator, gson.getAdapter(TypeToken.get(resultType)));
+		}
+	}
+
+	/**
+	 * Reads and writes the response of an action. The result is read and
+	 * written by the adapter of its class, and the error details of a
+	 * failed action are kept so they are not parsed a second time.
+	 */
+	static final class ActionResponseAdapter<T> extends TypeAdapter<ActionResponse<T>> {
+
+		private final Type _responseType;
+		private final InstanceCreator<? extends ActionResponse<T>> _creator;
+		private final TypeAdapter<T> _resultAdapter;
+
+		ActionResponseAdapter(Type responseType, InstanceCreator<? extends ActionResponse<T>> creator, TypeAdapter<T> resultAdapter) {
+			_responseType = responseType;
+			_creator = creator;
+			_resultAdapter = resultAdapter;
+		}
+
+		public void write(JsonWriter out, ActionResponse<T> response) throws IOException {
+			if (response == null) {
+				out.nullValue();
+				return;
+			}
+			out.beginObject();
+			out.name("success").value(response.success);
+			if (response.result != null) {
+				out.name("result");
+				_resultAdapter.write(out, response.result);
+			}
+			if (response.error != null) {
+				out.name("error");
+				GSON.getAdapter(OBJECT_MAP).write(out, response.error);
+			}
+			out.endObject();
+		}
+
+		public ActionResponse<T> read(JsonReader in) throws IOException {
+			if (in.peek() == JsonToken.NULL) {
+				in.nextNull();
+				return null;
+			}
+			ActionResponse<T> response = _creator.createInstance(_responseType);
+			in.beginObject();
+			while (in.hasNext()) {
+				String name = in.nextName();
+				if (name.equals("success")) {
+					response.success = readBoolean(in);
+				} else if (name.equals("result")) {
+					response.result = _resultAdapter.read(in);
+				} else if (name.equals("error")) {
+					response.error = readError(in);
+				} else {
+					in.skipValue();
+				}
+			}
+			in.endObject();
+			return response;
+		}
+	}
+
+	private static void writeString(JsonWriter out, String name, String value) throws IOException {
+		if (value != null) {
+			out.name(name).value(value);
+		}
+	}
+
+	private static void writeStrings(JsonWriter out, String name, List<String> values) throws IOException {
+		if (values != null) {
+			out.name(name);
+			GSON.getAdapter(STRING_LIST).write(out, values);
+		}
+	}
+
+	/**
+	 * Reads a string, taking numbers and booleans as their text as Gson
+	 * does. Objects and arrays are skipped and read as null.
+	 */
+	private static String readString(JsonReader in) throws IOException {
+		switch (in.peek()) {
+		case NULL:
+			in.nextNull();
+			return null;
+		case BOOLEAN:
+			return Boolean.toString(in.nextBoolean());
+		case STRING:
+		case NUMBER:
+			return in.nextString();
+		default:
+			in.skipValue();
+			return null;
+		}
+	}
+
+	private static List<String> readStrings(JsonReader in) throws IOException {
+		if (in.peek() != JsonToken.BEGIN_ARRAY) {
+			in.skipValue();
+			return null;
+		}
+		List<String> values = new ArrayList<String>();
+		in.beginArray();
+		while (in.hasNext()) {
+			values.add(readString(in));
+		}
+		in.endArray();
+		return values;
+	}
+
+	/**
+	 * Reads a whole number, keeping the value given when there is none or
+	 * it does not fit in an int.
+	 */
+	private static int readInt(JsonReader in, int fallback) throws IOException {
+		String text = readString(in);
+		if (text == null) {
+			return fallback;
+		}
+		try {
+			return Integer.parseInt(text);
+		} catch (NumberFormatException nfe) {
+			return fallback;
+		}
+	}
+
+	private static boolean readBoolean(JsonReader in) throws IOException {
+		if (in.peek() == JsonToken.BOOLEAN) {
+			return in.nextBoolean();
+		}
+		return "true".equalsIgnoreCase(readString(in));
+	}
+
+	/**
+	 * Reads the error details of a failed action, null when they are not
+	 * an object.
+	 */
+	private static Map<String, Object> readError(JsonReader in) throws IOException {
+		if (in.peek() != JsonToken.BEGIN_OBJECT) {
+			in.skipValue();
+			return null;
+		}
+		return GSON.getAdapter(OBJECT_MAP).read(in);
+	}
+}
@@ -0,0 +1,92 @@
+package ckan.CKANclient;
+
+/**
+ * Counts durations in buckets to report their percentiles
+ *
+ * Values below 16 get a bucket each. Above that, every power of two is
+ * split into 16 buckets, so a percentile is reported to within about 6% of
+ * the true value whatever its size, in a fixed 8 KB of counts. This is the
+ * layout HdrHistogram uses with one significant digit. The histogram is
+ * shared by the upload threads, so every method is synchronized.
+ */
+public final class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final long[] _counts = new long[BUCKETS];
+	private long _count = 0;
+	private long _total = 0;
+	private long _max = 0;
+
+	/**
+	 * Records a duration.
+	 *
+	 * @param value	The duration, in any unit as long as it is always the same
+	 */
+	public synchronized void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		_counts[bucket(value)]++;
+		_count++;
+		_total += value;
+		_max = Math.max(_max, value);
+	}
+
+	public synchronized long getCount() {
+		return _count;
+	}
+
+	public synchronized long getMax() {
+		return _max;
+	}
+
+	public synchronized long getTotal() {
+		return _total;
+	}
+
+	public synchronized double getMean() {
+		return _count == 0 ? 0 : (double) _total / _count;
+	}
+
+	/**
+	 * Returns the value that the given percentage of the durations recorded
+	 * are at or below, rounded up to the top of its bucket.
+	 *
+	 * @param percentile	The percentage, from 0 to 100
+	 */
+	public synchronized long getValueAtPercentile(double percentile) {
+		if (_count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * _count));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += _counts[i];
+			if (seen >= rank) {
+				return Math.min(highestValue(i), _max);
+			}
+		}
+		return _max;
+	}
+
+	private static int bucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + sub;
+	}
+
+	private static long highestValue(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+		long sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+		return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+}
@@ -0,0 +1,68 @@
+package ckan.CKANclient;
+
+/**
+ * Represents a resource file being uploaded in parts
+ *
+ * The parts are sent through the multipart actions of the cloudstorage
+ * extension (cloudstorage_initiate_multipart, _upload_multipart,
+ * _finish_multipart), which pass them on to the cloud storage behind CKAN
+ * and join them once the upload is finished. An upload belongs to a
+ * resource, which can only have one upload in progress at a time.
+ */
+public class MultipartUpload {
+
+    public static class Response extends ActionResponse<MultipartUpload> {
+    }
+
+    public static class CheckResponse extends ActionResponse<Check> {
+    }
+
+    // The result of cloudstorage_check_multipart, null if the resource
+    // has no upload in progress
+    public static class Check {
+        public MultipartUpload upload;
+    }
+
+    private String id;
+    private String resource_id;
+    private String name;
+    private int parts;
+
+    public MultipartUpload() {}
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getResource_id() {
+        return resource_id;
+    }
+
+    public void setResource_id(String resource_id) {
+        this.resource_id = resource_id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * The number of parts the server has received, only returned when
+     * checking on an upload.
+     */
+    public int getParts() {
+        return parts;
+    }
+
+    public String toString() {
+        return "<MultipartUpload: id=" + this.getId() + ", resource=" + this.getResource_id() + ">";
+    }
+}
@@ -0,0 +1,302 @@
+package ckan.CKANclient;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * A batch of DataStore records stored column by column
+ *
+ * Each column keeps its values in a typed array sized to the batch, with a
+ * bitmap marking null values, instead of one map per record with boxed
+ * values and repeated column names. A batch is meant to be cleared and
+ * filled again, so the arrays are only allocated once, growing if more
+ * records are added than the batch was created for.
+ *
+ * Empty values are sent as null in every column but text columns. Dates
+ * and times in FME's compact form (YYYYMMDD, HHMMSS, YYYYMMDDHHMMSS) are
+ * sent in the ISO 8601 form PostgreSQL reads. Other values that do not
+ * parse as their column's type are kept as text.
+ */
+public class RecordBatch {
+
+	/**
+	 * The type a column's values are stored and written as. Numbers and
+	 * booleans are written as JSON numbers and booleans, dates and times
+	 * as ISO 8601 strings.
+	 */
+	public enum Type { TEXT, INTEGER, FLOAT, NUMERIC, BOOLEAN, DATE, TIME, TIMESTAMP }
+
+	private final String[] _names;
+	private final Type[] _types;
+	private int _capacity;
+	private int _size = 0;
+	private long _estimatedBytes = 0;
+
+	private final BitSet[] _nulls;
+	private final long[][] _longs;
+	private final double[][] _doubles;
+	private final BigDecimal[][] _decimals;
+	private final BitSet[] _booleans;
+	private final String[][] _strings;
+
+	/**
+	 * Creates an empty batch.
+	 *
+	 * @param names    The column names, in the order they are written
+	 * @param types    The type of each column
+	 * @param capacity The number of records to allocate room for
+	 */
+	public RecordBatch(List<String> names, List<Type> types, int capacity) {
+		int columns = names.size();
+		this._names = names.toArray(new String[columns]);
+		this._types = types.toArray(new Type[columns]);
+		this._capacity = capacity;
+
+		this._nulls = new BitSet[columns];
+		this._longs = new long[columns][];
+		this._doubles = new double[columns][];
+		this._decimals = new BigDecimal[columns][];
+		this._booleans = new BitSet[columns];
+		this._strings = new String[columns][];
+
+		for (int c = 0; c < columns; c++) {
+			this._nulls[c] = new BitSet(capacity);
+			switch (this._types[c]) {
+				case INTEGER:
+					this._longs[c] = new long[capacity];
+					break;
+				case FLOAT:
+					this._doubles[c] = new double[capacity];
+					break;
+				case NUMERIC:
+					this._decimals[c] = new BigDecimal[capacity];
+					break;
+				case BOOLEAN:
+					this._booleans[c] = new BitSet(capacity);
+					break;
+				default:
+					this._strings[c] = new String[capacity];
+					break;
+			}
+		}
+	}
+
+	public int size() {
+		return _size;
+	}
+
+	public boolean isEmpty() {
+		return _size == 0;
+	}
+
+	/**
+	 * Returns roughly how many bytes of JSON the records will be written as,
+	 * counting text values by their length and other values by a fixed size.
+	 */
+	public long getEstimatedBytes() {
+		return _estimatedBytes;
+	}
+
+	/**
+	 * Adds a record to the batch.
+	 *
+	 * @param values The text value of each column, in column order, or null
+	 */
+	public void add(String[] values) {
+		if (_size == _capacity) {
+			grow();
+		}
+		int row = _size++;
+		// Braces and commas between records
+		_estimatedBytes += 3;
+		for (int c = 0; c < _names.length; c++) {
+			set(c, row, values[c]);
+			if (!_nulls[c].get(row)) {
+				// "name":value, with quotes for text
+				_estimatedBytes += _names[c].length() + 4 + (_strings[c] != null && _strings[c][row] != null ? values[c].length() + 2 : 12);
+			}
+		}
+	}
+
+	/**
+	 * Empties the batch so that it can be filled again.
+	 */
+	public void clear() {
+		for (int c = 0; c < _names.length; c++) {
+			_nulls[c].clear();
+			if (_booleans[c] != null) {
+				_booleans[c].clear();
+			}
+			if (_strings[c] != null) {
+				// Let go of the values so they can be collected
+				Arrays.fill(_strings[c], 0, _size, null);
+			}
+			if (_decimals[c] != null) {
+				Arrays.fill(_decimals[c], 0, _size, null);
+			}
+		}
+		_size = 0;
+		_estimatedBytes = 0;
+	}
+
+	/**
+	 * Writes the records as a JSON array of objects, leaving out null values.
+	 */
+	public void writeTo(JsonWriter writer) throws IOException {
+		writer.beginArray();
+		for (int row = 0; row < _size; row++) {
+			writer.beginObject();
+			for (int c = 0; c < _names.length; c++) {
+				if (_nulls[c].get(row)) {
+					continue;
+				}
+				writer.name(_names[c]);
+				if (_strings[c] != null && _strings[c][row] != null) {
+					writer.value(_strings[c][row]);
+				} else if (_types[c] == Type.INTEGER) {
+					writer.value(_longs[c][row]);
+				} else if (_types[c] == Type.FLOAT) {
+					writer.value(_doubles[c][row]);
+				} else if (_types[c] == Type.NUMERIC) {
+					writer.value(_decimals[c][row]);
+				} else if (_types[c] == Type.BOOLEAN) {
+					writer.value(_booleans[c].get(row));
+				}
+			}
+			writer.endObject();
+		}
+		writer.endArray();
+	}
+
+	private void set(int c, int row, String value) {
+		if (value == null || (_types[c] != Type.TEXT && value.trim().length() == 0)) {
+			// An empty number or date is a missing value, not an empty string
+			_nulls[c].set(row);
+			return;
+		}
+		try {
+			switch (_types[c]) {
+				case INTEGER:
+					_longs[c][row] = Long.parseLong(value.trim());
+					return;
+				case FLOAT:
+					double d = Double.parseDouble(value.trim());
+					// JSON has no NaN or Infinity, keep those as text
+					if (!Double.isNaN(d) && !Double.isInfinite(d)) {
+						_doubles[c][row] = d;
+						return;
+					}
+					break;
+				case NUMERIC:
+					_decimals[c][row] = new BigDecimal(value.trim());
+					return;
+				case BOOLEAN:
+					Boolean b = parseBoolean(value.trim());
+					if (b != null) {
+						_booleans[c].set(row, b.booleanValue());
+						return;
+					}
+					break;
+				case DATE:
+					_strings[c][row] = toIsoDateTime(value.trim(), 8);
+					return;
+				case TIME:
+					_strings[c][row] = toIsoDateTime(value.trim(), 6);
+					return;
+				case TIMESTAMP:
+					_strings[c][row] = toIsoDateTime(value.trim(), 14);
+					return;
+				default:
+					_strings[c][row] = value;
+					return;
+			}
+		} catch (NumberFormatException nfe) {
+			// Fall through and keep the value as text
+		}
+		setText(c, row, value);
+	}
+
+	/**
+	 * Doubles the room for records, keeping the records already added.
+	 */
+	private void grow() {
+		_capacity = Math.max(_capacity * 2, 16);
+		for (int c = 0; c < _names.length; c++) {
+			if (_longs[c] != null) {
+				_longs[c] = Arrays.copyOf(_longs[c], _capacity);
+			}
+			if (_doubles[c] != null) {
+				_doubles[c] = Arrays.copyOf(_doubles[c], _capacity);
+			}
+			if (_decimals[c] != null) {
+				_decimals[c] = Arrays.copyOf(_decimals[c], _capacity);
+			}
+			if (_strings[c] != null) {
+				_strings[c] = Arrays.copyOf(_strings[c], _capacity);
+			}
+		}
+	}
+
+	/**
+	 * Keeps a value that does not match its column's type as text.
+	 */
+	private void setText(int c, int row, String value) {
+		if (_strings[c] == null) {
+			_strings[c] = new String[_capacity];
+		}
+		_strings[c][row] = value;
+	}
+
+	/**
+	 * Rewrites a date, time or date and time in FME's compact form as ISO
+	 * 8601, keeping any fraction of a second or time zone after it. Values
+	 * in any other form are returned as they are.
+	 *
+	 * @param value  The value
+	 * @param digits The number of leading digits of the compact form: 8 for
+	 *               a date, 6 for a time and 14 for a date and time
+	 */
+	static String toIsoDateTime(String value, int digits) {
+		int length = 0;
+		while (length < value.length() && Character.isDigit(value.charAt(length))) {
+			length++;
+		}
+		if (digits == 14 && length == 8) {
+			// A date and time column holding just a date
+			digits = 8;
+		}
+		if (length != digits) {
+			return value;
+		}
+		StringBuilder iso = new StringBuilder(value.length() + 6);
+		if (digits == 6) {
+			appendTime(iso, value, 0);
+		} else {
+			iso.append(value, 0, 4).append('-').append(value, 4, 6).append('-').append(value, 6, 8);
+			if (digits == 14) {
+				iso.append('T');
+				appendTime(iso, value, 8);
+			}
+		}
+		return iso.append(value, digits, value.length()).toString();
+	}
+
+	private static void appendTime(StringBuilder iso, String value, int start) {
+		iso.append(value, start, start + 2).append(':').append(value, start + 2, start + 4).append(':').append(value, start + 4, start + 6);
+	}
+
+	private static Boolean parseBoolean(String value) {
+		if (value.equalsIgnoreCase("true") || value.equalsIgnoreCase("yes") || value.equals("1")) {
+			return Boolean.TRUE;
+		}
+		if (value.equalsIgnoreCase("false") || value.equalsIgnoreCase("no") || value.equals("0")) {
+			return Boolean.FALSE;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,114 @@
+package ckan.CKANclient;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+/**
+ * A request body that keeps the bytes it sent so that a retry resends them
+ *
+ * The first time it is written the wrapped entity is serialized (and
+ * compressed, if it is a GzipEntity) straight to the connection, with a
+ * copy of the bytes kept on the side. Later attempts send the copy instead
+ * of serializing the request again. If the first write fails part way the
+ * copy is thrown away and the next attempt serializes from the start.
+ *
+ * A body larger than the limit is not copied, and every attempt writes
+ * the wrapped entity again, so the wrapped entity must be repeatable
+ * unless there is no limit.
+ */
+final class ReplayableEntity extends HttpEntityWrapper {
+
+	private final int _limit;
+	private byte[] _bytes = null;
+	// The copy of the body being written, null once it is over the limit
+	private ByteArrayOutputStream _copy = null;
+	private boolean _tooLarge = false;
+
+	/**
+	 * @param entity The request body to send
+	 * @param limit  The most bytes kept for retries, or -1 for no limit
+	 */
+	ReplayableEntity(HttpEntity entity, int limit) {
+		super(entity);
+		this._limit = limit;
+	}
+
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	public long getContentLength() {
+		return _bytes != null ? _bytes.length : wrappedEntity.getContentLength();
+	}
+
+	public boolean isChunked() {
+		return _bytes == null && wrappedEntity.isChunked();
+	}
+
+	public boolean isStreaming() {
+		return false;
+	}
+
+	public InputStream getContent() throws IOException {
+		if (_bytes == null) {
+			return wrappedEntity.getContent();
+		}
+		return new ByteArrayInputStream(_bytes);
+	}
+
+	public void writeTo(OutputStream outstream) throws IOException {
+		if (_bytes != null) {
+			outstream.write(_bytes);
+			outstream.flush();
+			return;
+		}
+		if (_tooLarge) {
+			wrappedEntity.writeTo(outstream);
+			return;
+		}
+		_copy = new ByteArrayOutputStream(8192);
+		wrappedEntity.writeTo(new FilterOutputStream(outstream) {
+			public void write(int b) throws IOException {
+				out.write(b);
+				if (keep(1)) {
+					_copy.write(b);
+				}
+			}
+
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+				if (keep(len)) {
+					_copy.write(b, off, len);
+				}
+			}
+		});
+		// Only keep a complete body
+		if (_copy != null) {
+			_bytes = _copy.toByteArray();
+			_copy = null;
+		}
+	}
+
+	/**
+	 * Returns whether the next bytes written are to be copied.
+	 */
+	private boolean keep(int len) {
+		if (_copy == null) {
+			return false;
+		}
+		if (_limit >= 0 && _copy.size() + len > _limit) {
+			// Too large to hold, later attempts write the body again
+			_copy = null;
+			_tooLarge = true;
+			return false;
+		}
+		return true;
+	}
+}
@@ -9,9 +9,7 @@ package ckan.CKANclient;
  */
 public class Resource{
 
-    public class Response {
-        public boolean success;
-        public Resource result;
+    public static class Response extends ActionResponse<Resource> {
     }
 
     private String id;
@@ -33,6 +31,7 @@ public class Resource{
     private String mimetype;
     private String mimetype_inner;
     private String cache_url;
+    private String url_type;
     
         
 /*tracking_summary: {
@@ -194,6 +193,14 @@ recent: 3
         return cache_url;
     }
 
+    public void setUrl_type(String url_type) {
+        this.url_type = url_type;
+    }
+
+    public String getUrl_type() {
+        return url_type;
+    }
+
 }
 
 
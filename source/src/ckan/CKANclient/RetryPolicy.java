@@ -0,0 +1,110 @@
+package ckan.CKANclient;
+
+import java.net.MalformedURLException;
+import java.util.Random;
+
+/**
+ * Decides whether a failed request to CKAN is retried and how long to wait
+ *
+ * The wait grows exponentially from the initial delay up to the maximum
+ * delay, with full jitter so that parallel uploads that fail together do
+ * not all retry at the same moment. A Retry-After header from the server
+ * is honoured as the shortest wait. Retrying stops after the maximum
+ * number of attempts or once the maximum elapsed time would be exceeded.
+ *
+ * Connection failures, 429 Too Many Requests and 5xx responses are treated
+ * as transient. Anything else, including a CKAN validation error, would
+ * fail the same way again and is not retried. Subclasses can override
+ * isRetryable() and getDelay() to change either decision.
+ */
+public class RetryPolicy {
+
+	/**
+	 * Retries up to 5 times over at most 2 minutes, waiting 1s, 2s, 4s, ...
+	 * up to 30s between attempts.
+	 */
+	public static final RetryPolicy DEFAULT = new RetryPolicy(6, 1000, 30000, 120000);
+
+	/**
+	 * Never retries.
+	 */
+	public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0, 0);
+
+	private final int _maxAttempts;
+	private final long _initialDelayMs;
+	private final long _maxDelayMs;
+	private final long _maxElapsedMs;
+	private final Random _random = new Random();
+
+	/**
+	 * @param maxAttempts    The most times a request is sent, including the first
+	 * @param initialDelayMs The wait before the first retry, doubled for each one after
+	 * @param maxDelayMs     The longest wait between two attempts
+	 * @param maxElapsedMs   The longest time spent on a request, including waits
+	 */
+	public RetryPolicy(int maxAttempts, long initialDelayMs, long maxDelayMs, long maxElapsedMs) {
+		this._maxAttempts = Math.max(1, maxAttempts);
+		this._initialDelayMs = initialDelayMs;
+		this._maxDelayMs = maxDelayMs;
+		this._maxElapsedMs = maxElapsedMs;
+	}
+
+	public int getMaxAttempts() {
+		return _maxAttempts;
+	}
+
+	/**
+	 * Returns a copy of this policy which sends a request at most the
+	 * given number of times.
+	 */
+	public RetryPolicy withMaxAttempts(int maxAttempts) {
+		return new RetryPolicy(maxAttempts, _initialDelayMs, _maxDelayMs, _maxElapsedMs);
+	}
+
+	/**
+	 * Returns whether a failed request could succeed if it were sent again.
+	 *
+	 * @param response The outcome of the request
+	 */
+	public boolean isRetryable(Connection.Response response) {
+		if (response.getError() instanceof MalformedURLException) {
+			// The domain is wrong, it will not get any better
+			return false;
+		}
+		if (response.getError() != null) {
+			// Timeouts, refused and reset connections
+			return true;
+		}
+		int status = response.getStatusCode();
+		if (status == 429 || status >= 500) {
+			return !response.isValidationError();
+		}
+		return false;
+	}
+
+	/**
+	 * Returns how long to wait before the next attempt, or -1 to give up.
+	 *
+	 * @param attempt      The number of attempts made so far
+	 * @param elapsedMs    The time spent on the request so far
+	 * @param retryAfterMs The wait asked for by the server, or -1 if none
+	 */
+	public long getDelay(int attempt, long elapsedMs, long retryAfterMs) {
+		if (attempt >= _maxAttempts) {
+			return -1;
+		}
+		long backoff = _initialDelayMs << Math.min(attempt - 1, 30);
+		if (backoff <= 0 || backoff > _maxDelayMs) {
+			backoff = _maxDelayMs;
+		}
+		long delay;
+		synchronized (_random) {
+			delay = (long) (_random.nextDouble() * backoff);
+		}
+		delay = Math.max(delay, retryAfterMs);
+		if (elapsedMs + delay > _maxElapsedMs) {
+			return -1;
+		}
+		return delay;
+	}
+}
@@ -0,0 +1,140 @@
+package ckan.ckanWriter;
+
+import ckan.CKANclient.RecordBatch;
+
+/**
+ * Decides how many records go into each DataStore batch.
+ *
+ * With a fixed size every batch holds the same number of records. When
+ * adaptive, the size is adjusted after every upload in the manner of AIMD:
+ * it grows by a constant step while uploads finish within the latency
+ * budget, and is cut in half when one takes too long or fails. A batch is
+ * also closed early once its records would exceed the payload target, so
+ * wide tables stay under request size limits.
+ */
+public class BatchSizer
+{
+	private final boolean adaptive_;
+	private final long targetBytes_;
+	private final long latencyBudgetMs_;
+	private final int step_;
+	private final int minSize_;
+
+	private volatile int batchSize_;
+
+	// Statistics for the summary at the end of the run
+	private int smallest_;
+	private int largest_;
+	private int increases_ = 0;
+	private int decreases_ = 0;
+	private long uploads_ = 0;
+	private long uploadedRows_ = 0;
+
+	/**
+	 * Creates a sizer that always uses the same number of records.
+	 * @param batchSize The number of records in each batch
+	 */
+	public BatchSizer(int batchSize)
+	{
+		this(batchSize, false, 0, 0);
+	}
+
+	/**
+	 * Constructor
+	 * @param batchSize       The number of records in the first batch
+	 * @param adaptive        Whether to adjust the size after each upload
+	 * @param targetBytes     The JSON size each batch should stay under
+	 * @param latencyBudgetMs The time each upload should finish in
+	 */
+	public BatchSizer(int batchSize, boolean adaptive, long targetBytes, long latencyBudgetMs)
+	{
+		adaptive_ = adaptive;
+		targetBytes_ = targetBytes;
+		latencyBudgetMs_ = latencyBudgetMs;
+		step_ = Math.max(1, batchSize / 10);
+		minSize_ = Math.max(1, batchSize / 100);
+		batchSize_ = batchSize;
+		smallest_ = batchSize;
+		largest_ = batchSize;
+	}
+
+	/**
+	 * Returns whether a batch should be uploaded now.
+	 */
+	public boolean isFull(RecordBatch batch)
+	{
+		return batch.size() >= batchSize_ || (adaptive_ && batch.getEstimatedBytes() >= targetBytes_);
+	}
+
+	public int getBatchSize()
+	{
+		return batchSize_;
+	}
+
+	/**
+	 * Adjusts the batch size after an upload. Called from the upload threads.
+	 * @param rows      The number of records uploaded
+	 * @param bytes     The estimated JSON size of the records
+	 * @param elapsedMs How long the upload took
+	 * @param succeeded Whether the upload succeeded
+	 */
+	public synchronized void record(int rows, long bytes, long elapsedMs, boolean succeeded)
+	{
+		uploads_++;
+		if (succeeded)
+		{
+			uploadedRows_ += rows;
+		}
+		if (!adaptive_)
+		{
+			return;
+		}
+
+		int size = batchSize_;
+		if (!succeeded || elapsedMs > latencyBudgetMs_)
+		{
+			size = Math.max(minSize_, size / 2);
+		}
+		else if (rows >= size)
+		{
+			// Only grow when a batch was actually filled to the current size
+			size += step_;
+		}
+
+		// Never plan for more records than fit in the payload target
+		if (rows > 0 && bytes > 0)
+		{
+			long fitting = targetBytes_ * rows / bytes;
+			if (fitting < size)
+			{
+				size = (int) Math.max(minSize_, fitting);
+			}
+		}
+
+		if (size > batchSize_)
+		{
+			increases_++;
+		}
+		else if (size < batchSize_)
+		{
+			decreases_++;
+		}
+		batchSize_ = size;
+		smallest_ = Math.min(smallest_, size);
+		largest_ = Math.max(largest_, size);
+	}
+
+	/**
+	 * Describes the batch sizes used during the run for the log.
+	 */
+	public synchronized String summary()
+	{
+		if (!adaptive_)
+		{
+			return "Batch size: " + batchSize_;
+		}
+		long average = uploads_ == 0 ? 0 : uploadedRows_ / uploads_;
+		return "Adaptive batch size: final " + batchSize_ + ", smallest " + smallest_ + ", largest " + largest_
+				+ ", average uploaded " + average + " rows, " + increases_ + " increases, " + decreases_ + " decreases";
+	}
+}
@@ -0,0 +1,164 @@
+package ckan.ckanWriter;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ckan.CKANclient.RecordBatch;
+
+/**
+ * Uploads batches of DataStore records on background threads so that FME can
+ * keep converting features while earlier batches are still being sent.
+ *
+ * Every batch is submitted with the Sender for its table, so the batches of
+ * several DataStore tables share the same threads. At most sender threads
+ * plus queue capacity batches are held at any time; submit() blocks once
+ * that many are waiting. The first failed batch stops the upload and is
+ * rethrown by the next call to submit() or finish().
+ */
+public class BatchUploader
+{
+	/**
+	 * Sends a single batch of records to CKAN.
+	 */
+	public interface Sender
+	{
+		void send(RecordBatch batch) throws Exception;
+
+		/**
+		 * Called once the uploader is done with a batch, whether it was
+		 * sent or skipped, so that the batch can be reused.
+		 */
+		void release(RecordBatch batch);
+	}
+
+	private final ExecutorService executor_;
+	private final Semaphore slots_;
+	private volatile Exception failure_ = null;
+	private final AtomicInteger batchCount_ = new AtomicInteger();
+	private final AtomicLong rowCount_ = new AtomicLong();
+
+	/**
+	 * Constructor
+	 * @param threads       The number of batches uploaded at the same time
+	 * @param queueCapacity The number of batches allowed to wait for a thread
+	 */
+	public BatchUploader(int threads, int queueCapacity)
+	{
+		slots_ = new Semaphore(threads + queueCapacity);
+		executor_ = Executors.newFixedThreadPool(threads, new ThreadFactory()
+		{
+			private final AtomicInteger count_ = new AtomicInteger();
+
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "ckan-uploader-" + count_.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Queues a batch for upload, waiting while the queue is full.
+	 * @param sender     Sends the batch to its DataStore table
+	 * @param batch      The records to upload, which must not be changed afterwards
+	 * @throws Exception The error of an earlier batch that failed
+	 */
+	public void submit(final Sender sender, final RecordBatch batch) throws Exception
+	{
+		throwIfFailed();
+		slots_.acquire();
+		executor_.execute(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					// Skip the remaining batches once one has failed
+					if (failure_ == null)
+					{
+						sender.send(batch);
+						batchCount_.incrementAndGet();
+						rowCount_.addAndGet(batch.size());
+					}
+				}
+				catch (Exception e)
+				{
+					fail(e);
+				}
+				finally
+				{
+					sender.release(batch);
+					slots_.release();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Waits for every queued batch to be uploaded and stops the threads.
+	 * @throws Exception The error of the first batch that failed
+	 */
+	public void finish() throws Exception
+	{
+		executor_.shutdown();
+		while (!executor_.awaitTermination(1, TimeUnit.SECONDS))
+		{
+			// Keep waiting for the slowest batch
+		}
+		throwIfFailed();
+	}
+
+	/**
+	 * Drops the queued batches and waits for the batches being uploaded to
+	 * finish, so no upload thread is still running once this returns.
+	 */
+	public void abort()
+	{
+		// Interrupts the threads waiting on the rate limit, the batches
+		// already being sent finish or fail on their own
+		executor_.shutdownNow();
+		try
+		{
+			while (!executor_.awaitTermination(1, TimeUnit.SECONDS))
+			{
+				// Keep waiting for the slowest batch
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public int getBatchCount()
+	{
+		return batchCount_.get();
+	}
+
+	public long getRowCount()
+	{
+		return rowCount_.get();
+	}
+
+	private synchronized void fail(Exception e)
+	{
+		if (failure_ == null)
+		{
+			failure_ = e;
+		}
+	}
+
+	private void throwIfFailed() throws Exception
+	{
+		if (failure_ != null)
+		{
+			throw failure_;
+		}
+	}
+}
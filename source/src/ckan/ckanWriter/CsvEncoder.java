@@ -0,0 +1,100 @@
+package ckan.ckanWriter;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Writes RFC 4180 CSV records as UTF-8 through a large buffer.
+ *
+ * Fields are written straight into the buffer. A field that is not quoted
+ * for its column is scanned once for commas, quotes and line breaks, which
+ * make it quoted after all. A quoted field is searched for quotes with
+ * indexOf() and only copied in pieces when it has quotes to be doubled.
+ */
+public class CsvEncoder
+{
+	// Large enough that multi-GB extracts are written in big blocks
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final Writer out_;
+	private final String lineTerminator_;
+	private boolean firstField_ = true;
+
+	/**
+	 * Constructor
+	 * @param out            The stream to write to, closed with the encoder
+	 * @param lineTerminator The characters that end each record
+	 */
+	public CsvEncoder(OutputStream out, String lineTerminator) throws IOException
+	{
+		out_ = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), BUFFER_SIZE);
+		lineTerminator_ = lineTerminator;
+	}
+
+	/**
+	 * Writes the next field of the current record.
+	 * @param value The value, or null for an empty field
+	 * @param quote Whether to quote the value even if it has no special characters
+	 */
+	public void writeField(String value, boolean quote) throws IOException
+	{
+		if (!firstField_)
+		{
+			out_.write(',');
+		}
+		firstField_ = false;
+
+		if (value == null)
+		{
+			return;
+		}
+		if (!quote && !needsQuotes(value))
+		{
+			out_.write(value, 0, value.length());
+			return;
+		}
+
+		out_.write('"');
+		int start = 0;
+		int quoteAt;
+		while ((quoteAt = value.indexOf('"', start)) >= 0)
+		{
+			// Write up to and including the quote, then double it
+			out_.write(value, start, quoteAt - start + 1);
+			out_.write('"');
+			start = quoteAt + 1;
+		}
+		out_.write(value, start, value.length() - start);
+		out_.write('"');
+	}
+
+	/**
+	 * Ends the current record.
+	 */
+	public void endRecord() throws IOException
+	{
+		out_.write(lineTerminator_);
+		firstField_ = true;
+	}
+
+	public void close() throws IOException
+	{
+		out_.close();
+	}
+
+	private static boolean needsQuotes(String value)
+	{
+		for (int i = 0; i < value.length(); i++)
+		{
+			char c = value.charAt(i);
+			if (c == ',' || c == '"' || c == '\n' || c == '\r')
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -4,11 +4,18 @@ import COM.safe.fme.pluginbuilder.*;
 import COM.safe.fmeobjects.*;
 
 import java.io.*;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.util.*;
-import java.text.Normalizer;  
-import java.text.Normalizer.Form;  
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.Locale;  
-import java.util.regex.Pattern;
+
+import com.google.gson.GsonBuilder;
 
 import ckan.CKANclient.CKANException;
 import ckan.CKANclient.Client;
@@ -17,6 +24,7 @@ import ckan.CKANclient.Dataset;
 import ckan.CKANclient.Resource;
 import ckan.CKANclient.DataStore;
 import ckan.CKANclient.Field;
+import ckan.CKANclient.RecordBatch;
 
 public class FeatureWriter
 {  
@@ -66,9 +74,48 @@ public class FeatureWriter
 	// set to the value passed in by FME in the open() method.
 	private String dataset_ = "";
 
-	// The outputFile_ member stores the output file stream for the output dataset.
-	//private static BufferedWriter outputFile_ = null;
-	private PrintStream outputFile_ = null;
+	// The connection_ member is the connection to the CKAN instance. It is
+	// opened once the settings have been read and shared by every request
+	// so that they reuse the same pooled keep-alive HTTP connections.
+	private Connection connection_ = null;
+
+	// The uploadMessages_ member holds the retries reported by the upload
+	// threads. The log file may only be written from the FME thread, so
+	// they are queued here and logged by logUploadMessages().
+	private final Queue<String> uploadMessages_ = new ConcurrentLinkedQueue<String>();
+
+	// The uploader_ member uploads the DataStore batches on background
+	// threads while FME carries on writing features. It is only created
+	// when writing to the DataStore, and is shared by every table.
+	private BatchUploader uploader_ = null;
+
+	// With _SPOOL, the spoolLog_ member keeps the rows of every table on
+	// local disk and the spoolReader_ thread reads them back into batches,
+	// so FME is not held up while CKAN is slow. The reader thread's error,
+	// if any, is rethrown on the FME thread.
+	private SpoolLog spoolLog_ = null;
+	private Thread spoolReader_ = null;
+	private volatile Exception spoolFailure_ = null;
+
+	// The tables_ member holds the DataStore table written for each feature
+	// type, created when the first feature of the type is written. Without
+	// DEF lines every feature type shares the table of the writer's schema.
+	// The spool reader thread looks tables up in tableList_ by their index.
+	private Map<String, FeatureTypeTable> tables_ = new HashMap<String, FeatureTypeTable>();
+	private List<FeatureTypeTable> tableList_ = new CopyOnWriteArrayList<FeatureTypeTable>();
+	private FeatureTypeTable defaultTable_ = null;
+
+	// The featureTypeDefs_ member holds the attribute names and types of
+	// each feature type from the DEF lines of the mapping file, in the order
+	// of the mapping file.
+	private Map<String, List<String>> featureTypeDefs_ = new LinkedHashMap<String, List<String>>();
+
+	// The metrics_ member measures where the time of the run goes, for the
+	// summary logged when the writer is closed.
+	private RunMetrics metrics_ = null;
+
+	// The outputFile_ member stores the CSV encoder for the output dataset.
+	private CsvEncoder outputFile_ = null;
 
 	// Array of possible attribute names.
 	private ArrayList<String> attributeNames_ = null;
@@ -83,14 +130,37 @@ public class FeatureWriter
 	private String datastore_ = "NO";
 	private String resourceId_ = "";
 	private String result_id = "";
+	private int batchSize_ = 5000;
+	private boolean adaptiveBatch_ = false;
+	private long targetBatchBytes_ = 2L * 1024 * 1024;
+	private long batchLatencyMs_ = 10000;
+	private int uploadThreads_ = 2;
+	private String lineTerminator_ = "\r\n";
+	private boolean uploadInParts_ = false;
+	private int partSizeMb_ = 16;
+	private int gzipLevel_ = 0;
+	private double maxRequestsPerSecond_ = 0;
+	private int maxConcurrentRequests_ = 0;
+	private List<String> primaryKey_ = new ArrayList<String>();
+	private List<String> indexes_ = new ArrayList<String>();
+	private boolean skipUnchanged_ = false;
+	private boolean deleteMissing_ = false;
+	private boolean stagedReplace_ = false;
+	private String alias_ = "";
+	private boolean deferIndexes_ = false;
+	private boolean resumeLoads_ = false;
+	private boolean spoolFeatures_ = false;
+	private boolean metricsReport_ = false;
 	
-	private List<Field> fields = new ArrayList<Field>();
-	private LinkedHashMap<String, Object> ckanRow = new LinkedHashMap<String, Object>();
-	private List<LinkedHashMap<String, Object>> records = new ArrayList<LinkedHashMap<String, Object>>();
-	
-	private static final Pattern NONLATIN = Pattern.compile("[^\\w-]");
-	private static final Pattern WHITESPACE = Pattern.compile("[\\s]");
+	// Lookups built from the attribute definition, indexed by column, and
+	// the buffer each feature is written through.
+	private String[] columnNames_ = null;
+	private boolean[] quoteColumn_ = null;
+	private String[] ckanRow = null;
 	
+	// The most key values sent in a single datastore_delete filter
+	private static final int DELETE_BATCH_SIZE = 500;
+
 	/**
 	 * Constructor
 	 * @param writerTypeName  The name of this particular writer
@@ -162,10 +232,45 @@ public class FeatureWriter
 			myfile.delete();
 			myfile.createNewFile();
 
-			outputFile_ = new PrintStream(new FileOutputStream(myfile));
-			
 			// Read the values entered from the settings box.
 			readSettingsBoxKeywordValues();
+			metrics_ = new RunMetrics();
+			
+			outputFile_ = new CsvEncoder(new FileOutputStream(myfile), lineTerminator_);
+			
+			// The domain may name a port (eg: http://localhost:5000 for a
+			// development or test instance of CKAN) and the path CKAN is
+			// served under, which the connection takes separately
+			String host = domain_;
+			int port = 80;
+			String basePath = "";
+			try
+			{
+				URL url = new URL(domain_);
+				host = url.getProtocol() + "://" + url.getHost();
+				port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+				basePath = url.getPath();
+			}
+			catch (MalformedURLException e)
+			{
+				// Leave the domain as it was entered
+			}
+			connection_ = new Connection(host, port,
+					Math.max(uploadThreads_, Connection.DEFAULT_MAX_PER_ROUTE), Connection.DEFAULT_MAX_TOTAL);
+			connection_.setBasePath(basePath);
+			connection_.setCompression(gzipLevel_);
+			connection_.setRateLimit(maxRequestsPerSecond_, maxConcurrentRequests_);
+			connection_.setRetryListener(new Connection.RetryListener()
+			{
+				public void retrying(String action, int attempt, Connection.Response response, long delayMs)
+				{
+					String reason = response.getError() != null
+							? response.getError().toString()
+							: "status " + response.getStatusCode();
+					uploadMessages_.add(action + " failed with " + reason + ", retrying in "
+							+ delayMs + " ms (attempt " + (attempt + 1) + ")");
+				}
+			});
 			
 			// Create a CKAN package, if this fails it means the package already exists
 			createCkanPackage();
@@ -187,97 +292,453 @@ public class FeatureWriter
 	 * that it can be called many times for a single openBasic() or
 	 * openAdvance() call and have the same effect of being called
 	 * only once.
+	 * @throws Exception If any batch could not be uploaded to the DataStore
 	 */
-	public void closeWriter()
+	public void closeWriter() throws Exception
 	{
-		// Upload the file to CKAN
-        if (updateResource_.equals("NO"))
+		// If we have already closed the file, quit
+		if(outputFile_ == null)
+			return;
+
+		outputFile_.close();
+		outputFile_ = null;
+
+		try
 		{
-			createCkanResource();
+			if (!datastore_.equals("NO"))
+			{
+				finishDataStoreUpload();
+			}
+			// Upload the file to CKAN
+			else if (updateResource_.equals("NO"))
+			{
+				createCkanResource();
+			}
+			else
+			{
+				updateCkanResource();
+			}
 		}
-		else
+		finally
 		{
-			updateCkanResource();
+			logUploadMessages();
+			logMetrics();
+			closeConnection();
 		}
-        
+
+		// Log that the writer is done
+		gLogFile.logMessageString("Closing the CKAN Writer", IFMELogFile.FME_INFORM);
+	}
+
+	/**
+	 * This method stops the writer when FME aborts the translation. Unlike
+	 * closeWriter(), nothing is finished: the queued batches are dropped,
+	 * no table is committed, no rows are deleted and the CSV file is not
+	 * uploaded. Like closeWriter(), it can be called many times.
+	 * @throws Exception If the file stream could not be closed
+	 */
+	public void abortWriter() throws Exception
+	{
 		// If we have already closed the file, quit
 		if(outputFile_ == null)
 			return;
 
 		outputFile_.close();
+		outputFile_ = null;
 
-		// Log that the writer is done
-		gLogFile.logMessageString("Closing the CKAN Writer", IFMELogFile.FME_INFORM);
+		try
+		{
+			if (uploader_ != null)
+			{
+				// Stop the spool reader from queueing more batches, then
+				// wait for the batches being sent
+				if (spoolReader_ != null)
+				{
+					spoolReader_.interrupt();
+				}
+				uploader_.abort();
+				if (spoolReader_ != null)
+				{
+					spoolReader_.join();
+				}
+				releaseDataStoreUpload();
+			}
+		}
+		finally
+		{
+			logUploadMessages();
+			logMetrics();
+			closeConnection();
+		}
+
+		gLogFile.logMessageString("Aborted the CKAN Writer, the upload to " + dataset_ + " was not finished", IFMELogFile.FME_WARN);
 	}
 
 	/**
-	 * This method takes "feature" and writes it's geometry and
-	 * attributes to the output dataset.
-	 * @param feature The feature to write
+	 * Releases the pooled HTTP connections to CKAN.
 	 */
-	public void writeFeature(IFMEFeature feature)
+	private void closeConnection()
 	{
-		ArrayList<String> featAttrNames = new ArrayList<String>();
-		String attrName = "";
-		String attrValue = "";
-		String outValue = "";
-		String outType = "";
+		if(connection_ == null)
+			return;
 
-		feature.getAllAttributeNames(featAttrNames);
-		
-		Map<String, String> attributeValues_ = new HashMap<String, String>();
-		boolean firstColumn = true;
-		
-		// Go through all the attributes and add their names and values only
-		// if the attributes are defined in the attribute definition header.
-		for (int i = 0; i < featAttrNames.size(); i++)
+		if (connection_.getThrottledRequestCount() > 0)
 		{
-			attrName = (String)featAttrNames.get(i);
+			// The counts cover every writer in this session sending to the same host
+			gLogFile.logMessageString("Waited " + connection_.getThrottleWaitMillis() + " ms for the rate limit on "
+					+ connection_.getThrottledRequestCount() + " of " + connection_.getRequestCount()
+					+ " requests to " + domain_, IFMELogFile.FME_INFORM);
+		}
+		connection_.close();
+		connection_ = null;
+	}
+
+	/**
+	 * Logs where the time of the run went and, if asked for, writes the
+	 * figures as JSON next to the dataset (eg: data.csv.metrics.json).
+	 */
+	private void logMetrics()
+	{
+		if (metrics_ == null)
+			return;
+
+		for (String line : metrics_.summarize(connection_))
+		{
+			gLogFile.logMessageString(line, IFMELogFile.FME_INFORM);
+		}
+		if (metricsReport_)
+		{
+			File reportFile = new File(dataset_ + ".metrics.json");
 			try
 			{
-				attrValue = feature.getStringAttribute(attrName);
-				
-				// Only add the attribute if it's a user attribute
-				if(attributeNames_.contains(attrName))
+				Writer writer = new OutputStreamWriter(new FileOutputStream(reportFile), "UTF-8");
+				try
 				{
-					attributeValues_.put(attrName, attrValue);
+					new GsonBuilder().setPrettyPrinting().create().toJson(metrics_.report(dataset_, connection_), writer);
 				}
+				finally
+				{
+					writer.close();
+				}
+				gLogFile.logMessageString("Performance report written to " + reportFile.getPath(), IFMELogFile.FME_INFORM);
 			}
-			catch (FMEException e)
+			catch (IOException e)
 			{
-				gLogFile.logMessageString("An attribute defined in a feature does not have an attribute value associated with it.", IFMELogFile.FME_WARN);
+				gLogFile.logMessageString("Unable to write the performance report " + reportFile.getPath() + ": " + e.toString(), IFMELogFile.FME_WARN);
 			}
 		}
+		metrics_ = null;
+	}
+
+	/**
+	 * Logs the retries reported by the upload threads since the last call.
+	 */
+	private void logUploadMessages()
+	{
+		String message;
+		while ((message = uploadMessages_.poll()) != null)
+		{
+			gLogFile.logMessageString(message, IFMELogFile.FME_WARN);
+		}
+	}
+
+	/**
+	 * Queues the rest of the records of every table and waits for every
+	 * batch to be uploaded to the DataStore.
+	 * @throws Exception If any batch could not be uploaded
+	 */
+	private void finishDataStoreUpload() throws Exception
+	{
+		if (uploader_ == null)
+			return;
 
-		// Go through all the attributes in order and write out add their values
-		for (int i = 0; i < attributeNames_.size(); i++)
+		try
 		{
-			outType = attributeTypes_.get(attributeNames_.get(i));
-			outValue = "";
-			
-			// Add comma delimiter if not the first column
-			if(firstColumn) {
-				firstColumn = false;
+			// Create the table even if no features were written, as it was
+			// created on opening the writer before there were feature types
+			if (tableList_.isEmpty() && !attributeNames_.isEmpty())
+			{
+				getTable(firstFeatureType());
+			}
+
+			if (spoolReader_ != null)
+			{
+				// Wait for the spool reader to read the last features
+				spoolLog_.close();
+				spoolReader_.join();
+				if (spoolFailure_ != null)
+				{
+					throw spoolFailure_;
+				}
 			}
-			else {
-				outValue = ",";
+
+			// Upload the rest of the records to the DataStore
+			for (FeatureTypeTable table : tableList_)
+			{
+				table.submitRemaining();
 			}
-			
-			if(attributeValues_.get(attributeNames_.get(i)) == null)
+			uploader_.finish();
+			logUploadMessages();
+
+			for (FeatureTypeTable table : tableList_)
 			{
-				// Empty String
+				table.commit();
 			}
-			else if(outType.contains("char") || outType.contains("string") || outType.contains("text"))
+		}
+		catch (Exception e)
+		{
+			uploader_.abort();
+			if (spoolReader_ != null)
 			{
-				outValue = outValue + "\"" + attributeValues_.get(attributeNames_.get(i)) + "\"";
+				spoolReader_.interrupt();
 			}
-			else
+			gLogFile.logMessageString("Error uploading to the DataStore: " + e.toString(), IFMELogFile.FME_ERROR);
+			throw e;
+		}
+		finally
+		{
+			releaseDataStoreUpload();
+		}
+	}
+
+	/**
+	 * Closes every table, which lets go of the row hash indexes and staging
+	 * resources that were not committed, and deletes the spool once no
+	 * batch is being uploaded any more.
+	 */
+	private void releaseDataStoreUpload()
+	{
+		for (FeatureTypeTable table : tableList_)
+		{
+			table.close();
+		}
+		if (spoolLog_ != null)
+		{
+			gLogFile.logMessageString("Spooled " + spoolLog_.getRowCount() + " rows (" + spoolLog_.getByteCount() + " bytes), with at most "
+					+ spoolLog_.getMaxSegments() + " segments on disk", IFMELogFile.FME_INFORM);
+			spoolLog_.delete();
+			spoolLog_ = null;
+			spoolReader_ = null;
+		}
+		if (tableList_.size() > 1)
+		{
+			gLogFile.logMessageString(uploader_.getRowCount() + " rows uploaded to " + tableList_.size() + " DataStore tables in "
+					+ uploader_.getBatchCount() + " batches", IFMELogFile.FME_INFORM);
+		}
+		uploader_ = null;
+	}
+
+	/**
+	 * Records the schema of a feature type from a DEF line of the mapping
+	 * file, so that its features are written to a DataStore table of their
+	 * own.
+	 * @param defLine The DEF line: the DEF keyword, the feature type name,
+	 *                then the name and type of each attribute
+	 */
+	public void addFeatureTypeDefinition(ArrayList<String> defLine)
+	{
+		if (defLine.size() < 2 || featureTypeDefs_.containsKey(defLine.get(1)))
+		{
+			return;
+		}
+		featureTypeDefs_.put(defLine.get(1), new ArrayList<String>(defLine.subList(2, defLine.size())));
+	}
+
+	/**
+	 * Returns the feature type written to the resource from the settings
+	 * box: the first one with a DEF line, or null if there are none and
+	 * every feature is written with the writer's schema.
+	 */
+	private String firstFeatureType()
+	{
+		return featureTypeDefs_.isEmpty() ? null : featureTypeDefs_.keySet().iterator().next();
+	}
+
+	/**
+	 * Returns the DataStore table of a feature type, creating the table on
+	 * its first feature.
+	 * @param featureType The feature type, or null for the writer's schema
+	 * @return The table
+	 * @throws IOException If the table could not be set up
+	 * @throws CKANException If the table could not be created in CKAN
+	 */
+	private FeatureTypeTable getTable(String featureType) throws IOException, CKANException
+	{
+		FeatureTypeTable table = tables_.get(featureType);
+		if (table != null)
+		{
+			return table;
+		}
+
+		List<String> definition = featureTypeDefs_.get(featureType);
+		if (definition == null && featureTypeDefs_.isEmpty())
+		{
+			// No DEF lines, write every feature with the writer's schema
+			if (defaultTable_ == null)
+			{
+				defaultTable_ = openTable(null, attributeNames_, attributeTypes_);
+			}
+			table = defaultTable_;
+		}
+		else if (definition == null)
+		{
+			// No DEF line for this feature type, write it with the writer's
+			// schema to a table of its own
+			table = openTable(featureType, attributeNames_, attributeTypes_);
+		}
+		else
+		{
+			List<String> names = new ArrayList<String>();
+			Map<String, String> types = new HashMap<String, String>();
+			for (int i = 0; i + 1 < definition.size(); i += 2)
+			{
+				names.add(definition.get(i));
+				types.put(definition.get(i), definition.get(i + 1));
+			}
+			table = openTable(featureType, names, types);
+		}
+		tables_.put(featureType, table);
+		return table;
+	}
+
+	/**
+	 * Creates the DataStore table of a feature type. The first feature type
+	 * of the mapping file, whichever feature arrives first, goes to the
+	 * resource from the settings box, every other one to the resource of
+	 * the package named after it, so each run writes a feature type to the
+	 * same resource.
+	 * @param featureType The feature type, or null for the table every
+	 *                    feature is written to when there are no DEF lines
+	 */
+	private FeatureTypeTable openTable(String featureType, List<String> names, Map<String, String> types) throws IOException, CKANException
+	{
+		FeatureTypeTable table = new FeatureTypeTable(featureType, names, types, tableList_.size());
+		String firstFeatureType = firstFeatureType();
+		if (firstFeatureType == null ? featureType == null : firstFeatureType.equals(featureType))
+		{
+			table.open(resourceId_, resourceName_, alias_.length() != 0 ? alias_ : toSlug(resourceName_));
+		}
+		else
+		{
+			table.open(findResourceId(featureType), featureType, toSlug(featureType));
+		}
+		tableList_.add(table);
+		return table;
+	}
+
+	/**
+	 * Looks up a resource of the package by name, so that each run writes
+	 * a feature type to the same resource.
+	 * @param name The name of the resource
+	 * @return The resource ID, or an empty string if there is none
+	 */
+	private String findResourceId(String name)
+	{
+		try
+		{
+			Client ckanClient = new Client( connection_, apiKey_);
+			Dataset ds = ckanClient.getDataset(packageId_);
+			if (ds != null && ds.getResources() != null)
+			{
+				for (Resource rs : ds.getResources())
+				{
+					if (name.equals(rs.getName()))
+					{
+						return rs.getId();
+					}
+				}
+			}
+		}
+		catch (CKANException cke)
+		{
+			gLogFile.logMessageString("Unable to look up resource " + name + ": " + cke.toString(), IFMELogFile.FME_WARN);
+		}
+		return "";
+	}
+
+	/**
+	 * Fetches the attributes of a feature into a row buffer, in column order.
+	 * @param feature The feature to read
+	 * @param columns The attribute names
+	 * @param row     The buffer to fill, null where the feature has no value
+	 */
+	private static void readRow(IFMEFeature feature, String[] columns, String[] row)
+	{
+		for (int i = 0; i < columns.length; i++)
+		{
+			try
+			{
+				row[i] = feature.getStringAttribute(columns[i]);
+			}
+			catch (FMEException e)
 			{
-				outValue = outValue + attributeValues_.get(attributeNames_.get(i));
+				// The feature does not have this attribute
+				row[i] = null;
 			}
-			outputFile_.print(outValue);
 		}
-		outputFile_.println();
+	}
+
+	/**
+	 * This method takes "feature" and writes it's geometry and
+	 * attributes to the output dataset.
+	 * @param feature The feature to write
+	 * @throws Exception If an earlier DataStore batch could not be uploaded
+	 */
+	public void writeFeature(IFMEFeature feature) throws Exception
+	{
+		long start = System.nanoTime();
+		try
+		{
+			writeFeatureRow(feature);
+		}
+		finally
+		{
+			metrics_.featureWritten(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Writes the attributes of a feature to its DataStore table, or to the
+	 * CSV file.
+	 * @param feature The feature to write
+	 * @throws Exception If an earlier DataStore batch could not be uploaded
+	 */
+	private void writeFeatureRow(IFMEFeature feature) throws Exception
+	{
+		logUploadMessages();
+		if (!datastore_.equals("NO"))
+		{
+			getTable(feature.getFeatureType()).write(feature);
+			return;
+		}
+
+		// Fetch only the attributes defined in the attribute definition
+		// header, in order, into the row buffer.
+		readRow(feature, columnNames_, ckanRow);
+
+		// Go through all the attributes in order and write out their values
+		for (int i = 0; i < columnNames_.length; i++)
+		{
+			outputFile_.writeField(ckanRow[i], quoteColumn_[i]);
+		}
+		outputFile_.endRecord();
+	}
+
+	/**
+	 * Builds the per-column lookups used by writeFeature() once the
+	 * attribute definition is known, so that nothing has to be looked
+	 * up by name or allocated for each feature.
+	 */
+	private void buildColumnIndex()
+	{
+		columnNames_ = attributeNames_.toArray(new String[attributeNames_.size()]);
+		quoteColumn_ = new boolean[columnNames_.length];
+		for (int i = 0; i < columnNames_.length; i++)
+		{
+			String attrType = attributeTypes_.get(columnNames_[i]);
+			quoteColumn_[i] = attrType.contains("char") || attrType.contains("string") || attrType.contains("text");
+		}
+		ckanRow = new String[columnNames_.length];
 	}
 
 	/**
@@ -285,8 +746,9 @@ public class FeatureWriter
 	 * dataset file. "parameters" is an array containing the feature type
 	 * definition as explained in the openAdvace() description.
 	 * @param parameters  An array of parameters for schema definition
+	 * @throws IOException If the header could not be written
 	 */
-	private void writeSchemaFeature(ArrayList<String> parameters)
+	private void writeSchemaFeature(ArrayList<String> parameters) throws IOException
 	{
 		// Run through the parameters array and use those values to generate
 		// the schema feature which we write to the header of the dataset file.
@@ -300,8 +762,6 @@ public class FeatureWriter
 		
 		if (datastore_.equals("NO"))
 		{
-			boolean firstColumn = true;
-			
 			// Write the attribute definition to file now.
 			for(int i=4;i<parameters.size();i+=2)
 			{
@@ -312,20 +772,14 @@ public class FeatureWriter
 				attributeNames_.add(paramVal);
 				attributeTypes_.put(paramVal, paramType);
 				
-				if(firstColumn) {
-					paramVal = "\"" + paramVal + "\"";
-					firstColumn = false;
-				}
-				else {
-					paramVal = ",\"" + paramVal + "\"";
-				}
-				outputFile_.print(paramVal);
+				outputFile_.writeField(paramVal, true);
 			}
-			outputFile_.println();
+			outputFile_.endRecord();
 		}
 		else
 		{
-			// Write the attribute definition to Datastore.
+			// Keep the attribute definition for the DataStore table, which is
+			// created when the first feature is written.
 			for(int i=4;i<parameters.size();i+=2)
 			{
 				// Grab the attribute name.
@@ -334,45 +788,196 @@ public class FeatureWriter
 				
 				attributeNames_.add(paramVal);
 				attributeTypes_.put(paramVal, paramType);
-				
-				fields.add(new Field(paramVal));
+			}
+
+			// One pool of upload threads is shared by every table
+			uploader_ = new BatchUploader(uploadThreads_, uploadThreads_);
+
+			if (spoolFeatures_)
+			{
+				startSpoolReader();
 			}
 		}
+
+		buildColumnIndex();
 	}
 
 	/**
-	 * A settings box acts as the bridge between a mapping file and the
-	 * reader/writer. It should contain any configurable parameters defined
-	 * for a reader/writer. In the reader, the parameter values
-	 * are accessed through keywords that identify the parameters.
+	 * Opens the spool next to the dataset and starts the thread that reads
+	 * the rows back into the batches of their tables. Without a spool the
+	 * rows go straight into the batches.
 	 */
-	private void readSettingsBoxKeywordValues()
+	private void startSpoolReader()
 	{
-		domain_ = "";
-		apiKey_ = "";
-		packageId_ = "";
-		resourceName_ = "";
-		resourceDescription_ = "";
-		updateResource_ = "NO";
-		datastore_ = "NO";
-		resourceId_ = "";
-
-		// Determine if there is a mapping to "_DESTINATION_DOMAIN" which is specified
-		// in the metafile. If the User ID is not entered in the settings box, a 
-		// mapping is not generated in the mapping file.
+		File spoolDirectory = new File(dataset_ + ".spool");
 		try
 		{
-			// Mapping has been found, set the user id string and log the data
-			domain_ = gMappingFile.fetchString("_DESTINATION_DOMAIN");
-			if(domain_.length() != 0)
-			{
-				if(!domain_.startsWith("http://"))
-				{
-					domain_ = "http://" + domain_;
-				}
-			    while (domain_.endsWith("/") && domain_ != "http://") {
-			    	domain_ = domain_.substring(0,domain_.length()-1);
-			    }
+			spoolLog_ = new SpoolLog(spoolDirectory);
+		}
+		catch (IOException e)
+		{
+			gLogFile.logMessageString("Unable to open the spool " + spoolDirectory.getPath() + ", uploading as features are written: " + e.toString(), IFMELogFile.FME_WARN);
+			return;
+		}
+		gLogFile.logMessageString("Spooling features to " + spoolDirectory.getPath(), IFMELogFile.FME_INFORM);
+
+		spoolReader_ = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					String[] row;
+					while ((row = spoolLog_.next()) != null)
+					{
+						tableList_.get(spoolLog_.getLastStream()).append(row);
+					}
+				}
+				catch (Exception e)
+				{
+					spoolFailure_ = e;
+				}
+			}
+		}, "ckan-spool-reader");
+		spoolReader_.setDaemon(true);
+		spoolReader_.start();
+	}
+
+	/**
+	 * Determines the PostgreSQL type of a DataStore field from its
+	 * attribute type. The types written by the ATTR_TYPE_MAP of the
+	 * metafile are PostgreSQL types already; the older int, float, logical
+	 * and number types of existing workspaces are mapped to the widest
+	 * matching type. Character types are sent as text.
+	 * @param attrType The attribute type from the schema
+	 * @return The field type
+	 */
+	private static String toFieldType(String attrType)
+	{
+		if (attrType == null)
+		{
+			return "text";
+		}
+		String type = attrType.trim().toLowerCase(Locale.ENGLISH);
+		if (type.equals("int2") || type.equals("int4") || type.equals("int8")
+				|| type.equals("float4") || type.equals("float8") || type.equals("bool")
+				|| type.equals("date") || type.equals("time") || type.equals("timestamp"))
+		{
+			return type;
+		}
+		else if (type.startsWith("int"))
+		{
+			return "int8";
+		}
+		else if (type.startsWith("float") || type.endsWith("_coordinate"))
+		{
+			return "float8";
+		}
+		else if (type.startsWith("numeric") || type.startsWith("number"))
+		{
+			// CKAN only takes the type name, without precision and scale
+			return "numeric";
+		}
+		else if (type.startsWith("logical"))
+		{
+			return "bool";
+		}
+		return "text";
+	}
+
+	/**
+	 * Determines how the values of a DataStore field are stored in a batch
+	 * and sent to the DataStore from its field type.
+	 * @param fieldType The field type from toFieldType()
+	 * @return The column type
+	 */
+	private static RecordBatch.Type toColumnType(String fieldType)
+	{
+		if (fieldType.startsWith("int"))
+		{
+			return RecordBatch.Type.INTEGER;
+		}
+		else if (fieldType.startsWith("float"))
+		{
+			return RecordBatch.Type.FLOAT;
+		}
+		else if (fieldType.equals("numeric"))
+		{
+			return RecordBatch.Type.NUMERIC;
+		}
+		else if (fieldType.equals("bool"))
+		{
+			return RecordBatch.Type.BOOLEAN;
+		}
+		else if (fieldType.equals("date"))
+		{
+			return RecordBatch.Type.DATE;
+		}
+		else if (fieldType.equals("time"))
+		{
+			return RecordBatch.Type.TIME;
+		}
+		else if (fieldType.equals("timestamp"))
+		{
+			return RecordBatch.Type.TIMESTAMP;
+		}
+		return RecordBatch.Type.TEXT;
+	}
+
+	/**
+	 * A settings box acts as the bridge between a mapping file and the
+	 * reader/writer. It should contain any configurable parameters defined
+	 * for a reader/writer. In the reader, the parameter values
+	 * are accessed through keywords that identify the parameters.
+	 */
+	private void readSettingsBoxKeywordValues()
+	{
+		domain_ = "";
+		apiKey_ = "";
+		packageId_ = "";
+		resourceName_ = "";
+		resourceDescription_ = "";
+		updateResource_ = "NO";
+		datastore_ = "NO";
+		resourceId_ = "";
+		batchSize_ = 5000;
+		adaptiveBatch_ = false;
+		targetBatchBytes_ = 2L * 1024 * 1024;
+		batchLatencyMs_ = 10000;
+		uploadThreads_ = 2;
+		lineTerminator_ = "\r\n";
+		uploadInParts_ = false;
+		partSizeMb_ = 16;
+		gzipLevel_ = 0;
+		maxRequestsPerSecond_ = 0;
+		maxConcurrentRequests_ = 0;
+		primaryKey_ = new ArrayList<String>();
+		indexes_ = new ArrayList<String>();
+		skipUnchanged_ = false;
+		deleteMissing_ = false;
+		stagedReplace_ = false;
+		alias_ = "";
+		deferIndexes_ = false;
+		resumeLoads_ = false;
+		spoolFeatures_ = false;
+		metricsReport_ = false;
+
+		// Determine if there is a mapping to "_DESTINATION_DOMAIN" which is specified
+		// in the metafile. If the User ID is not entered in the settings box, a 
+		// mapping is not generated in the mapping file.
+		try
+		{
+			// Mapping has been found, set the user id string and log the data
+			domain_ = gMappingFile.fetchString("_DESTINATION_DOMAIN");
+			if(domain_.length() != 0)
+			{
+				if(!domain_.startsWith("http://") && !domain_.startsWith("https://"))
+				{
+					domain_ = "http://" + domain_;
+				}
+			    while (domain_.endsWith("/") && !domain_.endsWith("://")) {
+			    	domain_ = domain_.substring(0,domain_.length()-1);
+			    }
 				gLogFile.logMessageString(domain_, IFMELogFile.FME_INFORM);
 			}
 		}
@@ -495,123 +1100,1261 @@ public class FeatureWriter
 			// No mapping found.
 			gLogFile.logMessageString("Unable to determine if resource is to be updated.", IFMELogFile.FME_INFORM);
 		}
-	}
-	
-    public String toSlug(String input) {  
-        String nowhitespace = WHITESPACE.matcher(input).replaceAll("-");
-        String normalized = Normalizer.normalize(nowhitespace, Form.NFD);  
-        String slug = NONLATIN.matcher(normalized).replaceAll("");
-        return slug.toLowerCase(Locale.ENGLISH).replaceAll("-{2,}","-").replaceAll("^-|-$","");
-    }
-	
-	private void createCkanPackage(){
-		Client ckanClient = new Client( new Connection(domain_), apiKey_);
-		
-        try {
-        	Dataset ds = new Dataset();
-        	
-            ds.setId(packageId_);
-            ds.setName(packageId_);
 
-            Dataset result = ckanClient.createDataset(ds);
-            gLogFile.logMessageString("Package created.", IFMELogFile.FME_INFORM);
-        } catch ( CKANException cke ) {
-        	gLogFile.logMessageString(cke.toString(), IFMELogFile.FME_INFORM);
-            return;
-        } catch ( Exception e ) {
-        	gLogFile.logMessageString(e.toString(), IFMELogFile.FME_ERROR);
-            return;
-        }
-	}
-	
-	private void createCkanResource(){
-		Client ckanClient = new Client( new Connection(domain_), apiKey_);
-		
-        try {
-        	Resource rs = new Resource();
-        	
-            rs.setPackage_id(packageId_);
-            rs.setName(resourceName_);
-            rs.setDescription(resourceDescription_);
-            rs.setFormat("CSV");
-            rs.setMimetype("text/csv");
-            rs.setUrl("");
+		// Determine if there is a mapping to "BATCH_SIZE" which is specified
+		// in the metafile.
+		try
+		{
+			// Mapping was found, set the batch size and log the data.
+			int batchSize = Integer.parseInt(gMappingFile.fetchString("_BATCH_SIZE").trim());
+			if (batchSize > 0)
+			{
+				batchSize_ = batchSize;
+				gLogFile.logMessageString("Batch Size: "+batchSize_, IFMELogFile.FME_INFORM);
+			}
+			else
+			{
+				gLogFile.logMessageString("The batch size entered was not greater than 0, using default", IFMELogFile.FME_INFORM);
+			}
+		}
+		catch (Exception e)
+		{
+			// No mapping found.
+			gLogFile.logMessageString("No batch size was entered, using default", IFMELogFile.FME_INFORM);
+		}
 
-            Resource result = ckanClient.uploadCreateResource(rs,dataset_);
-            result_id = result.getId();
-            gLogFile.logMessageString("Resource created at "+ domain_ +"/dataset/"+ packageId_ +"/resource/"+result_id, IFMELogFile.FME_INFORM);
-        } catch ( CKANException cke ) {
-        	gLogFile.logMessageString(cke.toString(), IFMELogFile.FME_ERROR);
-        	gLogFile.logMessageString("Please check your Writer parameters.", IFMELogFile.FME_ERROR);
-            return;
-        } catch ( Exception e ) {
-        	gLogFile.logMessageString(e.toString(), IFMELogFile.FME_ERROR);
-            return;
-        }
-	}
+		// Determine if there is a mapping to "ADAPTIVE_BATCH" which is specified
+		// in the metafile.
+		try
+		{
+			// Mapping was found, set whether the batch size adapts and log the data.
+			adaptiveBatch_ = gMappingFile.fetchString("_ADAPTIVE_BATCH").equals("YES");
+			gLogFile.logMessageString("Adaptive Batch Size: "+adaptiveBatch_, IFMELogFile.FME_INFORM);
+		}
+		catch (Exception e)
+		{
+			// No mapping found.
+			gLogFile.logMessageString("Unable to determine if the batch size adapts, using a fixed batch size", IFMELogFile.FME_INFORM);
+		}
 
-	private void updateCkanResource(){
-		Client ckanClient = new Client( new Connection(domain_), apiKey_);
-		
-        try {
-        	Resource rs = new Resource();
-        	
-            rs.setPackage_id(packageId_);
-            rs.setName(resourceName_);
-            rs.setDescription(resourceDescription_);
-            rs.setFormat("CSV");
-            rs.setMimetype("text/csv");
-            rs.setUrl("");
-            rs.setId(resourceId_);
+		// Determine if there is a mapping to "TARGET_BATCH_BYTES" which is specified
+		// in the metafile.
+		try
+		{
+			// Mapping was found, set the batch payload target and log the data.
+			long targetBatchBytes = Long.parseLong(gMappingFile.fetchString("_TARGET_BATCH_BYTES").trim());
+			if (targetBatchBytes > 0)
+			{
+				targetBatchBytes_ = targetBatchBytes;
+				gLogFile.logMessageString("Target Batch Bytes: "+targetBatchBytes_, IFMELogFile.FME_INFORM);
+			}
+			else
+			{
+				gLogFile.logMessageString("The target batch bytes entered was not greater than 0, using default", IFMELogFile.FME_INFORM);
+			}
+		}
+		catch (Exception e)
+		{
+			// No mapping found.
+			gLogFile.logMessageString("No target batch bytes was entered, using default", IFMELogFile.FME_INFORM);
+		}
 
-            Resource result = ckanClient.uploadUpdateResource(rs,dataset_);
-            result_id = result.getId();
-            gLogFile.logMessageString("Resource updated at "+ domain_ +"/dataset/"+ packageId_ +"/resource/"+result_id, IFMELogFile.FME_INFORM);
-        } catch ( CKANException cke ) {
-        	gLogFile.logMessageString(cke.toString(), IFMELogFile.FME_ERROR);
-        	gLogFile.logMessageString("Please check your Writer parameters.", IFMELogFile.FME_ERROR);
-            return;
-        } catch ( Exception e ) {
-        	gLogFile.logMessageString(e.toString(), IFMELogFile.FME_ERROR);
-            return;
-        }
-	}
-	
-	public void newDataStore(List<Field> fields, List<LinkedHashMap<String, Object>> records) {
-		Client ckanClient = new Client( new Connection(domain_), apiKey_);
-		
-        try {
-        	DataStore ds = new DataStore();
-            
-        	ds.setFields(fields);
-            ds.setRecords(records);
-            ds.setResource_id(resourceId_);
-            ds.setForce("True");
-            
-            DataStore result = ckanClient.createDataStore(ds,5);
-            return;
-        } catch ( CKANException cke ) {
-        	gLogFile.logMessageString(cke.toString(), IFMELogFile.FME_ERROR);
-        	return;
-        }
-	}
-	
-	public void uploadDataStore(List<LinkedHashMap<String, Object>> records) {
-		Client ckanClient = new Client( new Connection(domain_), apiKey_);
-		
-        try {
-        	DataStore ds = new DataStore();
-        	
-            ds.setRecords(records);
-            ds.setResource_id(resourceId_);
-            ds.setForce("True");
-            ds.setMethod("insert");
-            
-            DataStore result = ckanClient.upsertDataStore(ds,5);
-            return;
-        } catch ( CKANException cke ) {
-        	gLogFile.logMessageString(cke.toString(), IFMELogFile.FME_ERROR);
-        	return;
-        }
+		// Determine if there is a mapping to "BATCH_LATENCY_MS" which is specified
+		// in the metafile.
+		try
+		{
+			// Mapping was found, set the batch latency budget and log the data.
+			long batchLatencyMs = Long.parseLong(gMappingFile.fetchString("_BATCH_LATENCY_MS").trim());
+			if (batchLatencyMs > 0)
+			{
+				batchLatencyMs_ = batchLatencyMs;
+				gLogFile.logMessageString("Batch Latency (ms): "+batchLatencyMs_, IFMELogFile.FME_INFORM);
+			}
+			else
+			{
+				gLogFile.logMessageString("The batch latency entered was not greater than 0, using default", IFMELogFile.FME_INFORM);
+			}
+		}
+		catch (Exception e)
+		{
+			// No mapping found.
+			gLogFile.logMessageString("No batch latency was entered, using default", IFMELogFile.FME_INFORM);
+		}
+
+		// Determine if there is a mapping to "UPLOAD_THREADS" which is specified
+		// in the metafile.
+		try
+		{
+			// Mapping was found, set the number of upload threads and log the data.
+			int uploadThreads = Integer.parseInt(gMappingFile.fetchString("_UPLOAD_THREADS").trim());
+			if (uploadThreads > 0)
+			{
+				uploadThreads_ = uploadThreads;
+				gLogFile.logMessageString("Upload Threads: "+uploadThreads_, IFMELogFile.FME_INFORM);
+			}
+			else
+			{
+				gLogFile.logMessageString("The number of upload threads entered was not greater than 0, using default", IFMELogFile.FME_INFORM);
+			}
+		}
+		catch (Exception e)
+		{
+			// No mapping found.
+			gLogFile.logMessageString("No number of upload threads was entered, using default", IFMELogFile.FME_INFORM);
+		}
+
+		// Determine if there is a mapping to "LINE_TERMINATOR" which is specified
+		// in the metafile.
+		try
+		{
+			// Mapping was found, set the CSV line terminator and log the data.
+			String lineTerminator = gMappingFile.fetchString("_LINE_TERMINATOR");
+			if (lineTerminator.equals("LF"))
+			{
+				lineTerminator_ = "\n";
+			}
+			gLogFile.logMessageString("Line Terminator: "+lineTerminator, IFMELogFile.FME_INFORM);
+		}
+		catch (Exception e)
+		{
+			// No mapping found.
+			gLogFile.logMessageString("No line terminator was entered, using CRLF", IFMELogFile.FME_INFORM);
+		}
+
+		// Determine if there is a mapping to "UPLOAD_IN_PARTS" which is specified
+		// in the metafile.
+		try
+		{
+			// Mapping was found, set whether to upload the CSV file in parts and log the data.
+			uploadInParts_ = gMappingFile.fetchString("_UPLOAD_IN_PARTS").equals("YES");
+			gLogFile.logMessageString("Upload in parts? "+(uploadInParts_ ? "YES" : "NO"), IFMELogFile.FME_INFORM);
+		}
+		catch (Exception e)
+		{
+			// No mapping found.
+			gLogFile.logMessageString("Unable to determine if the CSV file is to be uploaded in parts.", IFMELogFile.FME_INFORM);
+		}
+
+		// Determine if there is a mapping to "PART_SIZE_MB" which is specified
+		// in the metafile.
+		try
+		{
+			// Mapping was found, set the size of the upload parts and log the data.
+			int partSizeMb = Integer.parseInt(gMappingFile.fetchString("_PART_SIZE_MB").trim());
+			if (partSizeMb >= 5)
+			{
+				partSizeMb_ = partSizeMb;
+				gLogFile.logMessageString("Part Size (MB): "+partSizeMb_, IFMELogFile.FME_INFORM);
+			}
+			else
+			{
+				// Cloud storage rejects smaller parts
+				gLogFile.logMessageString("The part size entered was less than 5 MB, using default", IFMELogFile.FME_INFORM);
+			}
+		}
+		catch (Exception e)
+		{
+			// No mapping found.
+			gLogFile.logMessageString("No part size was entered, using default", IFMELogFile.FME_INFORM);
+		}
+
+		// Determine if there is a mapping to "GZIP_LEVEL" which is specified
+		// in the metafile.
+		try
+		{
+			// Mapping was found, set the compression level and log the data.
+			int gzipLevel = Integer.parseInt(gMappingFile.fetchString("_GZIP_LEVEL").trim());
+			if (gzipLevel >= 0 && gzipLevel <= 9)
+			{
+				gzipLevel_ = gzipLevel;
+				gLogFile.logMessageString("Gzip Compression Level: "+gzipLevel_, IFMELogFile.FME_INFORM);
+			}
+			else
+			{
+				gLogFile.logMessageString("The compression level entered was not from 0 to 9, sending requests uncompressed", IFMELogFile.FME_INFORM);
+			}
+		}
+		catch (Exception e)
+		{
+			// No mapping found.
+			gLogFile.logMessageString("No compression level was entered, sending requests uncompressed", IFMELogFile.FME_INFORM);
+		}
+
+		// Determine if there is a mapping to "MAX_REQUESTS_PER_SECOND" which is specified
+		// in the metafile.
+		try
+		{
+			// Mapping was found, set the request rate limit and log the data.
+			double maxRequestsPerSecond = Double.parseDouble(gMappingFile.fetchString("_MAX_REQUESTS_PER_SECOND").trim());
+			if (maxRequestsPerSecond >= 0)
+			{
+				maxRequestsPerSecond_ = maxRequestsPerSecond;
+				gLogFile.logMessageString("Max Requests Per Second: "+maxRequestsPerSecond_, IFMELogFile.FME_INFORM);
+			}
+			else
+			{
+				gLogFile.logMessageString("The request rate entered was negative, not limiting the request rate", IFMELogFile.FME_INFORM);
+			}
+		}
+		catch (Exception e)
+		{
+			// No mapping found.
+			gLogFile.logMessageString("No request rate was entered, not limiting the request rate", IFMELogFile.FME_INFORM);
+		}
+
+		// Determine if there is a mapping to "MAX_CONCURRENT_REQUESTS" which is specified
+		// in the metafile.
+		try
+		{
+			// Mapping was found, set the concurrent request limit and log the data.
+			int maxConcurrentRequests = Integer.parseInt(gMappingFile.fetchString("_MAX_CONCURRENT_REQUESTS").trim());
+			if (maxConcurrentRequests >= 0)
+			{
+				maxConcurrentRequests_ = maxConcurrentRequests;
+				gLogFile.logMessageString("Max Concurrent Requests: "+maxConcurrentRequests_, IFMELogFile.FME_INFORM);
+			}
+			else
+			{
+				gLogFile.logMessageString("The number of concurrent requests entered was negative, not limiting concurrent requests", IFMELogFile.FME_INFORM);
+			}
+		}
+		catch (Exception e)
+		{
+			// No mapping found.
+			gLogFile.logMessageString("No number of concurrent requests was entered, not limiting concurrent requests", IFMELogFile.FME_INFORM);
+		}
+
+		// Determine if there is a mapping to "PRIMARY_KEY" which is specified
+		// in the metafile.
+		try
+		{
+			// Mapping was found, set the primary key fields and log the data.
+			primaryKey_ = splitFieldList(gMappingFile.fetchString("_PRIMARY_KEY"));
+			if (!primaryKey_.isEmpty())
+			{
+				gLogFile.logMessageString("Primary Key(s): "+primaryKey_, IFMELogFile.FME_INFORM);
+			}
+			else
+			{
+				gLogFile.logMessageString("No primary key was entered, inserting data instead of upserts", IFMELogFile.FME_INFORM);
+			}
+		}
+		catch (Exception e)
+		{
+			// No mapping found.
+			gLogFile.logMessageString("No primary key was entered, inserting data instead of upserts", IFMELogFile.FME_INFORM);
+		}
+
+		// Determine if there is a mapping to "INDEXES" which is specified
+		// in the metafile.
+		try
+		{
+			// Mapping was found, set the indexed fields and log the data.
+			indexes_ = splitFieldList(gMappingFile.fetchString("_INDEXES"));
+			if (!indexes_.isEmpty())
+			{
+				gLogFile.logMessageString("Indexes: "+indexes_, IFMELogFile.FME_INFORM);
+			}
+		}
+		catch (Exception e)
+		{
+			// No mapping found.
+			gLogFile.logMessageString("No indexes were entered", IFMELogFile.FME_INFORM);
+		}
+
+		// Determine if there is a mapping to "SKIP_UNCHANGED" which is specified
+		// in the metafile.
+		try
+		{
+			// Mapping was found, set whether to skip unchanged rows and log the data.
+			skipUnchanged_ = gMappingFile.fetchString("_SKIP_UNCHANGED").equals("YES");
+			gLogFile.logMessageString("Skip unchanged rows? "+(skipUnchanged_ ? "YES" : "NO"), IFMELogFile.FME_INFORM);
+		}
+		catch (Exception e)
+		{
+			// No mapping found.
+			gLogFile.logMessageString("Unable to determine if unchanged rows are to be skipped.", IFMELogFile.FME_INFORM);
+		}
+
+		// Determine if there is a mapping to "DELETE_MISSING" which is specified
+		// in the metafile.
+		try
+		{
+			// Mapping was found, set whether to delete missing rows and log the data.
+			deleteMissing_ = gMappingFile.fetchString("_DELETE_MISSING").equals("YES");
+			gLogFile.logMessageString("Delete rows no longer written? "+(deleteMissing_ ? "YES" : "NO"), IFMELogFile.FME_INFORM);
+		}
+		catch (Exception e)
+		{
+			// No mapping found.
+			gLogFile.logMessageString("Unable to determine if missing rows are to be deleted.", IFMELogFile.FME_INFORM);
+		}
+
+		// Determine if there is a mapping to "STAGED_REPLACE" which is specified
+		// in the metafile.
+		try
+		{
+			// Mapping was found, set whether to load into a staging table and log the data.
+			stagedReplace_ = gMappingFile.fetchString("_STAGED_REPLACE").equals("YES");
+			gLogFile.logMessageString("Staged replace? "+(stagedReplace_ ? "YES" : "NO"), IFMELogFile.FME_INFORM);
+		}
+		catch (Exception e)
+		{
+			// No mapping found.
+			gLogFile.logMessageString("Unable to determine if the DataStore is to be replaced through a staging table.", IFMELogFile.FME_INFORM);
+		}
+
+		// Determine if there is a mapping to "ALIAS" which is specified
+		// in the metafile.
+		try
+		{
+			// Mapping was found, set the alias and log the data.
+			alias_ = gMappingFile.fetchString("_ALIAS").trim();
+			gLogFile.logMessageString("Alias: "+alias_, IFMELogFile.FME_INFORM);
+		}
+		catch (Exception e)
+		{
+			// No mapping found.
+			gLogFile.logMessageString("No alias was entered.", IFMELogFile.FME_INFORM);
+		}
+
+		// Determine if there is a mapping to "DEFER_INDEXES" which is specified
+		// in the metafile.
+		try
+		{
+			// Mapping was found, set whether to create the indexes last and log the data.
+			deferIndexes_ = gMappingFile.fetchString("_DEFER_INDEXES").equals("YES");
+			gLogFile.logMessageString("Defer indexes? "+(deferIndexes_ ? "YES" : "NO"), IFMELogFile.FME_INFORM);
+		}
+		catch (Exception e)
+		{
+			// No mapping found.
+			gLogFile.logMessageString("Unable to determine if indexes are to be created after loading.", IFMELogFile.FME_INFORM);
+		}
+
+		// Determine if there is a mapping to "RESUME_LOADS" which is specified
+		// in the metafile.
+		try
+		{
+			// Mapping was found, set whether to resume interrupted loads and log the data.
+			resumeLoads_ = gMappingFile.fetchString("_RESUME_LOADS").equals("YES");
+			gLogFile.logMessageString("Resume interrupted loads? "+(resumeLoads_ ? "YES" : "NO"), IFMELogFile.FME_INFORM);
+		}
+		catch (Exception e)
+		{
+			// No mapping found.
+			gLogFile.logMessageString("Unable to determine if interrupted loads are to be resumed.", IFMELogFile.FME_INFORM);
+		}
+
+		// Determine if there is a mapping to "SPOOL" which is specified
+		// in the metafile.
+		try
+		{
+			// Mapping was found, set whether to spool the features to disk and log the data.
+			spoolFeatures_ = gMappingFile.fetchString("_SPOOL").equals("YES");
+			gLogFile.logMessageString("Spool features to disk? "+(spoolFeatures_ ? "YES" : "NO"), IFMELogFile.FME_INFORM);
+		}
+		catch (Exception e)
+		{
+			// No mapping found.
+			gLogFile.logMessageString("Unable to determine if features are to be spooled to disk.", IFMELogFile.FME_INFORM);
+		}
+
+		// Determine if there is a mapping to "METRICS_REPORT" which is specified
+		// in the metafile.
+		try
+		{
+			// Mapping was found, set whether to write a performance report and log the data.
+			metricsReport_ = gMappingFile.fetchString("_METRICS_REPORT").equals("YES");
+			gLogFile.logMessageString("Write performance report? "+(metricsReport_ ? "YES" : "NO"), IFMELogFile.FME_INFORM);
+		}
+		catch (Exception e)
+		{
+			// No mapping found.
+			gLogFile.logMessageString("Unable to determine if a performance report is to be written.", IFMELogFile.FME_INFORM);
+		}
+
+		if (deferIndexes_ && skipUnchanged_)
+		{
+			// Without the primary key the changed rows cannot be upserted
+			gLogFile.logMessageString("Unchanged rows cannot be skipped when deferring indexes, uploading every row", IFMELogFile.FME_WARN);
+			skipUnchanged_ = false;
+		}
+		if (stagedReplace_ && skipUnchanged_)
+		{
+			// A fresh table needs every row
+			gLogFile.logMessageString("Unchanged rows cannot be skipped with a staged replace, uploading every row", IFMELogFile.FME_WARN);
+			skipUnchanged_ = false;
+		}
+	}
+
+	/**
+	 * Splits a list of field names delineated by double semicolons
+	 * (eg: field1;;field2) as entered in the settings box.
+	 * @param value The list of field names
+	 * @return The field names, empty if none were entered
+	 */
+	private List<String> splitFieldList(String value)
+	{
+		List<String> fieldNames = new ArrayList<String>();
+		for (String fieldName : value.trim().split("\\s*;;\\s*"))
+		{
+			if (fieldName.length() != 0)
+			{
+				fieldNames.add(fieldName);
+			}
+		}
+		return fieldNames;
+	}
+	
+    public String toSlug(String input) {
+        return Slugs.toSlug(input);
+    }
+	
+	private void createCkanPackage(){
+		Client ckanClient = new Client( connection_, apiKey_);
+		
+        try {
+        	Dataset ds = new Dataset();
+        	
+            ds.setId(packageId_);
+            ds.setName(packageId_);
+
+            Dataset result = ckanClient.createDataset(ds);
+            gLogFile.logMessageString("Package created.", IFMELogFile.FME_INFORM);
+        } catch ( CKANException cke ) {
+        	gLogFile.logMessageString(cke.toString(), IFMELogFile.FME_INFORM);
+            return;
+        } catch ( Exception e ) {
+        	gLogFile.logMessageString(e.toString(), IFMELogFile.FME_ERROR);
+            return;
+        }
+	}
+	
+	private void createCkanResource() throws Exception {
+		Client ckanClient = new Client( connection_, apiKey_);
+		
+        try {
+        	Resource rs = new Resource();
+        	
+            rs.setPackage_id(packageId_);
+            rs.setName(resourceName_);
+            rs.setDescription(resourceDescription_);
+            rs.setFormat("CSV");
+            rs.setMimetype("text/csv");
+            rs.setUrl("");
+
+            Resource result = null;
+            if (uploadInParts_)
+            {
+            	// Resume the resource of an unfinished upload instead of creating another
+            	result_id = PartUploader.findResourceId(new File(dataset_));
+            	if (result_id.length() == 0)
+            	{
+            		rs.setUrl(new File(dataset_).getName());
+            		rs.setUrl_type("upload");
+            		result_id = ckanClient.urlCreateResource(rs).getId();
+            	}
+            	uploadInParts(ckanClient, result_id);
+            }
+            else
+            {
+            	result = ckanClient.uploadCreateResource(rs,dataset_);
+            	result_id = result.getId();
+            }
+            gLogFile.logMessageString("Resource created at "+ domain_ +"/dataset/"+ packageId_ +"/resource/"+result_id, IFMELogFile.FME_INFORM);
+        } catch ( CKANException cke ) {
+        	gLogFile.logMessageString(cke.toString(), IFMELogFile.FME_ERROR);
+        	gLogFile.logMessageString("Please check your Writer parameters.", IFMELogFile.FME_ERROR);
+            throw cke;
+        } catch ( Exception e ) {
+        	gLogFile.logMessageString(e.toString(), IFMELogFile.FME_ERROR);
+            throw e;
+        }
+	}
+
+	private void updateCkanResource() throws Exception {
+		Client ckanClient = new Client( connection_, apiKey_);
+		
+        try {
+        	Resource rs = new Resource();
+        	
+            rs.setPackage_id(packageId_);
+            rs.setName(resourceName_);
+            rs.setDescription(resourceDescription_);
+            rs.setFormat("CSV");
+            rs.setMimetype("text/csv");
+            rs.setUrl("");
+            rs.setId(resourceId_);
+
+            Resource result = null;
+            if (uploadInParts_)
+            {
+            	uploadInParts(ckanClient, resourceId_);
+            	rs.setUrl(new File(dataset_).getName());
+            	rs.setUrl_type("upload");
+            	result = ckanClient.urlUpdateResource(rs);
+            }
+            else
+            {
+            	result = ckanClient.uploadUpdateResource(rs,dataset_);
+            }
+            result_id = result.getId();
+            gLogFile.logMessageString("Resource updated at "+ domain_ +"/dataset/"+ packageId_ +"/resource/"+result_id, IFMELogFile.FME_INFORM);
+        } catch ( CKANException cke ) {
+        	gLogFile.logMessageString(cke.toString(), IFMELogFile.FME_ERROR);
+        	gLogFile.logMessageString("Please check your Writer parameters.", IFMELogFile.FME_ERROR);
+            throw cke;
+        } catch ( Exception e ) {
+        	gLogFile.logMessageString(e.toString(), IFMELogFile.FME_ERROR);
+            throw e;
+        }
+	}
+	
+	/**
+	 * Uploads the CSV file to a resource in parts of the Part Size, sent by
+	 * the Upload Threads, resuming the upload of an earlier run that failed.
+	 * @param ckanClient The client to send the parts with
+	 * @param resourceId The resource the file belongs to
+	 * @throws Exception If a part could not be uploaded
+	 */
+	private void uploadInParts(Client ckanClient, String resourceId) throws Exception
+	{
+		PartUploader uploader = new PartUploader(ckanClient, new File(dataset_), partSizeMb_ * 1024L * 1024L, uploadThreads_);
+		try
+		{
+			uploader.upload(resourceId);
+		}
+		catch (Exception e)
+		{
+			int uploadedParts = uploader.getSentPartCount() + uploader.getSkippedPartCount();
+			if (uploadedParts > 0)
+			{
+				gLogFile.logMessageString(uploadedParts + " parts of " + uploader.getPartCount()
+						+ " uploaded, run the workspace again to resume the upload", IFMELogFile.FME_ERROR);
+				throw e;
+			}
+			// Nothing to resume, do not leave the upload open on the server
+			try
+			{
+				uploader.abort(resourceId);
+			}
+			catch (CKANException cke)
+			{
+				gLogFile.logMessageString("Unable to abandon the upload to resource " + resourceId + ": " + cke.toString(), IFMELogFile.FME_WARN);
+			}
+			throw e;
+		}
+		if (uploader.isResumed())
+		{
+			gLogFile.logMessageString("Resumed the upload, skipping " + uploader.getSkippedPartCount() + " of "
+					+ uploader.getPartCount() + " parts already sent", IFMELogFile.FME_INFORM);
+		}
+		gLogFile.logMessageString(uploader.getSentPartCount() + " parts (" + uploader.getSentBytes()
+				+ " bytes) uploaded", IFMELogFile.FME_INFORM);
+	}
+
+	/**
+	 * The DataStore table written for one feature type: its schema, the
+	 * batch being filled and the resource it is uploaded to. Every table
+	 * queues its batches on the writer's shared uploader_.
+	 */
+	private final class FeatureTypeTable
+	{
+		private final String featureType_;
+		// The position of the table in tableList_, which its spooled rows are tagged with
+		private final int index_;
+		private final List<String> attributeNames_;
+		private final Map<String, String> attributeTypes_;
+		private final String[] columnNames_;
+		private final String[] row_;
+
+		// The primary key and indexes of the settings box found in this table
+		private List<String> primaryKey_ = new ArrayList<String>();
+		private List<String> indexes_ = new ArrayList<String>();
+		private List<Field> fields_ = null;
+		private String datastoreId_ = "";
+
+		// With a staged replace, the rows are loaded into a new resource
+		// which then takes the alias over from the previous one
+		private StagedReplace replace_ = null;
+		private boolean swapped_ = false;
+
+		// Whether the primary key and indexes are added once the rows are in
+		private boolean keyDeferred_ = false;
+		private boolean indexesDeferred_ = false;
+
+		// When each phase of the load started, for the log
+		private long openedAt_ = 0;
+		private long loadStartedAt_ = 0;
+
+		// The rowHashes_ member remembers the rows written to the table so
+		// that rows unchanged since the last run can be skipped. It is only
+		// created when _SKIP_UNCHANGED is set and there is a primary key.
+		private RowHashIndex rowHashes_ = null;
+
+		// The checkpoint of the load, with the number of rows uploaded by
+		// an interrupted run that are skipped and the running hash of the
+		// rows written. It is only created when _RESUME_LOADS is set.
+		private LoadCheckpoint checkpoint_ = null;
+		private long resumeRows_ = 0;
+		private long rowsHash_ = 0;
+		// The number and running hash of the rows added to batches, counting
+		// those uploaded by the interrupted run
+		private long batchedRows_ = 0;
+		private long batchedHash_ = 0;
+
+		private RecordBatch records_ = null;
+		private BatchSizer batchSizer_ = null;
+		// Batches that are free to be filled, each is reused once uploaded
+		private final BlockingQueue<RecordBatch> freeBatches_ = new LinkedBlockingQueue<RecordBatch>();
+		private List<RecordBatch.Type> columnTypes_ = null;
+		private int batchCount_ = 0;
+
+		private int rowCount_ = 0;
+		private final AtomicLong uploadedRows_ = new AtomicLong();
+		private final AtomicInteger uploadedBatches_ = new AtomicInteger();
+
+		private final BatchUploader.Sender sender_ = new BatchUploader.Sender()
+		{
+			public void send(RecordBatch batch) throws Exception
+			{
+				long start = System.nanoTime();
+				boolean succeeded = false;
+				try
+				{
+					upload(batch);
+					succeeded = true;
+					if (checkpoint_ != null)
+					{
+						checkpoint_.uploaded(batch);
+					}
+					uploadedRows_.addAndGet(batch.size());
+					uploadedBatches_.incrementAndGet();
+				}
+				finally
+				{
+					long elapsed = System.nanoTime() - start;
+					batchSizer_.record(batch.size(), batch.getEstimatedBytes(), elapsed / 1000000, succeeded);
+					metrics_.batchUploaded(batch.size(), batch.getEstimatedBytes(), elapsed, succeeded);
+				}
+			}
+
+			public void release(RecordBatch batch)
+			{
+				if (spoolLog_ != null)
+				{
+					spoolLog_.release(batch);
+				}
+				batch.clear();
+				freeBatches_.add(batch);
+			}
+		};
+
+		FeatureTypeTable(String featureType, List<String> attributeNames, Map<String, String> attributeTypes, int index)
+		{
+			featureType_ = featureType;
+			index_ = index;
+			attributeNames_ = attributeNames;
+			attributeTypes_ = attributeTypes;
+			columnNames_ = attributeNames.toArray(new String[attributeNames.size()]);
+			row_ = new String[columnNames_.length];
+		}
+
+		/**
+		 * Creates the DataStore table and gets it ready for batches.
+		 * @param resourceId   The resource to write to, or empty for a new one
+		 * @param resourceName The name of a new resource
+		 * @param alias        The alias the table is read through after a
+		 *                     staged replace
+		 * @throws CKANException If the table could not be created
+		 */
+		void open(String resourceId, String resourceName, String alias) throws CKANException
+		{
+			// Only keep a primary key and indexes made up of known fields
+			if (attributeNames_.containsAll(FeatureWriter.this.primaryKey_))
+			{
+				primaryKey_ = FeatureWriter.this.primaryKey_;
+			}
+			else
+			{
+				gLogFile.logMessageString("Primary key not found in fields of " + describe() + ", inserting data instead of upserts", IFMELogFile.FME_WARN);
+			}
+			for (String index : FeatureWriter.this.indexes_)
+			{
+				if (attributeNames_.contains(index))
+				{
+					indexes_.add(index);
+				}
+				else
+				{
+					gLogFile.logMessageString("Index field "+ index +" not found in fields of " + describe() + ", it will not be indexed", IFMELogFile.FME_WARN);
+				}
+			}
+
+			fields_ = new ArrayList<Field>();
+			columnTypes_ = new ArrayList<RecordBatch.Type>();
+			for (int i = 0; i < columnNames_.length; i++)
+			{
+				String fieldType = toFieldType(attributeTypes_.get(columnNames_[i]));
+				fields_.add(new Field(columnNames_[i], fieldType));
+				columnTypes_.add(toColumnType(fieldType));
+			}
+
+			// Indexing once the rows are in is faster than keeping the
+			// indexes up to date with every batch
+			keyDeferred_ = deferIndexes_ && !primaryKey_.isEmpty();
+			indexesDeferred_ = (deferIndexes_ || stagedReplace_) && !indexes_.isEmpty();
+
+			// Create the DataStore table before any batches are uploaded
+			openedAt_ = System.currentTimeMillis();
+			if (stagedReplace_)
+			{
+				// Load a new resource and leave the current one for readers
+				// until every row is in
+				replace_ = new StagedReplace(new Client( connection_, apiKey_), alias);
+				findPreviousResource(resourceId, resourceName);
+				create(fields_, "", resourceName);
+			}
+			else
+			{
+				create(fields_, resourceId, resourceName);
+			}
+			loadStartedAt_ = System.currentTimeMillis();
+
+			if (skipUnchanged_)
+			{
+				openRowHashIndex();
+			}
+			if (resumeLoads_)
+			{
+				openCheckpoint();
+			}
+
+			records_ = newBatch();
+			batchSizer_ = new BatchSizer(batchSize_, adaptiveBatch_, targetBatchBytes_, batchLatencyMs_);
+		}
+
+		/**
+		 * Adds a feature to the batch being filled, queueing the batch for
+		 * upload once the batch sizer considers it full.
+		 * @throws Exception If an earlier batch could not be uploaded
+		 */
+		void write(IFMEFeature feature) throws Exception
+		{
+			readRow(feature, columnNames_, row_);
+
+			rowCount_++;
+			if (checkpoint_ != null && rowCount_ <= resumeRows_)
+			{
+				// Already uploaded by the interrupted run
+				rowsHash_ = LoadCheckpoint.chain(rowsHash_, RowHashIndex.hash(row_));
+				if (rowCount_ == resumeRows_)
+				{
+					checkResumedRows();
+				}
+				return;
+			}
+			if (rowHashes_ != null && !rowHashes_.update(row_))
+			{
+				// Already in the DataStore as it is
+				return;
+			}
+
+			try
+			{
+				if (spoolLog_ != null)
+				{
+					// The spool reader adds the row to a batch
+					if (spoolFailure_ != null)
+					{
+						throw spoolFailure_;
+					}
+					spoolLog_.append(index_, row_);
+				}
+				else
+				{
+					append(row_);
+				}
+			}
+			catch (Exception e)
+			{
+				gLogFile.logMessageString("Error uploading to the DataStore: " + e.toString(), IFMELogFile.FME_ERROR);
+				throw e;
+			}
+		}
+
+		/**
+		 * Adds a row to the batch being filled and queues the batch for
+		 * upload once the batch sizer considers it full. Called by the FME
+		 * thread, or by the spool reader thread when spooling.
+		 * @throws Exception If an earlier batch could not be uploaded
+		 */
+		void append(String[] row) throws Exception
+		{
+			records_.add(row);
+			if (checkpoint_ != null)
+			{
+				batchedRows_++;
+				batchedHash_ = LoadCheckpoint.chain(batchedHash_, RowHashIndex.hash(row));
+			}
+			if (spoolLog_ != null)
+			{
+				// Keep the row on disk until the batch is uploaded
+				spoolLog_.hold(records_);
+			}
+
+			// Upload the data in batches
+			if (batchSizer_.isFull(records_))
+			{
+				long start = System.nanoTime();
+				submit(records_);
+				// Carry on with a batch that has already been uploaded
+				records_ = nextBatch();
+				metrics_.queueWaited(System.nanoTime() - start);
+			}
+		}
+
+		/**
+		 * Queues the batch being filled for upload.
+		 */
+		void submitRemaining() throws Exception
+		{
+			if (checkpoint_ != null && rowCount_ < resumeRows_)
+			{
+				checkResumedRows();
+			}
+			if (records_ != null && !records_.isEmpty())
+			{
+				submit(records_);
+			}
+			records_ = null;
+		}
+
+		/**
+		 * Adds the deferred primary key and indexes, then deletes missing
+		 * rows and saves the row hash index or finishes the staged replace,
+		 * once every batch of every table has been uploaded.
+		 */
+		void commit() throws Exception
+		{
+			long loadedAt = System.currentTimeMillis();
+			if (keyDeferred_ || indexesDeferred_)
+			{
+				createDeferredIndexes();
+				gLogFile.logMessageString("Timings for " + describe() + ": created in " + (loadStartedAt_ - openedAt_) + " ms, loaded in "
+						+ (loadedAt - loadStartedAt_) + " ms, indexed in " + (System.currentTimeMillis() - loadedAt) + " ms", IFMELogFile.FME_INFORM);
+			}
+			if (checkpoint_ != null)
+			{
+				// Every row is in, the next run starts over
+				checkpoint_.delete();
+				checkpoint_ = null;
+			}
+			if (stagedReplace_)
+			{
+				swap();
+				return;
+			}
+			if (rowHashes_ == null)
+			{
+				return;
+			}
+			gLogFile.logMessageString(rowHashes_.getUnchangedCount() + " unchanged rows skipped in " + describe(), IFMELogFile.FME_INFORM);
+			if (deleteMissing_)
+			{
+				deleteMissingRows(rowHashes_.getMissingKeys());
+			}
+			// Only remember the rows once they are all in the DataStore
+			rowHashes_.commit();
+			rowHashes_ = null;
+		}
+
+		/**
+		 * Logs how the upload went and lets go of the row hash index if it
+		 * was not committed. A staging table that never replaced the
+		 * previous one is deleted. A checkpoint that was not committed is
+		 * left for the next run to resume from.
+		 */
+		void close()
+		{
+			if (stagedReplace_ && !swapped_ && datastoreId_.length() != 0)
+			{
+				gLogFile.logMessageString("Deleting the unfinished staging resource " + datastoreId_ + ", " + describe() + " is unchanged", IFMELogFile.FME_WARN);
+				deleteResource(datastoreId_);
+			}
+			gLogFile.logMessageString(uploadedRows_.get() + " of " + rowCount_ + " rows uploaded to " + describe() + " in "
+					+ uploadedBatches_.get() + " batches", IFMELogFile.FME_INFORM);
+			if (batchSizer_ != null)
+			{
+				gLogFile.logMessageString(batchSizer_.summary(), IFMELogFile.FME_INFORM);
+			}
+			if (rowHashes_ != null)
+			{
+				rowHashes_.discard();
+				rowHashes_ = null;
+			}
+			if (checkpoint_ != null)
+			{
+				gLogFile.logMessageString("The load of " + describe() + " was not finished, the next run resumes after the first "
+						+ checkpoint_.getRows() + " rows", IFMELogFile.FME_INFORM);
+				checkpoint_ = null;
+			}
+		}
+
+		/**
+		 * Adds the primary key and indexes that were left out when the table
+		 * was created, with a final datastore_create call.
+		 * @throws CKANException If they could not be created, for example
+		 *                       because of duplicate primary key values
+		 */
+		private void createDeferredIndexes() throws CKANException
+		{
+			Client ckanClient = new Client( connection_, apiKey_);
+
+			DataStore ds = new DataStore();
+			ds.setResource_id(datastoreId_);
+			ds.setFields(fields_);
+			if (keyDeferred_)
+			{
+				ds.setPrimary_key(primaryKey_);
+			}
+			if (indexesDeferred_)
+			{
+				ds.setIndexes(indexes_);
+			}
+			ds.setForce("True");
+			ckanClient.createDataStore(ds,5);
+			keyDeferred_ = false;
+			indexesDeferred_ = false;
+		}
+
+		/**
+		 * Finds the resource a staged replace takes over from: the one the
+		 * alias reads from, which is the staging resource of the last run.
+		 * Before the first staged replace the alias does not exist yet, and
+		 * the configured resource, or the one named after the feature type,
+		 * is replaced instead.
+		 */
+		private void findPreviousResource(String resourceId, String resourceName)
+		{
+			try
+			{
+				if (replace_.findPrevious())
+				{
+					return;
+				}
+			}
+			catch (CKANException cke)
+			{
+				// Replacing the wrong resource would lose data, so none is
+				gLogFile.logMessageString("Unable to look up alias " + replace_.getAlias() + ", no previous resource of " + describe()
+						+ " will be deleted: " + cke.toString(), IFMELogFile.FME_WARN);
+				return;
+			}
+			replace_.setPrevious(resourceId.length() != 0 ? resourceId : findResourceId(resourceName));
+		}
+
+		/**
+		 * Finishes a staged replace: gives the alias to the new resource,
+		 * then deletes the previous one. If the alias cannot be created, it
+		 * is given back and the previous resource is kept.
+		 * @throws CKANException If the alias could not be created
+		 */
+		private void swap() throws CKANException
+		{
+			boolean replacing = replace_.swap(datastoreId_);
+			if (replace_.getAlias().length() != 0)
+			{
+				gLogFile.logMessageString("Alias " + replace_.getAlias() + " now reads from resource " + datastoreId_, IFMELogFile.FME_INFORM);
+			}
+			else
+			{
+				gLogFile.logMessageString("No alias for " + describe() + ", readers have to use resource " + datastoreId_, IFMELogFile.FME_WARN);
+			}
+			swapped_ = true;
+
+			// Only now that readers have moved on is the previous table unused
+			if (replacing)
+			{
+				deleteResource(replace_.getPrevious());
+			}
+		}
+
+		/**
+		 * Deletes a resource and its DataStore table, warning if it fails.
+		 */
+		private void deleteResource(String id)
+		{
+			try
+			{
+				replace_.delete(id);
+			}
+			catch (CKANException cke)
+			{
+				gLogFile.logMessageString("Unable to delete resource " + id + ": " + cke.toString(), IFMELogFile.FME_WARN);
+			}
+		}
+
+		/**
+		 * Queues a batch for upload, numbering it for the checkpoint.
+		 */
+		private void submit(RecordBatch batch) throws Exception
+		{
+			if (checkpoint_ != null)
+			{
+				checkpoint_.queued(batch, batchedRows_, batchedHash_);
+			}
+			uploader_.submit(sender_, batch);
+		}
+
+		private String describe()
+		{
+			return featureType_ == null ? "the DataStore" : "the DataStore table of " + featureType_;
+		}
+
+		private RecordBatch newBatch()
+		{
+			batchCount_++;
+			return new RecordBatch(attributeNames_, columnTypes_, batchSize_);
+		}
+
+		/**
+		 * Returns a batch that is free to be filled, waiting for an upload
+		 * to finish once every batch the table may hold has been created.
+		 */
+		private RecordBatch nextBatch() throws InterruptedException
+		{
+			RecordBatch batch = freeBatches_.poll();
+			if (batch != null)
+			{
+				return batch;
+			}
+			// Every batch that can be queued or uploading, plus the one being filled
+			if (batchCount_ <= uploadThreads_ * 2)
+			{
+				return newBatch();
+			}
+			return freeBatches_.take();
+		}
+
+		/**
+		 * Opens the row hash index of the DataStore table, which lets rows
+		 * that have not changed since the last run be skipped. This needs a
+		 * primary key to tell the rows apart.
+		 */
+		private void openRowHashIndex()
+		{
+			if (primaryKey_.isEmpty() || datastoreId_ == null || datastoreId_.length() == 0)
+			{
+				gLogFile.logMessageString("Skipping unchanged rows needs a primary key and a resource, uploading every row to " + describe(), IFMELogFile.FME_WARN);
+				return;
+			}
+
+			int[] keyColumns = new int[primaryKey_.size()];
+			for (int i = 0; i < keyColumns.length; i++)
+			{
+				keyColumns[i] = attributeNames_.indexOf(primaryKey_.get(i));
+			}
+
+			File indexFile = new File(new File(dataset_).getAbsoluteFile().getParentFile(), datastoreId_ + ".rowhash");
+			try
+			{
+				rowHashes_ = new RowHashIndex(indexFile, schemaHash(), keyColumns);
+				gLogFile.logMessageString("Skipping rows unchanged since the last run, using " + indexFile.getPath(), IFMELogFile.FME_INFORM);
+			}
+			catch (IOException e)
+			{
+				gLogFile.logMessageString("Unable to open the row index " + indexFile.getPath() + ", uploading every row: " + e.toString(), IFMELogFile.FME_WARN);
+			}
+		}
+
+		/**
+		 * Opens the checkpoint of the load, which lets a run that was
+		 * interrupted be resumed after the rows it uploaded. Rows of batches
+		 * that were being uploaded when the run stopped are sent again, so
+		 * this needs a primary key to upsert them rather than insert them
+		 * twice.
+		 */
+		private void openCheckpoint()
+		{
+			if (primaryKey_.isEmpty() || keyDeferred_ || datastoreId_ == null || datastoreId_.length() == 0)
+			{
+				gLogFile.logMessageString("Resuming an interrupted load needs a primary key created with the table and a resource, "
+						+ describe() + " will be loaded from the start if interrupted", IFMELogFile.FME_WARN);
+				return;
+			}
+			if (stagedReplace_ || rowHashes_ != null)
+			{
+				// A staging table is new every run, and unchanged rows are skipped anyway
+				return;
+			}
+
+			File checkpointFile = new File(new File(dataset_).getAbsoluteFile().getParentFile(), datastoreId_ + ".checkpoint");
+			try
+			{
+				checkpoint_ = new LoadCheckpoint(checkpointFile, datastoreId_, schemaHash());
+				resumeRows_ = checkpoint_.getResumeRows();
+				batchedRows_ = resumeRows_;
+				batchedHash_ = checkpoint_.getResumeHash();
+				if (resumeRows_ > 0)
+				{
+					gLogFile.logMessageString("Resuming the interrupted load of " + describe() + ", skipping the first " + resumeRows_
+							+ " rows already uploaded", IFMELogFile.FME_INFORM);
+				}
+			}
+			catch (IOException e)
+			{
+				gLogFile.logMessageString("Unable to read the checkpoint " + checkpointFile.getPath() + ", loading every row: " + e.toString(), IFMELogFile.FME_WARN);
+			}
+		}
+
+		/**
+		 * Makes sure the rows skipped are the ones the interrupted run
+		 * uploaded. If not, the checkpoint is deleted so that the next run
+		 * loads every row.
+		 * @throws Exception If the rows are not the same
+		 */
+		private void checkResumedRows() throws Exception
+		{
+			if (rowCount_ == resumeRows_ && rowsHash_ == checkpoint_.getResumeHash())
+			{
+				gLogFile.logMessageString(resumeRows_ + " rows uploaded by the interrupted run skipped in " + describe(), IFMELogFile.FME_INFORM);
+				return;
+			}
+			checkpoint_.delete();
+			checkpoint_ = null;
+			String message = "The first " + resumeRows_ + " rows of " + describe() + " are not the ones uploaded by the interrupted run, "
+					+ "the features must be written in the same order to resume. Run again to load every row";
+			gLogFile.logMessageString(message, IFMELogFile.FME_ERROR);
+			throw new Exception(message);
+		}
+
+		/**
+		 * Hashes the columns, their types and the primary key, which the row
+		 * hash index and the checkpoint are only valid for.
+		 */
+		private long schemaHash()
+		{
+			List<String> schema = new ArrayList<String>();
+			for (int i = 0; i < attributeNames_.size(); i++)
+			{
+				schema.add(attributeNames_.get(i));
+				schema.add(attributeTypes_.get(attributeNames_.get(i)));
+			}
+			schema.addAll(primaryKey_);
+			return RowHashIndex.hash(schema.toArray(new String[schema.size()]));
+		}
+
+		/**
+		 * Deletes the rows that were written by the previous run but not by
+		 * this one from the DataStore.
+		 * @param keys The primary key values of each row to delete
+		 * @throws CKANException If the rows could not be deleted
+		 */
+		private void deleteMissingRows(List<String[]> keys) throws CKANException
+		{
+			Client ckanClient = new Client( connection_, apiKey_);
+
+			int i = 0;
+			while (i < keys.size())
+			{
+				Map<String, Object> filters = new LinkedHashMap<String, Object>();
+				if (primaryKey_.size() == 1)
+				{
+					// A single key column can delete many rows with one filter
+					List<String> values = new ArrayList<String>();
+					for (; i < keys.size() && values.size() < DELETE_BATCH_SIZE; i++)
+					{
+						values.add(keys.get(i)[0]);
+					}
+					filters.put(primaryKey_.get(0), values);
+				}
+				else
+				{
+					for (int k = 0; k < primaryKey_.size(); k++)
+					{
+						filters.put(primaryKey_.get(k), keys.get(i)[k]);
+					}
+					i++;
+				}
+
+				DataStore ds = new DataStore();
+				ds.setResource_id(datastoreId_);
+				ds.setForce("True");
+				ds.setFilters(filters);
+				ckanClient.deleteDataStoreRecords(ds);
+			}
+			gLogFile.logMessageString(keys.size() + " rows not written by this run deleted from " + describe(), IFMELogFile.FME_INFORM);
+		}
+
+		/**
+		 * Creates the DataStore table, along with a new resource if there
+		 * is none to write to.
+		 * @throws CKANException If the table could not be created, as no
+		 *                       batch could be uploaded to it
+		 */
+		private void create(List<Field> fields, String resourceId, String resourceName) throws CKANException {
+			Client ckanClient = new Client( connection_, apiKey_);
+			datastoreId_ = resourceId;
+			
+	        try {
+	        	DataStore ds = new DataStore();
+	            
+	        	ds.setFields(fields);
+	            ds.setForce("True");
+	            if (resourceId.length() != 0)
+	            {
+	            	ds.setResource_id(resourceId);
+	            }
+	            else
+	            {
+	            	// No resource to update, let datastore_create make a new one
+	            	Resource rs = new Resource();
+	            	rs.setPackage_id(packageId_);
+	            	rs.setName(resourceName);
+	            	rs.setDescription(resourceDescription_);
+	            	rs.setFormat("CSV");
+	            	ds.setResource(rs);
+	            }
+	            if (!keyDeferred_ && !primaryKey_.isEmpty())
+	            {
+	            	ds.setPrimary_key(primaryKey_);
+	            }
+	            if (!indexesDeferred_ && !indexes_.isEmpty())
+	            {
+	            	ds.setIndexes(indexes_);
+	            }
+	            
+	            DataStore result = ckanClient.createDataStore(ds,5);
+	            datastoreId_ = result.getResource_id();
+	            gLogFile.logMessageString("DataStore created at "+ domain_ +"/dataset/"+ packageId_ +"/resource/"+datastoreId_, IFMELogFile.FME_INFORM);
+	            return;
+	        } catch ( CKANException cke ) {
+	        	gLogFile.logMessageString("Unable to create " + describe() + ": " + cke.toString(), IFMELogFile.FME_ERROR);
+	        	throw cke;
+	        }
+		}
+		
+		/**
+		 * Uploads a batch of records to the DataStore. This is called from
+		 * the upload threads, so it leaves logging to the FME thread.
+		 * @param records    The batch of records
+		 * @throws CKANException If the batch could not be uploaded
+		 */
+		private void upload(RecordBatch records) throws CKANException {
+			Client ckanClient = new Client( connection_, apiKey_);
+			
+	    	DataStore ds = new DataStore();
+	    	
+	        ds.setRecordBatch(records);
+	        ds.setResource_id(datastoreId_);
+	        ds.setForce("True");
+	        // With a primary key, rows that are already in the table are updated.
+	        // Without one yet every row is new.
+	        ds.setMethod(primaryKey_.isEmpty() || keyDeferred_ ? "insert" : "upsert");
+	        
+	        ckanClient.upsertDataStore(ds,5);
+		}
 	}
 }
@@ -0,0 +1,231 @@
+package ckan.ckanWriter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import ckan.CKANclient.RecordBatch;
+
+/**
+ * Records how far the load of a DataStore table has got, so that a run that
+ * was interrupted can be resumed by the next one without sending again the
+ * rows that are already in the table.
+ *
+ * Batches are numbered as they are queued and may be uploaded out of order
+ * by the upload threads. The checkpoint only moves forward over batches
+ * that have all been uploaded, so every row before it is in the DataStore.
+ * Along with the row count it keeps a running hash of the rows, which the
+ * next run uses to make sure the rows it skips are the same ones in the
+ * same order. The file is replaced as a whole each time it is written, and
+ * deleted once the load is finished.
+ *
+ * File layout, one entry per line: "resource <id>", "schema <hash>",
+ * "batch <number>", "rows <count>", "hash <hash>".
+ */
+public class LoadCheckpoint
+{
+	private final File file_;
+	private final File tempFile_;
+	private final String resourceId_;
+	private final long schemaHash_;
+
+	// Where the previous run stopped, if it was loading the same table
+	private long resumeRows_ = 0;
+	private long resumeHash_ = 0;
+
+	// The number of rows the checkpoint file says are in the table
+	private long rows_ = 0;
+
+	// The number of each batch being uploaded, the row count and hash at
+	// the end of every batch past the checkpoint, and the batches past the
+	// checkpoint that have been uploaded
+	private final Map<RecordBatch, Integer> queued_ = new IdentityHashMap<RecordBatch, Integer>();
+	private final Map<Integer, long[]> ends_ = new HashMap<Integer, long[]>();
+	private final Set<Integer> uploaded_ = new HashSet<Integer>();
+	private int nextBatch_ = 1;
+	private int lastBatch_ = 0;
+
+	/**
+	 * Opens the checkpoint of a DataStore table.
+	 * @param file       The checkpoint file, which does not have to exist yet
+	 * @param resourceId The resource of the table
+	 * @param schemaHash A hash of the table's columns; a checkpoint written
+	 *                   for a different schema is ignored
+	 */
+	public LoadCheckpoint(File file, String resourceId, long schemaHash) throws IOException
+	{
+		file_ = file;
+		tempFile_ = new File(file.getPath() + ".tmp");
+		resourceId_ = resourceId;
+		schemaHash_ = schemaHash;
+
+		if (file_.exists())
+		{
+			readPrevious();
+		}
+		rows_ = resumeRows_;
+	}
+
+	/**
+	 * Chains the hash of a row onto the running hash of the rows before it.
+	 */
+	public static long chain(long hash, long rowHash)
+	{
+		return (hash ^ rowHash) * 0x100000001b3L;
+	}
+
+	/**
+	 * The number of rows the previous run got into the table, 0 if there
+	 * is nothing to resume.
+	 */
+	public long getResumeRows()
+	{
+		return resumeRows_;
+	}
+
+	/**
+	 * The running hash of the rows the previous run got into the table.
+	 */
+	public long getResumeHash()
+	{
+		return resumeHash_;
+	}
+
+	/**
+	 * Numbers a batch as it is queued for upload.
+	 * @param batch The batch, which must not be queued again before it is uploaded
+	 * @param rows  The number of rows of the table up to the end of the batch
+	 * @param hash  The running hash of those rows
+	 */
+	public synchronized void queued(RecordBatch batch, long rows, long hash)
+	{
+		Integer number = Integer.valueOf(nextBatch_++);
+		queued_.put(batch, number);
+		ends_.put(number, new long[] { rows, hash });
+	}
+
+	/**
+	 * Moves the checkpoint forward once a batch has been uploaded, as far
+	 * as every batch before it has been uploaded too.
+	 * @param batch A batch that was queued and has been uploaded
+	 */
+	public synchronized void uploaded(RecordBatch batch)
+	{
+		Integer number = queued_.remove(batch);
+		if (number == null)
+		{
+			return;
+		}
+		uploaded_.add(number);
+
+		long[] end = null;
+		while (uploaded_.remove(Integer.valueOf(lastBatch_ + 1)))
+		{
+			lastBatch_++;
+			end = ends_.remove(Integer.valueOf(lastBatch_));
+		}
+		if (end != null)
+		{
+			try
+			{
+				write(end[0], end[1]);
+			}
+			catch (IOException e)
+			{
+				// The checkpoint already written is still right, only not as far along
+				tempFile_.delete();
+			}
+		}
+	}
+
+	/**
+	 * The number of rows a run resuming from the checkpoint as it is now
+	 * would skip.
+	 */
+	public synchronized long getRows()
+	{
+		return rows_;
+	}
+
+	/**
+	 * Deletes the checkpoint once the load is finished.
+	 */
+	public synchronized void delete()
+	{
+		file_.delete();
+		tempFile_.delete();
+	}
+
+	private void write(long rows, long hash) throws IOException
+	{
+		Writer writer = new OutputStreamWriter(new FileOutputStream(tempFile_), "UTF-8");
+		try
+		{
+			writer.write("resource " + resourceId_ + "\nschema " + Long.toHexString(schemaHash_) + "\nbatch " + lastBatch_
+					+ "\nrows " + rows + "\nhash " + Long.toHexString(hash) + "\n");
+		}
+		finally
+		{
+			writer.close();
+		}
+		// Replace the checkpoint in one step so a crash never leaves half of one
+		if (!tempFile_.renameTo(file_))
+		{
+			file_.delete();
+			if (!tempFile_.renameTo(file_))
+			{
+				throw new IOException("Unable to replace the checkpoint " + file_.getPath());
+			}
+		}
+		rows_ = rows;
+	}
+
+	private void readPrevious() throws IOException
+	{
+		Map<String, String> entries = new HashMap<String, String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file_), "UTF-8"));
+		try
+		{
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				String[] entry = line.trim().split(" ");
+				if (entry.length == 2)
+				{
+					entries.put(entry[0], entry[1]);
+				}
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+
+		try
+		{
+			if (resourceId_.equals(entries.get("resource"))
+					&& Long.toHexString(schemaHash_).equals(entries.get("schema")))
+			{
+				resumeRows_ = Long.parseLong(entries.get("rows"));
+				resumeHash_ = new BigInteger(entries.get("hash"), 16).longValue();
+			}
+		}
+		catch (RuntimeException e)
+		{
+			// Not a complete checkpoint, load every row
+			resumeRows_ = 0;
+			resumeHash_ = 0;
+		}
+	}
+}
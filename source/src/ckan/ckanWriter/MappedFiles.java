@@ -0,0 +1,83 @@
+package ckan.ckanWriter;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * Unmaps memory-mapped files as soon as they are done with.
+ *
+ * Java only unmaps a file once its buffer is garbage collected, and until
+ * then Windows will not delete or replace the file. The JDK's own cleaner
+ * unmaps it straight away instead: through sun.misc.Unsafe on Java 9 and
+ * later, and through the buffer's Cleaner on Java 8 and earlier. Where
+ * neither is allowed the buffer is left to the garbage collector, and the
+ * callers leave the file to be deleted by the next run.
+ */
+final class MappedFiles
+{
+	// Unsafe.invokeCleaner(ByteBuffer) and the Unsafe instance, on Java 9 and later
+	private static final Method INVOKE_CLEANER;
+	private static final Object UNSAFE;
+	static
+	{
+		Method invokeCleaner = null;
+		Object unsafe = null;
+		try
+		{
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			unsafe = theUnsafe.get(null);
+		}
+		catch (Exception e)
+		{
+			// Java 8 or earlier, the buffer's Cleaner is used instead
+			invokeCleaner = null;
+		}
+		INVOKE_CLEANER = invokeCleaner;
+		UNSAFE = unsafe;
+	}
+
+	private MappedFiles()
+	{
+	}
+
+	/**
+	 * Unmaps a buffer. The buffer must not be used again by any thread, as
+	 * reading an unmapped buffer crashes the JVM.
+	 * @param buffer The buffer to unmap, or null
+	 * @return Whether the buffer was unmapped, false if the JVM does not
+	 *         allow it and the file stays mapped until it is collected
+	 */
+	static boolean unmap(MappedByteBuffer buffer)
+	{
+		if (buffer == null)
+		{
+			return true;
+		}
+		try
+		{
+			if (INVOKE_CLEANER != null)
+			{
+				INVOKE_CLEANER.invoke(UNSAFE, buffer);
+				return true;
+			}
+			Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			Object cleaner = cleanerMethod.invoke(buffer);
+			if (cleaner == null)
+			{
+				return false;
+			}
+			cleaner.getClass().getMethod("clean").invoke(cleaner);
+			return true;
+		}
+		catch (Exception e)
+		{
+			return false;
+		}
+	}
+}
@@ -0,0 +1,347 @@
+package ckan.ckanWriter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import ckan.CKANclient.CKANException;
+import ckan.CKANclient.Client;
+import ckan.CKANclient.MultipartUpload;
+
+/**
+ * Uploads the file of a resource in fixed size parts, several at the same
+ * time, so that a dropped connection only costs the parts being sent and
+ * no single request is larger than a part.
+ *
+ * Every part sent is recorded, with a CRC-32 of its bytes, in a sidecar
+ * file next to the uploaded file (eg: data.csv.parts). If the upload
+ * fails, the next run resumes it as long as the server still has it and
+ * the file is the same size: a part is skipped if its bytes still match
+ * the recorded CRC, and sent again otherwise, so a file written again with
+ * changes still ends up whole on the server. The sidecar file is deleted
+ * once the upload is finished.
+ *
+ * Sidecar layout, one entry per line: "resource <id>", "upload <id>",
+ * "size <bytes>", "partsize <bytes>", then "part <number> <crc>" for each
+ * part sent.
+ */
+public class PartUploader
+{
+	private final Client client_;
+	private final File file_;
+	private final File sidecar_;
+	private final long partSize_;
+	private final int threads_;
+
+	private volatile Exception failure_ = null;
+	private Writer sidecarWriter_ = null;
+	private int partCount_ = 0;
+	private final AtomicInteger sentParts_ = new AtomicInteger();
+	private int skippedParts_ = 0;
+	private final AtomicLong sentBytes_ = new AtomicLong();
+	private boolean resumed_ = false;
+
+	/**
+	 * Constructor
+	 * @param client   The client to send the parts with
+	 * @param file     The file to upload
+	 * @param partSize The size of every part but the last, in bytes
+	 * @param threads  The number of parts sent at the same time
+	 */
+	public PartUploader(Client client, File file, long partSize, int threads)
+	{
+		client_ = client;
+		file_ = file;
+		sidecar_ = sidecarFile(file);
+		partSize_ = partSize;
+		threads_ = Math.max(1, threads);
+	}
+
+	/**
+	 * Returns the resource of an unfinished upload of a file, so that a
+	 * resource created by a failed run is resumed rather than created again.
+	 * @param file The file to upload
+	 * @return The resource id, empty if the file has no unfinished upload
+	 */
+	public static String findResourceId(File file)
+	{
+		Map<String, String> header = new HashMap<String, String>();
+		try
+		{
+			readSidecar(sidecarFile(file), header, new HashMap<Integer, Long>());
+		}
+		catch (IOException e)
+		{
+			return "";
+		}
+		String resourceId = header.get("resource");
+		return resourceId == null ? "" : resourceId;
+	}
+
+	/**
+	 * Uploads the file to a resource, resuming an unfinished upload of the
+	 * same file to the same resource if there is one.
+	 * @param resourceId The resource the file belongs to
+	 * @throws Exception The error of the first part that failed, in which
+	 *                   case the sidecar file is kept for the next run
+	 */
+	public void upload(String resourceId) throws Exception
+	{
+		long size = file_.length();
+		partCount_ = (int) Math.max(1, (size + partSize_ - 1) / partSize_);
+
+		Map<Integer, Long> sentParts = new HashMap<Integer, Long>();
+		String uploadId = resume(resourceId, size, sentParts);
+		if (uploadId == null)
+		{
+			sentParts.clear();
+			uploadId = client_.initiateMultipartUpload(resourceId, file_.getName(), size).getId();
+			sidecarWriter_ = new OutputStreamWriter(new FileOutputStream(sidecar_, false), "UTF-8");
+			sidecarWriter_.write("resource " + resourceId + "\nupload " + uploadId + "\nsize " + size
+					+ "\npartsize " + partSize_ + "\n");
+			sidecarWriter_.flush();
+		}
+		else
+		{
+			resumed_ = true;
+			sidecarWriter_ = new OutputStreamWriter(new FileOutputStream(sidecar_, true), "UTF-8");
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads_, new ThreadFactory()
+		{
+			private final AtomicInteger count_ = new AtomicInteger();
+
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "ckan-part-uploader-" + count_.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		try
+		{
+			final String id = uploadId;
+			for (int i = 0; i < partCount_ && failure_ == null; i++)
+			{
+				final int partNumber = i + 1;
+				final long offset = i * partSize_;
+				final long length = Math.min(partSize_, size - offset);
+				Long sentCrc = sentParts.get(partNumber);
+				if (sentCrc != null && sentCrc.longValue() == crc(offset, length))
+				{
+					skippedParts_++;
+					continue;
+				}
+				executor.execute(new Runnable()
+				{
+					public void run()
+					{
+						try
+						{
+							// Skip the remaining parts once one has failed
+							if (failure_ == null)
+							{
+								long crc = crc(offset, length);
+								client_.uploadMultipartPart(id, partNumber, file_, offset, length);
+								recordPart(partNumber, crc);
+								sentParts_.incrementAndGet();
+								sentBytes_.addAndGet(length);
+							}
+						}
+						catch (Exception e)
+						{
+							fail(e);
+						}
+					}
+				});
+			}
+		}
+		finally
+		{
+			executor.shutdown();
+			while (!executor.awaitTermination(1, TimeUnit.SECONDS))
+			{
+				// Keep waiting for the slowest part
+			}
+			sidecarWriter_.close();
+		}
+		if (failure_ != null)
+		{
+			throw failure_;
+		}
+
+		client_.finishMultipartUpload(uploadId, resourceId);
+		sidecar_.delete();
+	}
+
+	public int getPartCount()
+	{
+		return partCount_;
+	}
+
+	public int getSentPartCount()
+	{
+		return sentParts_.get();
+	}
+
+	public int getSkippedPartCount()
+	{
+		return skippedParts_;
+	}
+
+	public long getSentBytes()
+	{
+		return sentBytes_.get();
+	}
+
+	/**
+	 * Abandons the upload on the server and forgets its parts, for a
+	 * failed upload that is not worth resuming.
+	 * @param resourceId The resource the file belongs to
+	 * @throws CKANException If the server could not abandon the upload
+	 */
+	public void abort(String resourceId) throws CKANException
+	{
+		sidecar_.delete();
+		client_.abortMultipartUpload(resourceId);
+	}
+
+	/**
+	 * Whether an unfinished upload from an earlier run was resumed.
+	 */
+	public boolean isResumed()
+	{
+		return resumed_;
+	}
+
+	/**
+	 * Reads the sidecar file of an unfinished upload and checks that it can
+	 * be resumed. An upload that cannot is abandoned on the server.
+	 * @param sentParts Filled with the CRC of each part already sent
+	 * @return The id of the upload to resume, or null to start a new one
+	 */
+	private String resume(String resourceId, long size, Map<Integer, Long> sentParts) throws Exception
+	{
+		Map<String, String> header = new HashMap<String, String>();
+		try
+		{
+			readSidecar(sidecar_, header, sentParts);
+		}
+		catch (IOException e)
+		{
+			// No unfinished upload, or a sidecar file that cannot be read
+		}
+
+		MultipartUpload current = client_.checkMultipartUpload(resourceId);
+		if (current == null)
+		{
+			return null;
+		}
+		String uploadId = header.get("upload");
+		if (resourceId.equals(header.get("resource")) && current.getId() != null && current.getId().equals(uploadId)
+				&& String.valueOf(size).equals(header.get("size"))
+				&& String.valueOf(partSize_).equals(header.get("partsize")))
+		{
+			return uploadId;
+		}
+		// The parts of another file would be joined with the new ones
+		client_.abortMultipartUpload(resourceId);
+		return null;
+	}
+
+	private synchronized void recordPart(int partNumber, long crc) throws IOException
+	{
+		sidecarWriter_.write("part " + partNumber + " " + Long.toHexString(crc) + "\n");
+		sidecarWriter_.flush();
+	}
+
+	private synchronized void fail(Exception e)
+	{
+		if (failure_ == null)
+		{
+			failure_ = e;
+		}
+	}
+
+	/**
+	 * Computes the CRC-32 of a range of the file.
+	 */
+	private long crc(long offset, long length) throws IOException
+	{
+		CRC32 crc = new CRC32();
+		RandomAccessFile file = new RandomAccessFile(file_, "r");
+		try
+		{
+			file.seek(offset);
+			byte[] buffer = new byte[65536];
+			long remaining = length;
+			while (remaining > 0)
+			{
+				int read = file.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+				if (read < 0)
+				{
+					break;
+				}
+				crc.update(buffer, 0, read);
+				remaining -= read;
+			}
+		}
+		finally
+		{
+			file.close();
+		}
+		return crc.getValue();
+	}
+
+	private static File sidecarFile(File file)
+	{
+		return new File(file.getPath() + ".parts");
+	}
+
+	private static void readSidecar(File sidecar, Map<String, String> header, Map<Integer, Long> sentParts) throws IOException
+	{
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(sidecar), "UTF-8"));
+		try
+		{
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				String[] entry = line.trim().split(" ");
+				try
+				{
+					if (entry.length == 3 && entry[0].equals("part"))
+					{
+						sentParts.put(Integer.valueOf(entry[1]), Long.valueOf(entry[2], 16));
+					}
+					else if (entry.length == 2)
+					{
+						header.put(entry[0], entry[1]);
+					}
+				}
+				catch (NumberFormatException e)
+				{
+					// A line cut short by a crash, the part is sent again
+				}
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+}
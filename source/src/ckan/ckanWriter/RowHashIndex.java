@@ -0,0 +1,407 @@
+package ckan.ckanWriter;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Remembers a 64-bit hash of every row written to a DataStore table, keyed
+ * by its primary key, so that a later run only has to send the rows that
+ * are new or have changed.
+ *
+ * The index from the previous run is memory-mapped and searched in place.
+ * The index for the current run is built as rows are written and only
+ * replaces the previous one when commit() is called, so a failed run
+ * leaves the previous index untouched. The previous index is unmapped
+ * once it is done with; where the JVM does not allow that and the file
+ * cannot be deleted while mapped, it is moved aside and deleted by the
+ * next run.
+ *
+ * File layout: a header (magic, version, schema hash, row count), then one
+ * 20 byte entry per row sorted by key hash (key hash, row hash, offset of
+ * the key), then the key values of every row as UTF-8.
+ */
+public class RowHashIndex
+{
+	private static final int MAGIC = 0x434b5248; // "CKRH"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 4 + 4 + 8 + 4;
+	private static final int ENTRY_SIZE = 8 + 8 + 4;
+
+	// Separates the values of a multi-column key
+	private static final char KEY_SEPARATOR = '\u0000';
+
+	private final File file_;
+	private final File keysFile_;
+	// The previous index, moved aside when it could not be deleted
+	private final File oldFile_;
+	private final long schemaHash_;
+	private final int[] keyColumns_;
+
+	// The index of the previous run, if there is one for this schema
+	private RandomAccessFile previousFile_ = null;
+	private MappedByteBuffer previous_ = null;
+	private int previousCount_ = 0;
+	private BitSet seen_ = null;
+
+	// The index of the current run
+	private DataOutputStream keys_;
+	private int keysLength_ = 0;
+	private long[] keyHashes_ = new long[1024];
+	private long[] rowHashes_ = new long[1024];
+	private int[] keyOffsets_ = new int[1024];
+	private int count_ = 0;
+	private int unchanged_ = 0;
+	private final StringBuilder keyBuffer_ = new StringBuilder();
+
+	/**
+	 * Opens the index of a DataStore table.
+	 * @param file       The index file, which does not have to exist yet
+	 * @param schemaHash A hash of the table's columns; an index written for
+	 *                   a different schema is ignored
+	 * @param keyColumns The row positions of the primary key columns
+	 */
+	public RowHashIndex(File file, long schemaHash, int[] keyColumns) throws IOException
+	{
+		file_ = file;
+		keysFile_ = new File(file.getPath() + ".keys.tmp");
+		oldFile_ = new File(file.getPath() + ".old");
+		schemaHash_ = schemaHash;
+		keyColumns_ = keyColumns;
+
+		// Left by an earlier run, and no longer mapped
+		oldFile_.delete();
+
+		openPrevious();
+		keys_ = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(keysFile_), 1 << 16));
+	}
+
+	/**
+	 * Hashes a list of strings with 64-bit FNV-1a, telling null apart from
+	 * an empty string.
+	 */
+	public static long hash(String[] values)
+	{
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < values.length; i++)
+		{
+			h = hash(h, values[i]);
+		}
+		return h;
+	}
+
+	/**
+	 * Records a row in the index of the current run.
+	 * @param row The values of the row
+	 * @return True if the row is new or changed since the previous run
+	 */
+	public boolean update(String[] row) throws IOException
+	{
+		keyBuffer_.setLength(0);
+		long keyHash = 0xcbf29ce484222325L;
+		for (int i = 0; i < keyColumns_.length; i++)
+		{
+			String value = row[keyColumns_[i]];
+			keyHash = hash(keyHash, value);
+			if (i > 0)
+			{
+				keyBuffer_.append(KEY_SEPARATOR);
+			}
+			keyBuffer_.append(value == null ? "" : value);
+		}
+		long rowHash = hash(row);
+
+		boolean changed = true;
+		int previous = findPrevious(keyHash);
+		if (previous >= 0)
+		{
+			seen_.set(previous);
+			changed = previous_.getLong(HEADER_SIZE + previous * ENTRY_SIZE + 8) != rowHash;
+		}
+		if (!changed)
+		{
+			unchanged_++;
+		}
+
+		add(keyHash, rowHash);
+		return changed;
+	}
+
+	public int getUnchangedCount()
+	{
+		return unchanged_;
+	}
+
+	/**
+	 * Returns the primary key values of the rows in the previous run's
+	 * index that were not written in this run.
+	 */
+	public List<String[]> getMissingKeys() throws IOException
+	{
+		List<String[]> missing = new ArrayList<String[]>();
+		if (previous_ == null)
+		{
+			return missing;
+		}
+		int keysStart = HEADER_SIZE + previousCount_ * ENTRY_SIZE;
+		for (int i = seen_.nextClearBit(0); i < previousCount_; i = seen_.nextClearBit(i + 1))
+		{
+			int offset = keysStart + previous_.getInt(HEADER_SIZE + i * ENTRY_SIZE + 16);
+			int length = previous_.getInt(offset);
+			byte[] bytes = new byte[length];
+			for (int b = 0; b < length; b++)
+			{
+				bytes[b] = previous_.get(offset + 4 + b);
+			}
+			missing.add(new String(bytes, "UTF-8").split(String.valueOf(KEY_SEPARATOR), -1));
+		}
+		return missing;
+	}
+
+	/**
+	 * Replaces the previous run's index with the index of this run.
+	 */
+	public void commit() throws IOException
+	{
+		keys_.close();
+		closePrevious();
+		sort(0, count_ - 1);
+
+		File tmp = new File(file_.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+		try
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(schemaHash_);
+			out.writeInt(count_);
+			for (int i = 0; i < count_; i++)
+			{
+				out.writeLong(keyHashes_[i]);
+				out.writeLong(rowHashes_[i]);
+				out.writeInt(keyOffsets_[i]);
+			}
+
+			FileInputStream keys = new FileInputStream(keysFile_);
+			try
+			{
+				byte[] buffer = new byte[1 << 16];
+				int read;
+				while ((read = keys.read(buffer)) > 0)
+				{
+					out.write(buffer, 0, read);
+				}
+			}
+			finally
+			{
+				keys.close();
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+
+		keysFile_.delete();
+		if (!deletePrevious() || !tmp.renameTo(file_))
+		{
+			throw new IOException("Unable to replace the row index " + file_.getPath());
+		}
+	}
+
+	/**
+	 * Deletes the previous run's index file, or moves it aside for the next
+	 * run to delete if it is still mapped and Windows will not delete it.
+	 */
+	private boolean deletePrevious()
+	{
+		if (file_.delete() || !file_.exists())
+		{
+			return true;
+		}
+		oldFile_.delete();
+		return file_.renameTo(oldFile_);
+	}
+
+	/**
+	 * Throws away the index of this run and keeps the previous one.
+	 */
+	public void discard()
+	{
+		try
+		{
+			keys_.close();
+		}
+		catch (IOException e)
+		{
+			// Nothing left to do with the file
+		}
+		keysFile_.delete();
+		closePrevious();
+	}
+
+	private void openPrevious() throws IOException
+	{
+		if (!file_.isFile() || file_.length() < HEADER_SIZE)
+		{
+			return;
+		}
+		previousFile_ = new RandomAccessFile(file_, "r");
+		previous_ = previousFile_.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, previousFile_.length());
+		if (previous_.getInt(0) != MAGIC || previous_.getInt(4) != VERSION || previous_.getLong(8) != schemaHash_)
+		{
+			// Written by another version or for another schema, start over
+			closePrevious();
+			return;
+		}
+		previousCount_ = previous_.getInt(16);
+		seen_ = new BitSet(previousCount_);
+	}
+
+	private void closePrevious()
+	{
+		MappedFiles.unmap(previous_);
+		previous_ = null;
+		if (previousFile_ != null)
+		{
+			try
+			{
+				previousFile_.close();
+			}
+			catch (IOException e)
+			{
+				// The index was only read
+			}
+			previousFile_ = null;
+		}
+	}
+
+	/**
+	 * Binary searches the previous run's entries for a key hash.
+	 */
+	private int findPrevious(long keyHash)
+	{
+		if (previous_ == null)
+		{
+			return -1;
+		}
+		int low = 0;
+		int high = previousCount_ - 1;
+		while (low <= high)
+		{
+			int mid = (low + high) >>> 1;
+			long midHash = previous_.getLong(HEADER_SIZE + mid * ENTRY_SIZE);
+			if (midHash < keyHash)
+			{
+				low = mid + 1;
+			}
+			else if (midHash > keyHash)
+			{
+				high = mid - 1;
+			}
+			else
+			{
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	private void add(long keyHash, long rowHash) throws IOException
+	{
+		if (count_ == keyHashes_.length)
+		{
+			int capacity = count_ * 2;
+			keyHashes_ = Arrays.copyOf(keyHashes_, capacity);
+			rowHashes_ = Arrays.copyOf(rowHashes_, capacity);
+			keyOffsets_ = Arrays.copyOf(keyOffsets_, capacity);
+		}
+		byte[] key = keyBuffer_.toString().getBytes("UTF-8");
+		keyHashes_[count_] = keyHash;
+		rowHashes_[count_] = rowHash;
+		keyOffsets_[count_] = keysLength_;
+		count_++;
+
+		keys_.writeInt(key.length);
+		keys_.write(key);
+		keysLength_ += 4 + key.length;
+	}
+
+	/**
+	 * Sorts the entries of this run by key hash.
+	 */
+	private void sort(int low, int high)
+	{
+		while (low < high)
+		{
+			long pivot = keyHashes_[(low + high) >>> 1];
+			int i = low;
+			int j = high;
+			while (i <= j)
+			{
+				while (keyHashes_[i] < pivot) i++;
+				while (keyHashes_[j] > pivot) j--;
+				if (i <= j)
+				{
+					swap(i++, j--);
+				}
+			}
+			// Recurse into the smaller half to bound the stack depth
+			if (j - low < high - i)
+			{
+				sort(low, j);
+				low = i;
+			}
+			else
+			{
+				sort(i, high);
+				high = j;
+			}
+		}
+	}
+
+	private void swap(int a, int b)
+	{
+		long keyHash = keyHashes_[a];
+		keyHashes_[a] = keyHashes_[b];
+		keyHashes_[b] = keyHash;
+		long rowHash = rowHashes_[a];
+		rowHashes_[a] = rowHashes_[b];
+		rowHashes_[b] = rowHash;
+		int keyOffset = keyOffsets_[a];
+		keyOffsets_[a] = keyOffsets_[b];
+		keyOffsets_[b] = keyOffset;
+	}
+
+	private static long hash(long h, String value)
+	{
+		// The null and separator markers are outside the range of a char
+		if (value == null)
+		{
+			h ^= 0x10000;
+			h *= 0x100000001b3L;
+		}
+		else
+		{
+			for (int c = 0; c < value.length(); c++)
+			{
+				h ^= value.charAt(c);
+				h *= 0x100000001b3L;
+			}
+		}
+		// Separate the values so that "ab","c" and "a","bc" differ
+		h ^= 0x10001;
+		h *= 0x100000001b3L;
+		return h;
+	}
+}
@@ -0,0 +1,222 @@
+package ckan.ckanWriter;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import ckan.CKANclient.Connection;
+import ckan.CKANclient.LatencyHistogram;
+
+/**
+ * Measures where the time of a run goes: writing features, waiting for a
+ * free batch or upload slot, uploading batches and the HTTP requests
+ * behind them, and garbage collection.
+ *
+ * The batch figures are recorded by the upload threads, so every method is
+ * synchronized. At the end of the run the figures are summarized as lines
+ * for the FME log, or as a report for a JSON file.
+ */
+public class RunMetrics
+{
+	private final long startedAt_ = System.currentTimeMillis();
+	private final long startNanos_ = System.nanoTime();
+	private final long gcCountAtStart_;
+	private final long gcMillisAtStart_;
+
+	private long features_ = 0;
+	private long writeNanos_ = 0;
+	private long queueWaitNanos_ = 0;
+
+	private long batches_ = 0;
+	private long failedBatches_ = 0;
+	private long batchRows_ = 0;
+	private long batchBytes_ = 0;
+	// Batch upload times, in microseconds
+	private final LatencyHistogram batchTimes_ = new LatencyHistogram();
+
+	public RunMetrics()
+	{
+		long[] gc = gcTotals();
+		gcCountAtStart_ = gc[0];
+		gcMillisAtStart_ = gc[1];
+	}
+
+	/**
+	 * Records a feature handed to the writer by FME.
+	 * @param nanos The time taken to write it
+	 */
+	public synchronized void featureWritten(long nanos)
+	{
+		features_++;
+		writeNanos_ += nanos;
+	}
+
+	/**
+	 * Records time spent waiting for a batch to be uploaded before another
+	 * one could be queued or filled.
+	 */
+	public synchronized void queueWaited(long nanos)
+	{
+		queueWaitNanos_ += nanos;
+	}
+
+	/**
+	 * Records the upload of a batch.
+	 * @param rows      The rows in the batch
+	 * @param bytes     The estimated size of the batch as JSON
+	 * @param nanos     The time taken to upload it, including retries
+	 * @param succeeded Whether the batch was uploaded
+	 */
+	public synchronized void batchUploaded(int rows, long bytes, long nanos, boolean succeeded)
+	{
+		batches_++;
+		if (!succeeded)
+		{
+			failedBatches_++;
+			return;
+		}
+		batchRows_ += rows;
+		batchBytes_ += bytes;
+		batchTimes_.record(nanos / 1000);
+	}
+
+	/**
+	 * Summarizes the run as a table for the FME log.
+	 * @param connection The connection the requests were made through, or null
+	 */
+	public synchronized List<String> summarize(Connection connection)
+	{
+		long elapsedMs = elapsedMillis();
+		long[] gc = gcTotals();
+		List<String> lines = new ArrayList<String>();
+		lines.add("Performance summary (" + elapsedMs + " ms)");
+		lines.add(format("Features written", features_ + " (" + perSecond(features_, elapsedMs) + "/s), "
+				+ writeNanos_ / 1000000 + " ms in writeFeature, " + queueWaitNanos_ / 1000000 + " ms waiting for uploads"));
+		if (batches_ > 0)
+		{
+			long uploaded = batches_ - failedBatches_;
+			lines.add(format("Batches uploaded", uploaded + " of " + batches_ + ", " + batchRows_ + " rows, "
+					+ batchBytes_ + " bytes (" + (uploaded == 0 ? 0 : batchRows_ / uploaded) + " rows, "
+					+ (uploaded == 0 ? 0 : batchBytes_ / uploaded) + " bytes per batch)"));
+			lines.add(format("Batch upload ms", percentiles(batchTimes_)));
+		}
+		if (connection != null)
+		{
+			lines.add(format("HTTP requests", connection.getLatencyHistogram().getCount() + " answered, "
+					+ connection.getFailedRequestCount() + " failed, " + connection.getRetryCount() + " retried"));
+			lines.add(format("HTTP latency ms", percentiles(connection.getLatencyHistogram())));
+		}
+		lines.add(format("Garbage collection", (gc[0] - gcCountAtStart_) + " collections, " + (gc[1] - gcMillisAtStart_) + " ms"));
+		return lines;
+	}
+
+	/**
+	 * Builds the figures of the run as nested maps, to be written as JSON.
+	 * @param dataset    The dataset written
+	 * @param connection The connection the requests were made through, or null
+	 */
+	public synchronized Map<String, Object> report(String dataset, Connection connection)
+	{
+		long elapsedMs = elapsedMillis();
+		long[] gc = gcTotals();
+
+		Map<String, Object> report = new LinkedHashMap<String, Object>();
+		report.put("dataset", dataset);
+		report.put("startedAt", startedAt_);
+		report.put("elapsedMs", elapsedMs);
+
+		Map<String, Object> features = new LinkedHashMap<String, Object>();
+		features.put("count", features_);
+		features.put("perSecond", perSecond(features_, elapsedMs));
+		features.put("writeMs", writeNanos_ / 1000000);
+		features.put("queueWaitMs", queueWaitNanos_ / 1000000);
+		report.put("features", features);
+
+		Map<String, Object> batches = new LinkedHashMap<String, Object>();
+		batches.put("count", batches_);
+		batches.put("failed", failedBatches_);
+		batches.put("rows", batchRows_);
+		batches.put("bytes", batchBytes_);
+		batches.put("uploadMs", percentileMap(batchTimes_));
+		report.put("batches", batches);
+
+		if (connection != null)
+		{
+			Map<String, Object> http = new LinkedHashMap<String, Object>();
+			http.put("requests", connection.getLatencyHistogram().getCount());
+			http.put("failed", connection.getFailedRequestCount());
+			http.put("retries", connection.getRetryCount());
+			http.put("latencyMs", percentileMap(connection.getLatencyHistogram()));
+			http.put("rateLimitWaitMs", connection.getThrottleWaitMillis());
+			http.put("rateLimitedRequests", connection.getThrottledRequestCount());
+			report.put("http", http);
+		}
+
+		Map<String, Object> gcReport = new LinkedHashMap<String, Object>();
+		gcReport.put("collections", gc[0] - gcCountAtStart_);
+		gcReport.put("pauseMs", gc[1] - gcMillisAtStart_);
+		report.put("gc", gcReport);
+		return report;
+	}
+
+	private long elapsedMillis()
+	{
+		return (System.nanoTime() - startNanos_) / 1000000;
+	}
+
+	private static long perSecond(long count, long elapsedMs)
+	{
+		return elapsedMs == 0 ? count : count * 1000 / elapsedMs;
+	}
+
+	private static String format(String label, String value)
+	{
+		return String.format(Locale.ENGLISH, "  %-20s %s", label, value);
+	}
+
+	/**
+	 * Formats the percentiles of a histogram of microseconds in milliseconds.
+	 */
+	private static String percentiles(LatencyHistogram histogram)
+	{
+		if (histogram.getCount() == 0)
+		{
+			return "none";
+		}
+		return String.format(Locale.ENGLISH, "p50 %.1f, p95 %.1f, p99 %.1f, max %.1f (%d)",
+				histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(95) / 1000.0,
+				histogram.getValueAtPercentile(99) / 1000.0, histogram.getMax() / 1000.0, histogram.getCount());
+	}
+
+	private static Map<String, Object> percentileMap(LatencyHistogram histogram)
+	{
+		Map<String, Object> values = new LinkedHashMap<String, Object>();
+		values.put("count", histogram.getCount());
+		values.put("mean", histogram.getMean() / 1000.0);
+		values.put("p50", histogram.getValueAtPercentile(50) / 1000.0);
+		values.put("p95", histogram.getValueAtPercentile(95) / 1000.0);
+		values.put("p99", histogram.getValueAtPercentile(99) / 1000.0);
+		values.put("max", histogram.getMax() / 1000.0);
+		return values;
+	}
+
+	/**
+	 * Returns the number of collections and the time spent in them by
+	 * every garbage collector of the JVM so far.
+	 */
+	private static long[] gcTotals()
+	{
+		long count = 0;
+		long millis = 0;
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans())
+		{
+			count += Math.max(0, collector.getCollectionCount());
+			millis += Math.max(0, collector.getCollectionTime());
+		}
+		return new long[] { count, millis };
+	}
+}
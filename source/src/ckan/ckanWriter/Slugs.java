@@ -0,0 +1,33 @@
+package ckan.ckanWriter;
+
+import java.text.Normalizer;
+import java.text.Normalizer.Form;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Turns names into the lower case, dash separated form CKAN uses for the
+ * names of packages and DataStore aliases.
+ */
+public class Slugs
+{
+	private static final Pattern NONLATIN = Pattern.compile("[^\\w-]");
+	private static final Pattern WHITESPACE = Pattern.compile("[\\s]");
+
+	private Slugs()
+	{
+	}
+
+	/**
+	 * Replaces whitespace with dashes, drops accents and any other
+	 * character that is not a letter, digit, underscore or dash, and
+	 * lowers the case (eg: "Café Prices 2016" becomes "cafe-prices-2016").
+	 */
+	public static String toSlug(String input)
+	{
+		String nowhitespace = WHITESPACE.matcher(input).replaceAll("-");
+		String normalized = Normalizer.normalize(nowhitespace, Form.NFD);
+		String slug = NONLATIN.matcher(normalized).replaceAll("");
+		return slug.toLowerCase(Locale.ENGLISH).replaceAll("-{2,}","-").replaceAll("^-|-$","");
+	}
+}
@@ -0,0 +1,416 @@
+package ckan.ckanWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import ckan.CKANclient.RecordBatch;
+
+/**
+ * An append-only log of rows on local disk, written by FME at disk speed
+ * and read back by an upload thread as fast as CKAN takes the rows.
+ *
+ * The log is split into segment files which are memory-mapped while they
+ * are written and read. Each row is stored with the number of the stream
+ * (the DataStore table) it belongs to. A segment is deleted once it has
+ * been read and every batch holding one of its rows has been uploaded, so
+ * the log only takes up disk space for the rows CKAN has not taken yet.
+ *
+ * Record layout: length of the rest of the record, stream number, number
+ * of values, then each value as its UTF-8 length (-1 for null) and bytes.
+ * A length of -1 marks the end of the rows in a segment.
+ */
+public class SpoolLog
+{
+	private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * A segment file and the number of batches holding its rows.
+	 */
+	private static final class Segment
+	{
+		final File file_;
+		int batches_ = 0;
+
+		Segment(File file)
+		{
+			file_ = file;
+		}
+	}
+
+	private final File directory_;
+	private final TreeMap<Integer, Segment> segments_ = new TreeMap<Integer, Segment>();
+	private final List<File> undeleted_ = new ArrayList<File>();
+	// The segments each batch being filled or uploaded holds rows of
+	private final Map<RecordBatch, int[]> batches_ = new IdentityHashMap<RecordBatch, int[]>();
+
+	// Written by FME: the segment being appended to, published to the reader
+	// with the position after the last complete record
+	private MappedByteBuffer writeBuffer_ = null;
+	private int writeSegment_ = 0;
+	private int writePosition_ = 0;
+	private boolean closed_ = false;
+	private byte[] encoded_ = new byte[4096];
+
+	// Read by the upload thread
+	private MappedByteBuffer readBuffer_ = null;
+	private int readSegment_ = 0;
+	private byte[] readBytes_ = new byte[4096];
+	private int lastStream_ = -1;
+	private boolean waiting_ = false;
+
+	// Metrics
+	private long rowCount_ = 0;
+	private long byteCount_ = 0;
+	private int segmentCount_ = 0;
+	private int maxSegments_ = 0;
+
+	/**
+	 * Creates an empty log, deleting any segments left by an earlier run.
+	 * @param directory The directory to keep the segment files in
+	 */
+	public SpoolLog(File directory) throws IOException
+	{
+		directory_ = directory;
+		if (!directory_.isDirectory() && !directory_.mkdirs())
+		{
+			throw new IOException("Unable to create the spool directory " + directory_.getPath());
+		}
+		File[] files = directory_.listFiles();
+		if (files != null)
+		{
+			for (File file : files)
+			{
+				file.delete();
+			}
+		}
+		roll(0);
+	}
+
+	/**
+	 * Appends a row to the log. Called by the FME thread only.
+	 * @param stream The stream the row belongs to
+	 * @param row    The values of the row
+	 */
+	public void append(int stream, String[] row) throws IOException
+	{
+		int length = 8;
+		for (int i = 0; i < row.length; i++)
+		{
+			length += 4;
+			if (row[i] != null)
+			{
+				length += row[i].length() * 3;
+			}
+		}
+		if (encoded_.length < length)
+		{
+			encoded_ = new byte[Math.max(length, encoded_.length * 2)];
+		}
+		int position = 0;
+		position = putInt(encoded_, position, stream);
+		position = putInt(encoded_, position, row.length);
+		for (int i = 0; i < row.length; i++)
+		{
+			if (row[i] == null)
+			{
+				position = putInt(encoded_, position, -1);
+				continue;
+			}
+			byte[] bytes = row[i].getBytes(UTF8);
+			position = putInt(encoded_, position, bytes.length);
+			System.arraycopy(bytes, 0, encoded_, position, bytes.length);
+			position += bytes.length;
+		}
+
+		if (writeBuffer_.remaining() < position + 4)
+		{
+			// Mark the end of the segment and carry on in a new one
+			if (writeBuffer_.remaining() >= 4)
+			{
+				writeBuffer_.putInt(-1);
+			}
+			roll(position + 4);
+		}
+		writeBuffer_.putInt(position);
+		writeBuffer_.put(encoded_, 0, position);
+		byteCount_ += position + 4;
+		rowCount_++;
+
+		synchronized (this)
+		{
+			writePosition_ = writeBuffer_.position();
+			if (waiting_)
+			{
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Marks the end of the log once every row has been appended.
+	 */
+	public synchronized void close()
+	{
+		closed_ = true;
+		notifyAll();
+	}
+
+	/**
+	 * Reads the next row, waiting for FME to append one. Called by the
+	 * upload thread only.
+	 * @return The values of the row, or null once the log is closed and
+	 *         every row has been read
+	 */
+	public String[] next() throws IOException, InterruptedException
+	{
+		while (true)
+		{
+			int end;
+			synchronized (this)
+			{
+				// Wait for a row unless there is more of a segment FME has finished
+				while (readSegment_ == writeSegment_ && (readBuffer_ == null ? 0 : readBuffer_.position()) >= writePosition_)
+				{
+					if (closed_)
+					{
+						// Only this thread reads the buffer
+						MappedFiles.unmap(readBuffer_);
+						readBuffer_ = null;
+						return null;
+					}
+					waiting_ = true;
+					wait();
+				}
+				waiting_ = false;
+				if (readBuffer_ == null)
+				{
+					readBuffer_ = map(segments_.get(Integer.valueOf(readSegment_)).file_, FileChannel.MapMode.READ_ONLY);
+				}
+				end = readSegment_ == writeSegment_ ? writePosition_ : readBuffer_.capacity();
+			}
+
+			int length = end - readBuffer_.position() >= 4 ? readBuffer_.getInt() : -1;
+			if (length < 0)
+			{
+				// The rest of the segment is unused, move on to the next one
+				synchronized (this)
+				{
+					readSegment_++;
+					MappedFiles.unmap(readBuffer_);
+					readBuffer_ = null;
+					deleteUnused();
+				}
+				continue;
+			}
+
+			lastStream_ = readBuffer_.getInt();
+			String[] row = new String[readBuffer_.getInt()];
+			for (int i = 0; i < row.length; i++)
+			{
+				int size = readBuffer_.getInt();
+				if (size >= 0)
+				{
+					if (size > readBytes_.length)
+					{
+						readBytes_ = new byte[Math.max(size, readBytes_.length * 2)];
+					}
+					readBuffer_.get(readBytes_, 0, size);
+					row[i] = new String(readBytes_, 0, size, UTF8);
+				}
+			}
+			return row;
+		}
+	}
+
+	/**
+	 * The stream of the row last returned by next().
+	 */
+	public int getLastStream()
+	{
+		return lastStream_;
+	}
+
+	/**
+	 * Notes that a batch holds the row last returned by next(), so that its
+	 * segment is kept until the batch has been uploaded.
+	 * @param batch The batch the row was added to
+	 */
+	public synchronized void hold(RecordBatch batch)
+	{
+		int[] range = batches_.get(batch);
+		if (range == null)
+		{
+			batches_.put(batch, new int[] { readSegment_, readSegment_ });
+			segments_.get(Integer.valueOf(readSegment_)).batches_++;
+		}
+		else
+		{
+			for (int s = range[1] + 1; s <= readSegment_; s++)
+			{
+				segments_.get(Integer.valueOf(s)).batches_++;
+			}
+			range[1] = readSegment_;
+		}
+	}
+
+	/**
+	 * Lets go of the segments of a batch once it has been uploaded, deleting
+	 * those that are no longer needed.
+	 * @param batch The batch, which may then be filled again
+	 */
+	public synchronized void release(RecordBatch batch)
+	{
+		int[] range = batches_.remove(batch);
+		if (range == null)
+		{
+			return;
+		}
+		for (int s = range[0]; s <= range[1]; s++)
+		{
+			Segment segment = segments_.get(Integer.valueOf(s));
+			if (segment != null)
+			{
+				segment.batches_--;
+			}
+		}
+		deleteUnused();
+	}
+
+	/**
+	 * Deletes every segment and the spool directory. Called by the FME
+	 * thread. The reader unmaps its segment once it has read every row, but
+	 * if it was stopped part way through its segment stays mapped until
+	 * the buffer is garbage collected, and Windows will not delete it until
+	 * then. Such segments are left for the next run to delete.
+	 */
+	public void delete()
+	{
+		synchronized (this)
+		{
+			MappedFiles.unmap(writeBuffer_);
+			writeBuffer_ = null;
+			for (Segment segment : segments_.values())
+			{
+				undeleted_.add(segment.file_);
+			}
+			segments_.clear();
+			for (int i = undeleted_.size() - 1; i >= 0; i--)
+			{
+				if (undeleted_.get(i).delete() || !undeleted_.get(i).exists())
+				{
+					undeleted_.remove(i);
+				}
+			}
+		}
+		directory_.delete();
+	}
+
+	public synchronized long getRowCount()
+	{
+		return rowCount_;
+	}
+
+	public synchronized long getByteCount()
+	{
+		return byteCount_;
+	}
+
+	/**
+	 * The most segments on disk at any one time.
+	 */
+	public synchronized int getMaxSegments()
+	{
+		return maxSegments_;
+	}
+
+	/**
+	 * Starts a new segment at least big enough for a record.
+	 */
+	private void roll(int recordSize) throws IOException
+	{
+		File file = new File(directory_, "segment-" + (segmentCount_ + 1) + ".log");
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try
+		{
+			raf.setLength(Math.max(SEGMENT_SIZE, recordSize));
+		}
+		finally
+		{
+			raf.close();
+		}
+		MappedByteBuffer buffer = map(file, FileChannel.MapMode.READ_WRITE);
+		// The reader maps segments itself, so only this thread used the last one
+		MappedFiles.unmap(writeBuffer_);
+		synchronized (this)
+		{
+			segments_.put(Integer.valueOf(segmentCount_), new Segment(file));
+			writeSegment_ = segmentCount_++;
+			writeBuffer_ = buffer;
+			writePosition_ = 0;
+			maxSegments_ = Math.max(maxSegments_, segments_.size());
+			if (waiting_)
+			{
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Deletes the segments that have been read and whose rows have all been
+	 * uploaded, retrying those that were still mapped before.
+	 */
+	private void deleteUnused()
+	{
+		while (!segments_.isEmpty())
+		{
+			Integer first = segments_.firstKey();
+			Segment segment = segments_.get(first);
+			if (first.intValue() >= readSegment_ || segment.batches_ > 0)
+			{
+				break;
+			}
+			segments_.remove(first);
+			undeleted_.add(segment.file_);
+		}
+		for (int i = undeleted_.size() - 1; i >= 0; i--)
+		{
+			if (undeleted_.get(i).delete() || !undeleted_.get(i).exists())
+			{
+				undeleted_.remove(i);
+			}
+		}
+	}
+
+	private static MappedByteBuffer map(File file, FileChannel.MapMode mode) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw");
+		try
+		{
+			// The mapping stays valid once the file is closed
+			return raf.getChannel().map(mode, 0, raf.length());
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	private static int putInt(byte[] bytes, int position, int value)
+	{
+		bytes[position] = (byte) (value >>> 24);
+		bytes[position + 1] = (byte) (value >>> 16);
+		bytes[position + 2] = (byte) (value >>> 8);
+		bytes[position + 3] = (byte) value;
+		return position + 4;
+	}
+}
@@ -0,0 +1,172 @@
+package ckan.ckanWriter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import ckan.CKANclient.CKANException;
+import ckan.CKANclient.Client;
+import ckan.CKANclient.DataStore;
+
+/**
+ * Moves the alias of a staged replace from the resource readers use to the
+ * newly loaded staging resource, and deletes the previous resource once
+ * readers have moved on.
+ *
+ * The previous resource is the one the alias reads from, which is the
+ * staging resource of the last run. Before the first staged replace the
+ * alias does not exist yet, and the writer names the resource that is
+ * replaced instead.
+ */
+public class StagedReplace
+{
+	private final Client client_;
+	private final String alias_;
+
+	private String previousId_ = "";
+	// Whether the previous resource holds the alias
+	private boolean previousAliased_ = false;
+
+	/**
+	 * Constructor
+	 * @param client The client to change the aliases with
+	 * @param alias  The alias readers use, empty for none
+	 */
+	public StagedReplace(Client client, String alias)
+	{
+		client_ = client;
+		alias_ = alias;
+	}
+
+	/**
+	 * Looks up the resource the alias reads from, which becomes the
+	 * previous resource.
+	 * @return Whether the alias exists
+	 * @throws CKANException If the alias could not be looked up
+	 */
+	public boolean findPrevious() throws CKANException
+	{
+		previousId_ = alias_.length() != 0 ? client_.findAliasResourceId(alias_) : "";
+		previousAliased_ = previousId_.length() != 0;
+		return previousAliased_;
+	}
+
+	/**
+	 * Names the resource that is replaced when the alias does not exist.
+	 * @param id The resource, empty for none
+	 */
+	public void setPrevious(String id)
+	{
+		previousId_ = id;
+		previousAliased_ = false;
+	}
+
+	public String getPrevious()
+	{
+		return previousId_;
+	}
+
+	public String getAlias()
+	{
+		return alias_;
+	}
+
+	/**
+	 * Gives the alias to the staging resource. CKAN cannot move an alias,
+	 * so it is dropped from the previous table and created on the staging
+	 * one, and is missing between those two requests. If it cannot be
+	 * created, it is given back to the previous table.
+	 * @param stagingId The resource the rows were loaded into
+	 * @return Whether the previous resource was replaced, and can be deleted
+	 * @throws CKANException If the alias could not be created, with the
+	 *                       reason it could not be given back if so
+	 */
+	public boolean swap(String stagingId) throws CKANException
+	{
+		boolean replacing = previousId_.length() != 0 && !previousId_.equals(stagingId);
+		if (alias_.length() == 0)
+		{
+			return replacing;
+		}
+
+		if (replacing && previousAliased_)
+		{
+			// CKAN refuses an alias that another table holds
+			setAliases(previousId_, new ArrayList<String>());
+		}
+		try
+		{
+			setAliases(stagingId, Collections.singletonList(alias_));
+		}
+		catch (CKANException cke)
+		{
+			if (replacing && previousAliased_)
+			{
+				// Let readers carry on with the previous table
+				try
+				{
+					setAliases(previousId_, Collections.singletonList(alias_));
+				}
+				catch (CKANException e)
+				{
+					cke.addError("Unable to give alias " + alias_ + " back to resource " + previousId_ + ": " + e.toString());
+				}
+			}
+			throw cke;
+		}
+		return replacing;
+	}
+
+	/**
+	 * Deletes a resource and its DataStore table. The resource is deleted
+	 * even if its table could not be.
+	 * @param id The resource to delete
+	 * @throws CKANException If either could not be deleted
+	 */
+	public void delete(String id) throws CKANException
+	{
+		CKANException failure = null;
+		try
+		{
+			client_.deleteDataStore(id);
+		}
+		catch (CKANException cke)
+		{
+			failure = cke;
+		}
+		try
+		{
+			client_.deleteResource(id);
+		}
+		catch (CKANException cke)
+		{
+			if (failure == null)
+			{
+				failure = cke;
+			}
+			else
+			{
+				failure.addError(cke.toString());
+			}
+		}
+		if (failure != null)
+		{
+			throw failure;
+		}
+	}
+
+	/**
+	 * Replaces the aliases of a DataStore table.
+	 * @param id      The resource of the table
+	 * @param aliases The aliases it is read through, empty to drop them
+	 * @throws CKANException If the aliases could not be changed
+	 */
+	private void setAliases(String id, List<String> aliases) throws CKANException
+	{
+		DataStore ds = new DataStore();
+		ds.setResource_id(id);
+		ds.setAliases(aliases);
+		ds.setForce("True");
+		client_.createDataStore(ds,5);
+	}
+}
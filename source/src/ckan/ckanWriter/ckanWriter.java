@@ -72,7 +72,7 @@ public final class ckanWriter implements IFMEWriter
 	@Override
 	public void abort() throws Exception
 	{
-		close();
+		writer_.abortWriter();
 	}
 
 	/**
@@ -141,5 +141,6 @@ public final class ckanWriter implements IFMEWriter
     @Override
     public void addMappingFileDefLine(ArrayList<String> defLine) throws Exception
     {
+        writer_.addFeatureTypeDefinition(defLine);
     }
 }
@@ -0,0 +1,292 @@
+package ckan.CKANclient;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests the Client against MockCkanServer.
+ */
+public class ClientTest {
+
+	@Rule
+	public TemporaryFolder _folder = new TemporaryFolder();
+
+	private MockCkanServer _server;
+	private Connection _connection;
+	private Client _client;
+
+	@Before
+	public void start() throws IOException {
+		_server = new MockCkanServer();
+		connect("");
+	}
+
+	@After
+	public void stop() {
+		_connection.close();
+		_server.stop();
+	}
+
+	private void connect(String basePath) {
+		_connection = new Connection("http://127.0.0.1", _server.getPort());
+		_connection.setBasePath(basePath);
+		_client = new Client(_connection, "key");
+		_client.setRetryPolicy(new RetryPolicy(6, 10, 50, 10000));
+	}
+
+	private Dataset createDataset(String name) throws CKANException {
+		Dataset dataset = new Dataset();
+		dataset.setName(name);
+		dataset.setTitle(name);
+		return _client.createDataset(dataset);
+	}
+
+	private String createTable(String packageId, String... aliases) throws CKANException {
+		Resource resource = new Resource();
+		resource.setPackage_id(packageId);
+		resource.setName("table");
+		DataStore datastore = new DataStore();
+		datastore.setResource(resource);
+		datastore.setFields(Arrays.asList(new Field("id", "int"), new Field("name", "text")));
+		if (aliases.length > 0) {
+			datastore.setAliases(Arrays.asList(aliases));
+		}
+		return _client.createDataStore(datastore, 1).getResource_id();
+	}
+
+	private static RecordBatch batch(int rows) {
+		RecordBatch batch = new RecordBatch(Arrays.asList("id", "name"),
+				Arrays.asList(RecordBatch.Type.INTEGER, RecordBatch.Type.TEXT), rows);
+		for (int i = 0; i < rows; i++) {
+			batch.add(new String[] { String.valueOf(i), "row " + i });
+		}
+		return batch;
+	}
+
+	private void upsert(String resourceId, RecordBatch batch) throws CKANException {
+		DataStore datastore = new DataStore();
+		datastore.setResource_id(resourceId);
+		datastore.setMethod("insert");
+		datastore.setRecordBatch(batch);
+		_client.upsertDataStore(datastore, 5);
+	}
+
+	@Test
+	public void createsATableAndUpsertsRecords() throws CKANException {
+		createDataset("roads");
+		String resourceId = createTable("roads");
+
+		upsert(resourceId, batch(250));
+		upsert(resourceId, batch(50));
+
+		assertEquals(300, _server.getRecordCount(resourceId));
+		assertEquals(2, _server.getRequestCount("datastore_upsert"));
+	}
+
+	@Test
+	public void upsertsCompressedRecords() throws CKANException {
+		createDataset("roads");
+		String resourceId = createTable("roads");
+		_connection.setCompression(6);
+
+		upsert(resourceId, batch(1000));
+
+		assertEquals(1000, _server.getRecordCount(resourceId));
+	}
+
+	@Test
+	public void reachesCkanUnderABasePath() throws IOException, CKANException {
+		_connection.close();
+		_server.stop();
+		_server = new MockCkanServer(0, "/data");
+		connect("/data/");
+
+		createDataset("roads");
+		assertEquals(1, _server.getRequestCount("package_create"));
+	}
+
+	@Test
+	public void retriesTransientFailures() throws CKANException {
+		createDataset("roads");
+		String resourceId = createTable("roads");
+		MockCkanServer.Failure[] failures = {
+			MockCkanServer.Failure.TOO_MANY_REQUESTS,
+			MockCkanServer.Failure.SERVER_ERROR,
+			MockCkanServer.Failure.HTML_ERROR_PAGE,
+			MockCkanServer.Failure.DROPPED_CONNECTION
+		};
+
+		for (MockCkanServer.Failure failure : failures) {
+			_server.failNext("datastore_upsert", 2, failure);
+			upsert(resourceId, batch(10));
+		}
+
+		assertEquals(40, _server.getRecordCount(resourceId));
+		assertEquals(8, _connection.getRetryCount());
+	}
+
+	@Test
+	public void doesNotRetryValidationErrors() throws CKANException {
+		createDataset("roads");
+		String resourceId = createTable("roads");
+		_server.failNext("datastore_upsert", 1, MockCkanServer.Failure.VALIDATION_ERROR);
+
+		try {
+			upsert(resourceId, batch(10));
+			fail("The upsert should have failed");
+		} catch (CKANException e) {
+			assertEquals(1, _server.getRequestCount("datastore_upsert"));
+		}
+	}
+
+	@Test
+	public void reportsTheHeadingOfAnHtmlErrorPage() throws CKANException {
+		createDataset("roads");
+		String resourceId = createTable("roads");
+		_server.failNext("datastore_upsert", 10, MockCkanServer.Failure.HTML_ERROR_PAGE);
+
+		try {
+			upsert(resourceId, batch(10));
+			fail("The upsert should have failed");
+		} catch (CKANException e) {
+			assertTrue(e.getErrorMessages().toString(), e.getErrorMessages().contains("502 Bad Gateway"));
+			assertEquals(6, _server.getRequestCount("datastore_upsert"));
+		}
+	}
+
+	@Test
+	public void findsTheResourceBehindAnAlias() throws CKANException {
+		createDataset("roads");
+		String resourceId = createTable("roads", "roads-latest");
+
+		assertEquals(resourceId, _client.findAliasResourceId("roads-latest"));
+		assertEquals("", _client.findAliasResourceId("rivers-latest"));
+
+		_client.deleteDataStore(resourceId);
+		assertEquals("", _client.findAliasResourceId("roads-latest"));
+	}
+
+	@Test
+	public void replacesTheAliasesOfATable() throws CKANException {
+		createDataset("roads");
+		String previousId = createTable("roads", "roads-latest");
+		String resourceId = createTable("roads");
+
+		DataStore datastore = new DataStore();
+		datastore.setResource_id(previousId);
+		datastore.setAliases(new ArrayList<String>());
+		_client.createDataStore(datastore, 1);
+		datastore.setResource_id(resourceId);
+		datastore.setAliases(Arrays.asList("roads-latest"));
+		_client.createDataStore(datastore, 1);
+
+		assertEquals(resourceId, _client.findAliasResourceId("roads-latest"));
+	}
+
+	@Test
+	public void deletesRecordsOnlyWithFilters() throws CKANException {
+		createDataset("roads");
+		String resourceId = createTable("roads");
+		DataStore datastore = new DataStore();
+		datastore.setResource_id(resourceId);
+
+		try {
+			_client.deleteDataStoreRecords(datastore);
+			fail("Deleting without filters should be refused");
+		} catch (CKANException e) {
+			assertEquals(0, _server.getRequestCount("datastore_delete"));
+		}
+		datastore.setFilters(Collections.<String, Object>singletonMap("id", Arrays.asList("1", "2")));
+		_client.deleteDataStoreRecords(datastore);
+		assertEquals(1, _server.getRequestCount("datastore_delete"));
+	}
+
+	@Test
+	public void uploadsAResourceFile() throws IOException, CKANException {
+		createDataset("roads");
+		File file = _folder.newFile("roads.csv");
+		FileOutputStream out = new FileOutputStream(file);
+		out.write("id,name\r\n1,A1\r\n".getBytes("UTF-8"));
+		out.close();
+
+		Resource resource = new Resource();
+		resource.setPackage_id("roads");
+		resource.setName("roads.csv");
+		resource.setDescription("");
+		resource.setFormat("CSV");
+		resource.setMimetype("text/csv");
+		Resource created = _client.uploadCreateResource(resource, file.getPath());
+
+		assertNotNull(created.getId());
+		assertEquals(15, ((Number) _server.getResource(created.getId()).get("size")).intValue());
+	}
+
+	@Test
+	public void uploadsAFileInParts() throws IOException, CKANException {
+		createDataset("roads");
+		String resourceId = createTable("roads");
+		File file = _folder.newFile("roads.csv");
+		FileOutputStream out = new FileOutputStream(file);
+		out.write("0123456789".getBytes("UTF-8"));
+		out.close();
+
+		MultipartUpload upload = _client.initiateMultipartUpload(resourceId, "roads.csv", 10);
+		_client.uploadMultipartPart(upload.getId(), 2, file, 6, 4);
+		_client.uploadMultipartPart(upload.getId(), 1, file, 0, 6);
+		assertEquals(2, _client.checkMultipartUpload(resourceId).getParts());
+		_client.finishMultipartUpload(upload.getId(), resourceId);
+
+		assertEquals(null, _client.checkMultipartUpload(resourceId));
+		assertEquals("0123456789", new String(_server.getUploadedFile(resourceId), "UTF-8"));
+	}
+
+	@Test
+	public void uploadsFromSeveralThreads() throws Exception {
+		createDataset("roads");
+		final String resourceId = createTable("roads");
+		_server.setLatency(1, 5);
+		_server.failRandomly("datastore_upsert", 0.1, MockCkanServer.Failure.SERVER_ERROR);
+
+		final List<Exception> errors = new ArrayList<Exception>();
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; i < 25; i++) {
+							upsert(resourceId, batch(20));
+						}
+					} catch (Exception e) {
+						synchronized (errors) {
+							errors.add(e);
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertTrue(errors.toString(), errors.isEmpty());
+		assertEquals(2000, _server.getRecordCount(resourceId));
+		assertEquals(100, _server.getRequestCount("datastore_upsert") - _server.getInjectedFailureCount());
+	}
+}
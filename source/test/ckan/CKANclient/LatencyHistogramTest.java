@@ -0,0 +1,63 @@
+package ckan.CKANclient;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void reportsNothingWhenEmpty() {
+		LatencyHistogram histogram = new LatencyHistogram();
+
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getValueAtPercentile(99), 0);
+		assertEquals(0, histogram.getMean(), 0);
+	}
+
+	@Test
+	public void keepsSmallValuesExact() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int value = 1; value <= 10; value++) {
+			histogram.record(value);
+		}
+
+		assertEquals(10, histogram.getCount());
+		assertEquals(55, histogram.getTotal());
+		assertEquals(5.5, histogram.getMean(), 0);
+		assertEquals(5, histogram.getValueAtPercentile(50));
+		assertEquals(9, histogram.getValueAtPercentile(90));
+		assertEquals(10, histogram.getValueAtPercentile(100));
+	}
+
+	@Test
+	public void reportsLargeValuesWithinTheBucketPrecision() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long value = 1; value <= 100000; value++) {
+			histogram.record(value);
+		}
+
+		double[] percentiles = { 50, 90, 99, 99.9 };
+		for (double percentile : percentiles) {
+			long expected = (long) (percentile * 1000);
+			long actual = histogram.getValueAtPercentile(percentile);
+			assertTrue("p" + percentile + " was " + actual, actual >= expected && actual <= expected * 1.07);
+		}
+		assertEquals(100000, histogram.getValueAtPercentile(100));
+		assertEquals(100000, histogram.getMax());
+	}
+
+	@Test
+	public void neverReportsMoreThanTheMaximum() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(1000);
+		histogram.record(Long.MAX_VALUE);
+		histogram.record(-5);
+
+		assertEquals(Long.MAX_VALUE, histogram.getValueAtPercentile(100));
+		long median = histogram.getValueAtPercentile(50);
+		assertTrue("p50 was " + median, median >= 1000 && median <= 1070);
+		assertEquals(0, histogram.getValueAtPercentile(1));
+	}
+}
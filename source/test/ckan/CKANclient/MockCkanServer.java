@@ -0,0 +1,819 @@
+package ckan.CKANclient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-process stand-in for the CKAN action API, to test and load test
+ * the client without a CKAN instance
+ *
+ * Serves package_create, package_show, resource_create, resource_update,
+ * resource_delete, datastore_create, datastore_upsert, datastore_delete,
+ * datastore_search and the multipart actions of the cloudstorage
+ * extension under /api/action/. Resource uploads are accepted as multipart
+ * forms like CKAN does. DataStore records are counted rather than kept, so
+ * a load test can run for hours in the same amount of memory.
+ *
+ * Every response can be held back by a random latency, and failures can be
+ * injected per action: the next few requests, or a share of them, get a
+ * 429, a 500, a CKAN validation error, an HTML error page like the ones a
+ * proxy in front of CKAN returns, or a connection closed without a reply.
+ */
+public final class MockCkanServer {
+
+	/**
+	 * The ways an injected failure answers a request.
+	 */
+	public enum Failure {
+		TOO_MANY_REQUESTS, SERVER_ERROR, VALIDATION_ERROR, HTML_ERROR_PAGE, DROPPED_CONNECTION
+	}
+
+	// The failures injected for an action
+	private static final class FailureRule {
+		final Failure failure;
+		final AtomicInteger passing;
+		final AtomicInteger remaining;
+		final double rate;
+
+		FailureRule(Failure failure, int skip, int count, double rate) {
+			this.failure = failure;
+			this.passing = new AtomicInteger(skip);
+			this.remaining = new AtomicInteger(count);
+			this.rate = rate;
+		}
+	}
+
+	// A resource file being uploaded in parts
+	private static final class Upload {
+		final String id;
+		final String name;
+		final TreeMap<Integer, byte[]> parts = new TreeMap<Integer, byte[]>();
+
+		Upload(String id, String name) {
+			this.id = id;
+			this.name = name;
+		}
+	}
+
+	private static final String ANY_ACTION = "*";
+
+	private final HttpServer _server;
+	private final ExecutorService _executor;
+	private final String _basePath;
+	private final Gson _gson = new Gson();
+	private final Random _random = new Random();
+	private final AtomicInteger _ids = new AtomicInteger();
+
+	private volatile long _minLatencyMs = 0;
+	private volatile long _maxLatencyMs = 0;
+	private volatile int _retryAfterSeconds = 0;
+	private final Map<String, FailureRule> _failures = new ConcurrentHashMap<String, FailureRule>();
+
+	private final Map<String, AtomicLong> _requests = new ConcurrentHashMap<String, AtomicLong>();
+	private final AtomicLong _injectedFailures = new AtomicLong();
+	private final AtomicLong _bytesReceived = new AtomicLong();
+	private final AtomicLong _records = new AtomicLong();
+
+	private final Map<String, Map<String, Object>> _packages = new ConcurrentHashMap<String, Map<String, Object>>();
+	private final Map<String, Map<String, Object>> _resources = new ConcurrentHashMap<String, Map<String, Object>>();
+	private final Map<String, AtomicLong> _tables = new ConcurrentHashMap<String, AtomicLong>();
+	private final Map<String, String> _aliases = new ConcurrentHashMap<String, String>();
+	private final Map<String, Upload> _uploads = new ConcurrentHashMap<String, Upload>();
+	private final Map<String, byte[]> _files = new ConcurrentHashMap<String, byte[]>();
+
+	/**
+	 * Starts a server on a free port of the loopback address.
+	 */
+	public MockCkanServer() throws IOException {
+		this(0, "");
+	}
+
+	/**
+	 * Starts a server on the loopback address.
+	 *
+	 * @param port		The port to listen on, or 0 for a free one
+	 * @param basePath	The path CKAN is served under, or empty for the root
+	 */
+	public MockCkanServer(int port, String basePath) throws IOException {
+		this._basePath = basePath;
+		this._server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port), 0);
+		this._executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger _count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "mock-ckan-" + _count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this._server.setExecutor(this._executor);
+		this._server.createContext(basePath + "/api/action/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					MockCkanServer.this.handle(exchange);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		this._server.start();
+	}
+
+	/**
+	 * Stops the server, dropping the requests still being answered.
+	 */
+	public void stop() {
+		this._server.stop(0);
+		this._executor.shutdownNow();
+	}
+
+	public int getPort() {
+		return this._server.getAddress().getPort();
+	}
+
+	/**
+	 * Returns the address to give the client as the CKAN domain.
+	 */
+	public String getUrl() {
+		return "http://127.0.0.1:" + getPort() + this._basePath;
+	}
+
+	/**
+	 * Holds every response back for a random time between the two values.
+	 */
+	public void setLatency(long minMs, long maxMs) {
+		this._minLatencyMs = minMs;
+		this._maxLatencyMs = Math.max(minMs, maxMs);
+	}
+
+	/**
+	 * Sets the Retry-After header sent with 429 responses, 0 to send none.
+	 */
+	public void setRetryAfter(int seconds) {
+		this._retryAfterSeconds = seconds;
+	}
+
+	/**
+	 * Fails the next requests of an action.
+	 *
+	 * @param action	The action, such as datastore_upsert, or null for every action
+	 * @param count		The number of requests to fail
+	 * @param failure	How they fail
+	 */
+	public void failNext(String action, int count, Failure failure) {
+		failAfter(action, 0, count, failure);
+	}
+
+	/**
+	 * Lets some requests of an action through, then fails the next ones,
+	 * such as a connection that drops halfway through an upload.
+	 *
+	 * @param action	The action, such as datastore_upsert, or null for every action
+	 * @param skip		The number of requests answered before the failures
+	 * @param count		The number of requests to fail
+	 * @param failure	How they fail
+	 */
+	public void failAfter(String action, int skip, int count, Failure failure) {
+		this._failures.put(action == null ? ANY_ACTION : action, new FailureRule(failure, skip, count, 0));
+	}
+
+	/**
+	 * Fails a share of the requests of an action, picked at random, until
+	 * the failures are cleared.
+	 *
+	 * @param action	The action, such as datastore_upsert, or null for every action
+	 * @param rate		The share of the requests to fail, from 0 to 1
+	 * @param failure	How they fail
+	 */
+	public void failRandomly(String action, double rate, Failure failure) {
+		this._failures.put(action == null ? ANY_ACTION : action, new FailureRule(failure, 0, -1, rate));
+	}
+
+	public void clearFailures() {
+		this._failures.clear();
+	}
+
+	/**
+	 * Returns the number of requests received for an action, or for every
+	 * action when it is null, failed ones included.
+	 */
+	public long getRequestCount(String action) {
+		if (action != null) {
+			AtomicLong count = this._requests.get(action);
+			return count == null ? 0 : count.get();
+		}
+		long total = 0;
+		for (AtomicLong count : this._requests.values()) {
+			total += count.get();
+		}
+		return total;
+	}
+
+	public long getInjectedFailureCount() {
+		return this._injectedFailures.get();
+	}
+
+	/**
+	 * Returns the size of the request bodies received, after decompression.
+	 */
+	public long getBytesReceived() {
+		return this._bytesReceived.get();
+	}
+
+	/**
+	 * Returns the number of records written to every DataStore table.
+	 */
+	public long getRecordCount() {
+		return this._records.get();
+	}
+
+	/**
+	 * Returns the number of records written to a DataStore table, or -1 if
+	 * the resource has no table.
+	 */
+	public long getRecordCount(String resourceId) {
+		AtomicLong count = this._tables.get(resourceId);
+		return count == null ? -1 : count.get();
+	}
+
+	/**
+	 * Returns a resource as it would be shown by CKAN, or null if there is
+	 * no such resource.
+	 */
+	public Map<String, Object> getResource(String resourceId) {
+		return this._resources.get(resourceId);
+	}
+
+	/**
+	 * Returns the ID of the resource a DataStore alias reads from, or null.
+	 */
+	public String getAliasResourceId(String alias) {
+		return this._aliases.get(alias);
+	}
+
+	/**
+	 * Returns whether a resource has an upload in parts in progress.
+	 */
+	public boolean hasUpload(String resourceId) {
+		return this._uploads.containsKey(resourceId);
+	}
+
+	/**
+	 * Returns the file of a resource joined from its uploaded parts, or
+	 * null if no upload in parts has been finished for it.
+	 */
+	public byte[] getUploadedFile(String resourceId) {
+		return this._files.get(resourceId);
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		String path = exchange.getRequestURI().getPath();
+		String action = path.substring(path.lastIndexOf('/') + 1);
+		count(action);
+
+		byte[] body = readBody(exchange);
+		this._bytesReceived.addAndGet(body.length);
+
+		long latency = this._minLatencyMs;
+		if (this._maxLatencyMs > latency) {
+			synchronized (this._random) {
+				latency += (long) (this._random.nextDouble() * (this._maxLatencyMs - latency));
+			}
+		}
+		if (latency > 0) {
+			try {
+				Thread.sleep(latency);
+			} catch (InterruptedException e) {
+				// Stopped
+				return;
+			}
+		}
+
+		Failure failure = nextFailure(action);
+		if (failure != null) {
+			this._injectedFailures.incrementAndGet();
+			fail(exchange, failure);
+			return;
+		}
+
+		try {
+			Object result = answer(action, exchange, body);
+			JsonObject response = new JsonObject();
+			response.addProperty("help", getUrl() + "/api/3/action/help_show?name=" + action);
+			response.addProperty("success", Boolean.TRUE);
+			// Gson 2.2 writes a JsonElement inside a map field by field
+			response.add("result", result instanceof JsonElement ? (JsonElement) result : this._gson.toJsonTree(result));
+			send(exchange, 200, "application/json", this._gson.toJson(response));
+		} catch (ActionError e) {
+			sendError(exchange, e.status, e.type, e.message);
+		} catch (RuntimeException e) {
+			// A request the real CKAN would not understand either
+			sendError(exchange, 500, "Internal Server Error", e.toString());
+		}
+	}
+
+	/**
+	 * Carries out an action, returning its result.
+	 */
+	private Object answer(String action, HttpExchange exchange, byte[] body) throws IOException, ActionError {
+		String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+		if (contentType != null && contentType.startsWith("multipart/form-data")) {
+			Map<String, byte[]> form = parseMultipart(body, contentType.substring(contentType.indexOf("boundary=") + 9));
+			if (action.equals("cloudstorage_upload_multipart")) {
+				return uploadPart(form);
+			}
+			JsonObject fields = new JsonObject();
+			for (Map.Entry<String, byte[]> field : form.entrySet()) {
+				if (!field.getKey().equals("upload")) {
+					fields.addProperty(field.getKey(), new String(field.getValue(), "UTF-8"));
+				}
+			}
+			return answer(action, fields, form.get("upload"));
+		}
+		JsonElement request = new JsonParser().parse(new String(body, "UTF-8"));
+		return answer(action, request.isJsonObject() ? request.getAsJsonObject() : new JsonObject(), null);
+	}
+
+	private Object answer(String action, JsonObject request, byte[] file) throws ActionError {
+		if (action.equals("package_create")) {
+			return createPackage(request);
+		} else if (action.equals("package_show")) {
+			return findPackage(string(request, "id"));
+		} else if (action.equals("resource_create")) {
+			return saveResource(request, file, false);
+		} else if (action.equals("resource_update")) {
+			return saveResource(request, file, true);
+		} else if (action.equals("resource_delete")) {
+			String id = string(request, "id");
+			findResource(id);
+			this._resources.remove(id);
+			dropTable(id);
+			return null;
+		} else if (action.equals("datastore_create")) {
+			return createTable(request);
+		} else if (action.equals("datastore_upsert")) {
+			return upsert(request);
+		} else if (action.equals("datastore_delete")) {
+			return delete(request);
+		} else if (action.equals("datastore_search")) {
+			return search(request);
+		} else if (action.equals("cloudstorage_initiate_multipart")) {
+			String resourceId = string(request, "id");
+			findResource(resourceId);
+			Upload upload = new Upload("upload-" + this._ids.incrementAndGet(), string(request, "name"));
+			this._uploads.put(resourceId, upload);
+			Map<String, Object> result = new LinkedHashMap<String, Object>();
+			result.put("id", upload.id);
+			result.put("resource_id", resourceId);
+			result.put("name", upload.name);
+			return result;
+		} else if (action.equals("cloudstorage_check_multipart")) {
+			String resourceId = string(request, "id");
+			Upload upload = this._uploads.get(resourceId);
+			if (upload == null) {
+				return null;
+			}
+			Map<String, Object> check = new LinkedHashMap<String, Object>();
+			check.put("id", upload.id);
+			check.put("resource_id", resourceId);
+			check.put("name", upload.name);
+			synchronized (upload) {
+				check.put("parts", upload.parts.size());
+			}
+			Map<String, Object> result = new LinkedHashMap<String, Object>();
+			result.put("upload", check);
+			return result;
+		} else if (action.equals("cloudstorage_finish_multipart")) {
+			String resourceId = string(request, "id");
+			Upload upload = this._uploads.get(resourceId);
+			if (upload == null || !upload.id.equals(string(request, "uploadId"))) {
+				throw new ActionError(404, "Not Found Error", "Upload not found");
+			}
+			ByteArrayOutputStream joined = new ByteArrayOutputStream();
+			synchronized (upload) {
+				for (byte[] part : upload.parts.values()) {
+					joined.write(part, 0, part.length);
+				}
+			}
+			this._uploads.remove(resourceId);
+			this._files.put(resourceId, joined.toByteArray());
+			Map<String, Object> result = new LinkedHashMap<String, Object>();
+			result.put("commited", Boolean.TRUE);
+			return result;
+		} else if (action.equals("cloudstorage_abort_multipart")) {
+			this._uploads.remove(string(request, "id"));
+			return null;
+		}
+		throw new ActionError(400, "Bad Request", "Action name not known: " + action);
+	}
+
+	private Object createPackage(JsonObject request) throws ActionError {
+		String name = string(request, "name");
+		if (name == null || name.length() == 0) {
+			throw new ActionError(409, "Validation Error", "Missing value");
+		}
+		Map<String, Object> dataset = new LinkedHashMap<String, Object>();
+		dataset.put("id", "package-" + this._ids.incrementAndGet());
+		dataset.put("name", name);
+		dataset.put("title", string(request, "title"));
+		dataset.put("resources", new ArrayList<Object>());
+		synchronized (this._packages) {
+			if (this._packages.containsKey(name)) {
+				throw new ActionError(409, "Validation Error", "That URL is already in use.");
+			}
+			this._packages.put(name, dataset);
+		}
+		return dataset;
+	}
+
+	private Object findPackage(String name) throws ActionError {
+		Map<String, Object> dataset = this._packages.get(name);
+		if (dataset == null) {
+			for (Map<String, Object> candidate : this._packages.values()) {
+				if (candidate.get("id").equals(name)) {
+					dataset = candidate;
+				}
+			}
+		}
+		if (dataset == null) {
+			throw new ActionError(404, "Not Found Error", "Not found");
+		}
+		Map<String, Object> shown = new LinkedHashMap<String, Object>(dataset);
+		List<Object> resources = new ArrayList<Object>();
+		for (Map<String, Object> resource : this._resources.values()) {
+			if (dataset.get("name").equals(resource.get("package_id")) || dataset.get("id").equals(resource.get("package_id"))) {
+				resources.add(resource);
+			}
+		}
+		shown.put("resources", resources);
+		return shown;
+	}
+
+	private Map<String, Object> saveResource(JsonObject request, byte[] file, boolean update) throws ActionError {
+		String id = string(request, "id");
+		Map<String, Object> resource;
+		if (update) {
+			resource = new LinkedHashMap<String, Object>(findResource(id));
+		} else {
+			resource = new LinkedHashMap<String, Object>();
+			resource.put("id", id == null || id.length() == 0 ? "resource-" + this._ids.incrementAndGet() : id);
+		}
+		for (Map.Entry<String, JsonElement> field : request.entrySet()) {
+			if (!field.getKey().equals("id") && field.getValue().isJsonPrimitive()) {
+				resource.put(field.getKey(), field.getValue().getAsString());
+			}
+		}
+		if (resource.get("package_id") == null || !this._packages.containsKey(resource.get("package_id"))) {
+			if (!update) {
+				throw new ActionError(409, "Validation Error", "Missing value: package_id");
+			}
+		}
+		if (file != null) {
+			resource.put("url", getUrl() + "/dataset/" + resource.get("package_id") + "/resource/"
+					+ resource.get("id") + "/download/" + resource.get("name"));
+			resource.put("size", file.length);
+			resource.put("url_type", "upload");
+		}
+		this._resources.put((String) resource.get("id"), resource);
+		return resource;
+	}
+
+	private Map<String, Object> findResource(String id) throws ActionError {
+		Map<String, Object> resource = id == null ? null : this._resources.get(id);
+		if (resource == null) {
+			throw new ActionError(404, "Not Found Error", "Resource was not found.");
+		}
+		return resource;
+	}
+
+	private Object createTable(JsonObject request) throws ActionError {
+		String resourceId = string(request, "resource_id");
+		if (resourceId == null) {
+			if (!request.has("resource") || !request.get("resource").isJsonObject()) {
+				throw new ActionError(409, "Validation Error", "Missing value: resource_id");
+			}
+			resourceId = (String) saveResource(request.getAsJsonObject("resource"), null, false).get("id");
+		} else {
+			findResource(resourceId);
+		}
+		if (!this._tables.containsKey(resourceId)) {
+			this._tables.put(resourceId, new AtomicLong());
+		}
+		if (request.has("aliases") && request.get("aliases").isJsonArray()) {
+			JsonArray aliases = request.getAsJsonArray("aliases");
+			for (JsonElement alias : aliases) {
+				String holder = this._aliases.get(alias.getAsString());
+				if (holder != null && !holder.equals(resourceId)) {
+					throw new ActionError(409, "Validation Error", "alias " + alias.getAsString() + " already exists");
+				}
+			}
+			// Like CKAN, the aliases given replace all the table had, even when there are none
+			this._aliases.values().removeAll(Collections.singleton(resourceId));
+			for (JsonElement alias : aliases) {
+				this._aliases.put(alias.getAsString(), resourceId);
+			}
+		}
+		if (request.has("records") && request.get("records").isJsonArray()) {
+			addRecords(resourceId, request.getAsJsonArray("records").size());
+		}
+		JsonObject result = new JsonObject();
+		result.addProperty("resource_id", resourceId);
+		if (request.has("fields")) {
+			result.add("fields", request.get("fields"));
+		}
+		if (request.has("primary_key")) {
+			result.add("primary_key", request.get("primary_key"));
+		}
+		return result;
+	}
+
+	private Object upsert(JsonObject request) throws ActionError {
+		String resourceId = findTable(request);
+		JsonArray records = request.has("records") && request.get("records").isJsonArray()
+				? request.getAsJsonArray("records") : new JsonArray();
+		addRecords(resourceId, records.size());
+		// CKAN sends the records back, which the client has to skip over
+		JsonObject result = new JsonObject();
+		result.addProperty("resource_id", resourceId);
+		result.addProperty("method", request.has("method") ? request.get("method").getAsString() : "upsert");
+		result.add("records", records);
+		return result;
+	}
+
+	private Object delete(JsonObject request) throws ActionError {
+		String resourceId = findTable(request);
+		JsonObject result = new JsonObject();
+		result.addProperty("resource_id", resourceId);
+		if (request.has("filters")) {
+			// Which records matched is not known, only that some may have
+			result.add("filters", request.get("filters"));
+		} else {
+			dropTable(resourceId);
+		}
+		return result;
+	}
+
+	private Object search(JsonObject request) throws ActionError {
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		List<Object> records = new ArrayList<Object>();
+		if ("_table_metadata".equals(string(request, "resource_id"))) {
+			// Lists every table and alias, which callers look up by name
+			String name = null;
+			if (request.has("filters") && request.get("filters").isJsonObject()) {
+				name = string(request.getAsJsonObject("filters"), "name");
+			}
+			for (String table : this._tables.keySet()) {
+				if (name == null || name.equals(table)) {
+					Map<String, Object> record = new LinkedHashMap<String, Object>();
+					record.put("name", table);
+					record.put("alias_of", null);
+					records.add(record);
+				}
+			}
+			for (Map.Entry<String, String> alias : this._aliases.entrySet()) {
+				if (name == null || name.equals(alias.getKey())) {
+					Map<String, Object> record = new LinkedHashMap<String, Object>();
+					record.put("name", alias.getKey());
+					record.put("alias_of", alias.getValue());
+					records.add(record);
+				}
+			}
+			result.put("total", records.size());
+		} else {
+			result.put("resource_id", findTable(request));
+			result.put("total", this._tables.get(findTable(request)).get());
+		}
+		result.put("records", records);
+		return result;
+	}
+
+	private String findTable(JsonObject request) throws ActionError {
+		String id = string(request, "resource_id");
+		if (id != null && this._aliases.containsKey(id)) {
+			id = this._aliases.get(id);
+		}
+		if (id == null || !this._tables.containsKey(id)) {
+			throw new ActionError(404, "Not Found Error", "Resource \"" + id + "\" was not found.");
+		}
+		return id;
+	}
+
+	private void addRecords(String resourceId, int count) {
+		this._tables.get(resourceId).addAndGet(count);
+		this._records.addAndGet(count);
+	}
+
+	private void dropTable(String resourceId) {
+		this._tables.remove(resourceId);
+		this._aliases.values().removeAll(Collections.singleton(resourceId));
+	}
+
+	private Object uploadPart(Map<String, byte[]> form) throws UnsupportedEncodingException, ActionError {
+		String uploadId = new String(form.get("uploadId"), "UTF-8");
+		int partNumber = Integer.parseInt(new String(form.get("partNumber"), "UTF-8"));
+		for (Upload upload : this._uploads.values()) {
+			if (upload.id.equals(uploadId)) {
+				synchronized (upload) {
+					upload.parts.put(partNumber, form.get("upload"));
+				}
+				Map<String, Object> result = new LinkedHashMap<String, Object>();
+				result.put("partNumber", partNumber);
+				result.put("ETag", Integer.toHexString(form.get("upload").length));
+				return result;
+			}
+		}
+		throw new ActionError(404, "Not Found Error", "Upload not found");
+	}
+
+	private Failure nextFailure(String action) {
+		FailureRule rule = this._failures.get(action);
+		if (rule == null) {
+			rule = this._failures.get(ANY_ACTION);
+		}
+		if (rule == null) {
+			return null;
+		}
+		if (rule.rate > 0) {
+			synchronized (this._random) {
+				return this._random.nextDouble() < rule.rate ? rule.failure : null;
+			}
+		}
+		if (rule.passing.getAndDecrement() > 0) {
+			return null;
+		}
+		return rule.remaining.getAndDecrement() > 0 ? rule.failure : null;
+	}
+
+	private void fail(HttpExchange exchange, Failure failure) throws IOException {
+		switch (failure) {
+			case TOO_MANY_REQUESTS:
+				if (this._retryAfterSeconds > 0) {
+					exchange.getResponseHeaders().set("Retry-After", String.valueOf(this._retryAfterSeconds));
+				}
+				sendError(exchange, 429, "Too Many Requests", "Rate limit exceeded");
+				break;
+			case SERVER_ERROR:
+				sendError(exchange, 500, "Internal Server Error", "Internal Server Error");
+				break;
+			case VALIDATION_ERROR:
+				sendError(exchange, 409, "Validation Error", "Injected validation error");
+				break;
+			case HTML_ERROR_PAGE:
+				send(exchange, 502, "text/html", "<html><head><title>502 Bad Gateway</title></head>"
+						+ "<body><h1>502 Bad Gateway</h1><p>The proxy server received an invalid response.</p></body></html>");
+				break;
+			case DROPPED_CONNECTION:
+				// Promise a body and close the connection before sending it
+				exchange.sendResponseHeaders(200, 1000);
+				break;
+		}
+	}
+
+	private void sendError(HttpExchange exchange, int status, String type, String message) throws IOException {
+		Map<String, Object> error = new LinkedHashMap<String, Object>();
+		error.put("__type", type);
+		error.put("message", message);
+		Map<String, Object> response = new LinkedHashMap<String, Object>();
+		response.put("success", Boolean.FALSE);
+		response.put("error", error);
+		send(exchange, status, "application/json", this._gson.toJson(response));
+	}
+
+	private static void send(HttpExchange exchange, int status, String contentType, String text) throws IOException {
+		byte[] bytes = text.getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+
+	private static byte[] readBody(HttpExchange exchange) throws IOException {
+		InputStream in = exchange.getRequestBody();
+		if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+			in = new GZIPInputStream(in);
+		}
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1 << 16];
+		int read;
+		while ((read = in.read(buffer)) > 0) {
+			body.write(buffer, 0, read);
+		}
+		return body.toByteArray();
+	}
+
+	/**
+	 * Splits a multipart/form-data body into the contents of its fields.
+	 */
+	static Map<String, byte[]> parseMultipart(byte[] body, String boundary) throws UnsupportedEncodingException {
+		if (boundary.startsWith("\"")) {
+			boundary = boundary.substring(1, boundary.length() - 1);
+		}
+		// Every delimiter but the first follows a line break, so add one
+		byte[] data = new byte[body.length + 2];
+		data[0] = '\r';
+		data[1] = '\n';
+		System.arraycopy(body, 0, data, 2, body.length);
+		byte[] delimiter = ("\r\n--" + boundary).getBytes("ISO-8859-1");
+		byte[] blankLine = "\r\n\r\n".getBytes("ISO-8859-1");
+
+		Map<String, byte[]> fields = new LinkedHashMap<String, byte[]>();
+		int start = indexOf(data, delimiter, 0);
+		while (start >= 0) {
+			int headersStart = start + delimiter.length;
+			if (headersStart + 1 >= data.length || data[headersStart] == '-') {
+				// The closing delimiter
+				break;
+			}
+			int headersEnd = indexOf(data, blankLine, headersStart);
+			int end = headersEnd < 0 ? -1 : indexOf(data, delimiter, headersEnd);
+			if (end < 0) {
+				throw new IllegalArgumentException("Malformed multipart body");
+			}
+			String headers = new String(data, headersStart, headersEnd - headersStart, "ISO-8859-1");
+			int nameAt = headers.indexOf("name=\"") + 6;
+			String name = headers.substring(nameAt, headers.indexOf('"', nameAt));
+			byte[] value = new byte[end - headersEnd - blankLine.length];
+			System.arraycopy(data, headersEnd + blankLine.length, value, 0, value.length);
+			fields.put(name, value);
+			start = end;
+		}
+		return fields;
+	}
+
+	private static int indexOf(byte[] array, byte[] target, int from) {
+		search:
+		for (int i = from; i <= array.length - target.length; i++) {
+			for (int j = 0; j < target.length; j++) {
+				if (array[i + j] != target[j]) {
+					continue search;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	private void count(String action) {
+		AtomicLong count = this._requests.get(action);
+		if (count == null) {
+			synchronized (this._requests) {
+				count = this._requests.get(action);
+				if (count == null) {
+					count = new AtomicLong();
+					this._requests.put(action, count);
+				}
+			}
+		}
+		count.incrementAndGet();
+	}
+
+	private static String string(JsonObject object, String name) {
+		JsonElement value = object.get(name);
+		return value == null || value.isJsonNull() ? null : value.getAsString();
+	}
+
+	/**
+	 * An action that CKAN would answer with an error.
+	 */
+	private static final class ActionError extends Exception {
+		final int status;
+		final String type;
+		final String message;
+
+		ActionError(int status, String type, String message) {
+			super(message);
+			this.status = status;
+			this.type = type;
+			this.message = message;
+		}
+	}
+}
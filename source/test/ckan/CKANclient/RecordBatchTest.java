@@ -0,0 +1,108 @@
+package ckan.CKANclient;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.google.gson.stream.JsonWriter;
+
+public class RecordBatchTest {
+
+	private static RecordBatch batch(int capacity, RecordBatch.Type... types) {
+		String[] names = new String[types.length];
+		for (int c = 0; c < types.length; c++) {
+			names[c] = "c" + c;
+		}
+		return new RecordBatch(Arrays.asList(names), Arrays.asList(types), capacity);
+	}
+
+	private static String json(RecordBatch batch) throws IOException {
+		StringWriter out = new StringWriter();
+		JsonWriter writer = new JsonWriter(out);
+		batch.writeTo(writer);
+		writer.flush();
+		return out.toString();
+	}
+
+	@Test
+	public void writesValuesAsTheirColumnType() throws IOException {
+		RecordBatch batch = batch(4, RecordBatch.Type.TEXT, RecordBatch.Type.INTEGER,
+				RecordBatch.Type.FLOAT, RecordBatch.Type.NUMERIC, RecordBatch.Type.BOOLEAN);
+		batch.add(new String[] { "a \"b\"", " 42 ", "1.5", "10.250", "yes" });
+
+		assertEquals("[{\"c0\":\"a \\\"b\\\"\",\"c1\":42,\"c2\":1.5,\"c3\":10.250,\"c4\":true}]", json(batch));
+	}
+
+	@Test
+	public void sendsEmptyValuesAsNullExceptText() throws IOException {
+		RecordBatch batch = batch(4, RecordBatch.Type.TEXT, RecordBatch.Type.INTEGER, RecordBatch.Type.DATE);
+		batch.add(new String[] { "", " ", "" });
+		batch.add(new String[] { null, null, null });
+
+		assertEquals("[{\"c0\":\"\"},{}]", json(batch));
+	}
+
+	@Test
+	public void keepsValuesThatDoNotParseAsText() throws IOException {
+		RecordBatch batch = batch(4, RecordBatch.Type.INTEGER, RecordBatch.Type.FLOAT,
+				RecordBatch.Type.NUMERIC, RecordBatch.Type.BOOLEAN);
+		batch.add(new String[] { "12a", "NaN", "1,5", "maybe" });
+
+		assertEquals("[{\"c0\":\"12a\",\"c1\":\"NaN\",\"c2\":\"1,5\",\"c3\":\"maybe\"}]", json(batch));
+	}
+
+	@Test
+	public void writesFmeDatesAndTimesAsIso8601() throws IOException {
+		RecordBatch batch = batch(4, RecordBatch.Type.DATE, RecordBatch.Type.TIME,
+				RecordBatch.Type.TIMESTAMP, RecordBatch.Type.TIMESTAMP);
+		batch.add(new String[] { "20160131", "235959.5", "20160131235959+02", "20160131" });
+		batch.add(new String[] { "2016-01-31", "", "31/01/2016", "" });
+
+		assertEquals("[{\"c0\":\"2016-01-31\",\"c1\":\"23:59:59.5\",\"c2\":\"2016-01-31T23:59:59+02\",\"c3\":\"2016-01-31\"},"
+				+ "{\"c0\":\"2016-01-31\",\"c2\":\"31/01/2016\"}]", json(batch));
+	}
+
+	@Test
+	public void growsPastItsCapacity() throws IOException {
+		RecordBatch batch = batch(1, RecordBatch.Type.INTEGER, RecordBatch.Type.TEXT);
+		for (int i = 0; i < 40; i++) {
+			batch.add(new String[] { String.valueOf(i), "r" + i });
+		}
+
+		assertEquals(40, batch.size());
+		String json = json(batch);
+		assertTrue(json.startsWith("[{\"c0\":0,\"c1\":\"r0\"},"));
+		assertTrue(json.endsWith(",{\"c0\":39,\"c1\":\"r39\"}]"));
+	}
+
+	@Test
+	public void clearEmptiesTheBatchForReuse() throws IOException {
+		RecordBatch batch = batch(2, RecordBatch.Type.BOOLEAN, RecordBatch.Type.TEXT);
+		batch.add(new String[] { "true", "x" });
+		batch.clear();
+
+		assertTrue(batch.isEmpty());
+		assertEquals(0, batch.getEstimatedBytes());
+		assertEquals("[]", json(batch));
+
+		batch.add(new String[] { "no", null });
+		assertEquals("[{\"c0\":false}]", json(batch));
+	}
+
+	@Test
+	public void estimatesTheSizeOfTheJson() throws IOException {
+		RecordBatch batch = batch(16, RecordBatch.Type.TEXT, RecordBatch.Type.INTEGER);
+		for (int i = 0; i < 16; i++) {
+			batch.add(new String[] { "value " + i, String.valueOf(i * 1000) });
+		}
+
+		long actual = json(batch).length();
+		long estimated = batch.getEstimatedBytes();
+		assertTrue("estimated " + estimated + " for " + actual, estimated >= actual / 2 && estimated <= actual * 2);
+	}
+}
@@ -0,0 +1,119 @@
+package ckan.CKANclient;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.junit.Test;
+
+/**
+ * Tests that ReplayableEntity writes its body once and resends the bytes.
+ */
+public class ReplayableEntityTest {
+
+	// A body that counts how often it is written, and can fail part way
+	private static final class CountingEntity extends AbstractHttpEntity {
+		private final byte[] _bytes;
+		int _writes = 0;
+		boolean _failNext = false;
+
+		CountingEntity(int size) {
+			this._bytes = new byte[size];
+			for (int i = 0; i < size; i++) {
+				this._bytes[i] = (byte) i;
+			}
+		}
+
+		public boolean isRepeatable() {
+			return true;
+		}
+
+		public long getContentLength() {
+			return -1;
+		}
+
+		public InputStream getContent() {
+			throw new UnsupportedOperationException();
+		}
+
+		public boolean isStreaming() {
+			return false;
+		}
+
+		public void writeTo(OutputStream out) throws IOException {
+			this._writes++;
+			out.write(this._bytes, 0, this._bytes.length / 2);
+			if (this._failNext) {
+				this._failNext = false;
+				throw new IOException("Connection reset");
+			}
+			out.write(this._bytes, this._bytes.length / 2, this._bytes.length - this._bytes.length / 2);
+		}
+	}
+
+	private static byte[] write(ReplayableEntity entity) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		entity.writeTo(out);
+		return out.toByteArray();
+	}
+
+	@Test
+	public void resendsTheBytesOfTheFirstWrite() throws IOException {
+		CountingEntity body = new CountingEntity(1000);
+		ReplayableEntity entity = new ReplayableEntity(body, 4096);
+
+		byte[] first = write(entity);
+		assertArrayEquals(first, write(entity));
+		assertArrayEquals(first, write(entity));
+
+		assertEquals(1, body._writes);
+		assertEquals(1000, entity.getContentLength());
+	}
+
+	@Test
+	public void writesAgainAfterAFailedWrite() throws IOException {
+		CountingEntity body = new CountingEntity(1000);
+		body._failNext = true;
+		ReplayableEntity entity = new ReplayableEntity(body, 4096);
+
+		try {
+			write(entity);
+			fail("The first write should have failed");
+		} catch (IOException e) {
+			// The next attempt starts over
+		}
+		assertEquals(1000, write(entity).length);
+		write(entity);
+
+		assertEquals(2, body._writes);
+	}
+
+	@Test
+	public void writesABodyOverTheLimitEveryTime() throws IOException {
+		CountingEntity body = new CountingEntity(1000);
+		ReplayableEntity entity = new ReplayableEntity(body, 999);
+
+		assertEquals(1000, write(entity).length);
+		assertEquals(1000, write(entity).length);
+
+		assertEquals(2, body._writes);
+		assertEquals(-1, entity.getContentLength());
+	}
+
+	@Test
+	public void keepsAnyBodyWithoutALimit() throws IOException {
+		CountingEntity body = new CountingEntity(100000);
+		ReplayableEntity entity = new ReplayableEntity(body, -1);
+
+		write(entity);
+		assertEquals(100000, write(entity).length);
+
+		assertEquals(1, body._writes);
+	}
+}
@@ -0,0 +1,73 @@
+package ckan.CKANclient;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+
+import org.junit.Test;
+
+public class RetryPolicyTest {
+
+	private static Connection.Response status(int statusCode, String body) {
+		return new Connection.Response(statusCode, body, null);
+	}
+
+	private static Connection.Response error(IOException error) {
+		return new Connection.Response(0, "", error);
+	}
+
+	@Test
+	public void retriesTransientFailures() {
+		RetryPolicy policy = RetryPolicy.DEFAULT;
+
+		assertTrue(policy.isRetryable(error(new SocketTimeoutException())));
+		assertTrue(policy.isRetryable(status(429, "")));
+		assertTrue(policy.isRetryable(status(500, "{\"success\": false}")));
+		assertTrue(policy.isRetryable(status(503, "<html>Service Unavailable</html>")));
+	}
+
+	@Test
+	public void doesNotRetryFailuresThatWouldRepeat() {
+		RetryPolicy policy = RetryPolicy.DEFAULT;
+
+		assertFalse(policy.isRetryable(error(new MalformedURLException("no protocol"))));
+		assertFalse(policy.isRetryable(status(400, "")));
+		assertFalse(policy.isRetryable(status(403, "")));
+		assertFalse(policy.isRetryable(status(409, "{\"error\": {\"__type\": \"Validation Error\"}}")));
+		assertFalse(policy.isRetryable(status(500, "{\"error\": {\"__type\": \"Validation Error\"}}")));
+	}
+
+	@Test
+	public void backsOffWithinTheMaximumDelay() {
+		RetryPolicy policy = new RetryPolicy(10, 100, 1000, 60000);
+
+		for (int attempt = 1; attempt < 10; attempt++) {
+			long cap = Math.min(100L << (attempt - 1), 1000);
+			for (int i = 0; i < 100; i++) {
+				long delay = policy.getDelay(attempt, 0, -1);
+				assertTrue("attempt " + attempt + " waited " + delay, delay >= 0 && delay < cap);
+			}
+		}
+	}
+
+	@Test
+	public void waitsAtLeastAsLongAsTheServerAsks() {
+		RetryPolicy policy = new RetryPolicy(5, 100, 1000, 60000);
+
+		assertEquals(5000, policy.getDelay(1, 0, 5000));
+	}
+
+	@Test
+	public void givesUpAfterTheMaximumAttemptsOrElapsedTime() {
+		RetryPolicy policy = new RetryPolicy(3, 100, 1000, 10000);
+
+		assertEquals(-1, policy.getDelay(3, 0, -1));
+		assertEquals(-1, policy.getDelay(1, 9000, 5000));
+		assertEquals(-1, RetryPolicy.NONE.getDelay(1, 0, -1));
+		assertEquals(4, policy.withMaxAttempts(4).getMaxAttempts());
+	}
+}
@@ -0,0 +1,65 @@
+package ckan.ckanWriter;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class CsvEncoderTest
+{
+	private static String encode(String[][] records, boolean quote) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CsvEncoder encoder = new CsvEncoder(out, "\r\n");
+		for (String[] record : records)
+		{
+			for (String value : record)
+			{
+				encoder.writeField(value, quote);
+			}
+			encoder.endRecord();
+		}
+		encoder.close();
+		return out.toString("UTF-8");
+	}
+
+	@Test
+	public void writesPlainFieldsUnquoted() throws IOException
+	{
+		assertEquals("a,1,\r\nb,2,x\r\n", encode(new String[][] { { "a", "1", null }, { "b", "2", "x" } }, false));
+	}
+
+	@Test
+	public void quotesFieldsWithSpecialCharacters() throws IOException
+	{
+		assertEquals("\"a,b\",\"line\nbreak\",\"cr\rlf\",\"say \"\"hi\"\"\"\r\n",
+				encode(new String[][] { { "a,b", "line\nbreak", "cr\rlf", "say \"hi\"" } }, false));
+	}
+
+	@Test
+	public void quotesEveryFieldOfAQuotedColumn() throws IOException
+	{
+		assertEquals("\"a\",\"\",,\"\"\"\"\"\"\r\n", encode(new String[][] { { "a", "", null, "\"\"" } }, true));
+	}
+
+	@Test
+	public void writesUtf8() throws IOException
+	{
+		assertEquals("Café,Île-de-France,東京\r\n", encode(new String[][] { { "Café", "Île-de-France", "東京" } }, false));
+	}
+
+	@Test
+	public void writesRecordsLargerThanTheBuffer() throws IOException
+	{
+		StringBuilder value = new StringBuilder();
+		for (int i = 0; i < 100000; i++)
+		{
+			value.append(i % 10 == 0 ? '"' : 'x');
+		}
+		String quoted = "\"" + value.toString().replace("\"", "\"\"") + "\"";
+
+		assertEquals(quoted + "," + quoted + "\r\n", encode(new String[][] { { value.toString(), value.toString() } }, false));
+	}
+}
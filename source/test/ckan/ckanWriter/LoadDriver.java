@@ -0,0 +1,338 @@
+package ckan.ckanWriter;
+
+import java.io.PrintStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import ckan.CKANclient.CKANException;
+import ckan.CKANclient.Client;
+import ckan.CKANclient.Connection;
+import ckan.CKANclient.DataStore;
+import ckan.CKANclient.Dataset;
+import ckan.CKANclient.Field;
+import ckan.CKANclient.MockCkanServer;
+import ckan.CKANclient.RecordBatch;
+import ckan.CKANclient.Resource;
+
+/**
+ * Loads a stream of synthetic rows into a DataStore table through the same
+ * upload path as the writer (RecordBatch, BatchUploader and Client), to
+ * soak test it against MockCkanServer or a development CKAN.
+ *
+ * Rows are made at a fixed rate, or as fast as the uploads take them, for
+ * the time given. Every report interval the run metrics are printed along
+ * with the heap in use after a collection and the number of live threads,
+ * so that a leak or a growing tail latency stands out over a long run.
+ *
+ *   mvn -pl plugin test-compile exec:java -Dexec.classpathScope=test
+ *       -Dexec.mainClass=ckan.ckanWriter.LoadDriver -Dexec.args="minutes=60 rate=5000"
+ *
+ * Options, given as name=value:
+ *   url       The CKAN instance to load, or none to start a MockCkanServer
+ *   apikey    The API key for url
+ *   package   The package the table is created in (load-test)
+ *   minutes   How long to run (1)
+ *   rows      The most rows to load, 0 for no limit (0)
+ *   rate      Rows per second, 0 for as fast as possible (0)
+ *   columns   Columns besides the id, half text and half numbers (10)
+ *   batch     Rows per batch (1000)
+ *   threads   Upload threads (4)
+ *   gzip      Compression level of the uploads, 0 for none (0)
+ *   latency   Latency of the MockCkanServer in ms, as min-max (5-50)
+ *   failures  Share of MockCkanServer upserts answered with a 500 (0.01)
+ *   report    Seconds between reports (10)
+ */
+public class LoadDriver
+{
+	private static final Map<String, String> DEFAULTS = new LinkedHashMap<String, String>();
+	static
+	{
+		DEFAULTS.put("url", "");
+		DEFAULTS.put("apikey", "");
+		DEFAULTS.put("package", "load-test");
+		DEFAULTS.put("minutes", "1");
+		DEFAULTS.put("rows", "0");
+		DEFAULTS.put("rate", "0");
+		DEFAULTS.put("columns", "10");
+		DEFAULTS.put("batch", "1000");
+		DEFAULTS.put("threads", "4");
+		DEFAULTS.put("gzip", "0");
+		DEFAULTS.put("latency", "5-50");
+		DEFAULTS.put("failures", "0.01");
+		DEFAULTS.put("report", "10");
+	}
+
+	private final Map<String, String> options_;
+	private final PrintStream out_;
+
+	private MockCkanServer server_ = null;
+	private Connection connection_ = null;
+	private RunMetrics metrics_ = null;
+	private long startNanos_ = 0;
+
+	/**
+	 * Constructor
+	 * @param options The options, any not given take their default
+	 * @param out     Where the reports are printed
+	 */
+	public LoadDriver(Map<String, String> options, PrintStream out)
+	{
+		options_ = new LinkedHashMap<String, String>(DEFAULTS);
+		for (Map.Entry<String, String> option : options.entrySet())
+		{
+			if (!DEFAULTS.containsKey(option.getKey()))
+			{
+				throw new IllegalArgumentException("Unknown option " + option.getKey());
+			}
+			options_.put(option.getKey(), option.getValue());
+		}
+		out_ = out;
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		Map<String, String> options = new LinkedHashMap<String, String>();
+		for (String arg : args)
+		{
+			int equals = arg.indexOf('=');
+			if (equals < 0)
+			{
+				System.err.println("Options are given as name=value, see the LoadDriver class comment");
+				System.exit(2);
+			}
+			options.put(arg.substring(0, equals), arg.substring(equals + 1));
+		}
+		new LoadDriver(options, System.out).run();
+	}
+
+	/**
+	 * Runs the load until the time or row limit is reached.
+	 * @return The number of rows uploaded
+	 * @throws Exception If a batch could not be uploaded
+	 */
+	public long run() throws Exception
+	{
+		int columns = integer("columns");
+		int batchSize = integer("batch");
+		int threads = integer("threads");
+		long rowLimit = Long.parseLong(options_.get("rows"));
+		double rate = Double.parseDouble(options_.get("rate"));
+		long endNanos = (long) (Double.parseDouble(options_.get("minutes")) * 60e9);
+		long reportNanos = integer("report") * 1000000000L;
+
+		BatchUploader uploader = null;
+		boolean finished = false;
+		try
+		{
+			final Client client = connect(threads);
+			final String resourceId = createTable(client, columns);
+
+			List<String> names = new ArrayList<String>();
+			List<RecordBatch.Type> types = new ArrayList<RecordBatch.Type>();
+			names.add("id");
+			types.add(RecordBatch.Type.INTEGER);
+			for (int c = 1; c <= columns; c++)
+			{
+				names.add("c" + c);
+				types.add(c % 2 == 1 ? RecordBatch.Type.TEXT : RecordBatch.Type.FLOAT);
+			}
+
+			// Batches are reused like the writer does, one being filled
+			// while the others are queued or uploaded
+			final BlockingQueue<RecordBatch> freeBatches = new LinkedBlockingQueue<RecordBatch>();
+			for (int i = 0; i < threads * 2 + 1; i++)
+			{
+				freeBatches.add(new RecordBatch(names, types, batchSize));
+			}
+			metrics_ = new RunMetrics();
+			uploader = new BatchUploader(threads, threads);
+			BatchUploader.Sender sender = new BatchUploader.Sender()
+			{
+				public void send(RecordBatch batch) throws Exception
+				{
+					long start = System.nanoTime();
+					boolean succeeded = false;
+					try
+					{
+						DataStore ds = new DataStore();
+						ds.setRecordBatch(batch);
+						ds.setResource_id(resourceId);
+						ds.setMethod("insert");
+						client.upsertDataStore(ds, 5);
+						succeeded = true;
+					}
+					finally
+					{
+						metrics_.batchUploaded(batch.size(), batch.getEstimatedBytes(), System.nanoTime() - start, succeeded);
+					}
+				}
+
+				public void release(RecordBatch batch)
+				{
+					batch.clear();
+					freeBatches.add(batch);
+				}
+			};
+
+			String[] row = new String[columns + 1];
+			long rows = 0;
+			startNanos_ = System.nanoTime();
+			long nextReport = startNanos_ + reportNanos;
+			RecordBatch batch = null;
+			while ((rowLimit == 0 || rows < rowLimit) && System.nanoTime() - startNanos_ < endNanos)
+			{
+				if (batch == null)
+				{
+					long waitStart = System.nanoTime();
+					batch = freeBatches.take();
+					metrics_.queueWaited(System.nanoTime() - waitStart);
+				}
+
+				long writeStart = System.nanoTime();
+				row[0] = String.valueOf(rows);
+				for (int c = 1; c <= columns; c++)
+				{
+					row[c] = c % 2 == 1 ? "value " + rows + " of column " + c : String.valueOf(rows * 0.25 + c);
+				}
+				batch.add(row);
+				rows++;
+				metrics_.featureWritten(System.nanoTime() - writeStart);
+
+				if (batch.size() >= batchSize)
+				{
+					uploader.submit(sender, batch);
+					batch = null;
+				}
+				if (rate > 0)
+				{
+					long waitNanos = startNanos_ + (long) (rows * 1e9 / rate) - System.nanoTime();
+					if (waitNanos > 1000000)
+					{
+						Thread.sleep(waitNanos / 1000000);
+					}
+				}
+				if (System.nanoTime() >= nextReport)
+				{
+					report(rows, uploader.getRowCount());
+					nextReport += reportNanos;
+				}
+			}
+			if (batch != null && !batch.isEmpty())
+			{
+				uploader.submit(sender, batch);
+			}
+			uploader.finish();
+			finished = true;
+
+			report(rows, uploader.getRowCount());
+			return uploader.getRowCount();
+		}
+		finally
+		{
+			if (uploader != null && !finished)
+			{
+				uploader.abort();
+			}
+			if (connection_ != null)
+			{
+				connection_.close();
+			}
+			if (server_ != null)
+			{
+				server_.stop();
+			}
+		}
+	}
+
+	/**
+	 * Connects to the CKAN instance, starting a MockCkanServer if none was given.
+	 */
+	private Client connect(int threads) throws Exception
+	{
+		String url = options_.get("url");
+		if (url.length() == 0)
+		{
+			server_ = new MockCkanServer();
+			String[] latency = options_.get("latency").split("-");
+			server_.setLatency(Long.parseLong(latency[0]), Long.parseLong(latency[latency.length - 1]));
+			server_.failRandomly("datastore_upsert", Double.parseDouble(options_.get("failures")),
+					MockCkanServer.Failure.SERVER_ERROR);
+			url = server_.getUrl();
+		}
+		out_.println("Loading " + url);
+
+		URL parsed = new URL(url);
+		connection_ = new Connection(parsed.getProtocol() + "://" + parsed.getHost(),
+				parsed.getPort() == -1 ? parsed.getDefaultPort() : parsed.getPort(),
+				Math.max(threads, Connection.DEFAULT_MAX_PER_ROUTE), Connection.DEFAULT_MAX_TOTAL);
+		connection_.setBasePath(parsed.getPath());
+		connection_.setCompression(integer("gzip"));
+		return new Client(connection_, options_.get("apikey"));
+	}
+
+	/**
+	 * Creates the package, if it does not exist yet, and a new table in it.
+	 * @return The ID of the table's resource
+	 */
+	private String createTable(Client client, int columns) throws CKANException
+	{
+		String packageName = options_.get("package");
+		try
+		{
+			Dataset dataset = new Dataset();
+			dataset.setName(packageName);
+			dataset.setTitle(packageName);
+			client.createDataset(dataset);
+		}
+		catch (CKANException e)
+		{
+			// The package exists already
+		}
+
+		Resource resource = new Resource();
+		resource.setPackage_id(packageName);
+		resource.setName("load-" + System.currentTimeMillis());
+		List<Field> fields = new ArrayList<Field>(Arrays.asList(new Field("id", "int8")));
+		for (int c = 1; c <= columns; c++)
+		{
+			fields.add(new Field("c" + c, c % 2 == 1 ? "text" : "float8"));
+		}
+		DataStore ds = new DataStore();
+		ds.setResource(resource);
+		ds.setFields(fields);
+		ds.setForce("True");
+		return client.createDataStore(ds, 5).getResource_id();
+	}
+
+	private void report(long rows, long uploadedRows)
+	{
+		long elapsedMs = (System.nanoTime() - startNanos_) / 1000000;
+		Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		long heapMb = (runtime.totalMemory() - runtime.freeMemory()) >> 20;
+
+		out_.println(String.format("[%6d s] %d rows made, %d uploaded, %d MB heap after GC, %d threads",
+				elapsedMs / 1000, rows, uploadedRows, heapMb, Thread.activeCount()));
+		for (String line : metrics_.summarize(connection_))
+		{
+			out_.println("           " + line);
+		}
+		if (server_ != null)
+		{
+			out_.println("           Mock server: " + server_.getRequestCount(null) + " requests, "
+					+ server_.getInjectedFailureCount() + " failed on purpose, "
+					+ server_.getRecordCount() + " records, " + (server_.getBytesReceived() >> 20) + " MB received");
+		}
+	}
+
+	private int integer(String option)
+	{
+		return Integer.parseInt(options_.get(option));
+	}
+}
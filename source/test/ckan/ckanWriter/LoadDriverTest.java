@@ -0,0 +1,50 @@
+package ckan.ckanWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import ckan.CKANclient.MockCkanServer;
+
+/**
+ * Runs a short load through LoadDriver against a MockCkanServer that
+ * fails some of the uploads.
+ */
+public class LoadDriverTest
+{
+	@Test
+	public void uploadsEveryRowDespiteFailures() throws Exception
+	{
+		MockCkanServer server = new MockCkanServer();
+		try
+		{
+			server.setLatency(1, 10);
+			server.failRandomly("datastore_upsert", 0.05, MockCkanServer.Failure.TOO_MANY_REQUESTS);
+
+			Map<String, String> options = new LinkedHashMap<String, String>();
+			options.put("url", server.getUrl());
+			options.put("rows", "20500");
+			options.put("batch", "500");
+			options.put("threads", "4");
+			options.put("gzip", "1");
+			ByteArrayOutputStream report = new ByteArrayOutputStream();
+
+			long uploaded = new LoadDriver(options, new PrintStream(report, true, "UTF-8")).run();
+
+			assertEquals(20500, uploaded);
+			assertEquals(20500, server.getRecordCount());
+			assertEquals(41, server.getRequestCount("datastore_upsert") - server.getInjectedFailureCount());
+			assertTrue(report.toString("UTF-8"), report.toString("UTF-8").contains("Batches uploaded"));
+		}
+		finally
+		{
+			server.stop();
+		}
+	}
+}
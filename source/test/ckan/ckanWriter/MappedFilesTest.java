@@ -0,0 +1,47 @@
+package ckan.ckanWriter;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MappedFilesTest
+{
+	@Rule
+	public TemporaryFolder folder_ = new TemporaryFolder();
+
+	@Test
+	public void unmapsAFileSoItCanBeDeleted() throws IOException
+	{
+		File file = folder_.newFile("segment.log");
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		MappedByteBuffer buffer;
+		try
+		{
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 4096);
+		}
+		finally
+		{
+			raf.close();
+		}
+		buffer.putInt(42);
+
+		assertTrue(MappedFiles.unmap(buffer));
+		assertTrue(file.delete());
+		assertFalse(file.exists());
+	}
+
+	@Test
+	public void acceptsNoBuffer()
+	{
+		assertTrue(MappedFiles.unmap(null));
+	}
+}
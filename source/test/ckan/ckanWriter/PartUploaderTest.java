@@ -0,0 +1,185 @@
+package ckan.ckanWriter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ckan.CKANclient.CKANException;
+import ckan.CKANclient.Client;
+import ckan.CKANclient.Connection;
+import ckan.CKANclient.Dataset;
+import ckan.CKANclient.MockCkanServer;
+import ckan.CKANclient.Resource;
+import ckan.CKANclient.RetryPolicy;
+
+/**
+ * Tests PartUploader against MockCkanServer, including resuming an upload
+ * that failed halfway through.
+ */
+public class PartUploaderTest
+{
+	private static final int PART_SIZE = 1024;
+
+	@Rule
+	public TemporaryFolder folder_ = new TemporaryFolder();
+
+	private MockCkanServer server_;
+	private Connection connection_;
+	private Client client_;
+	private String resourceId_;
+	private File file_;
+	private byte[] content_;
+
+	@Before
+	public void start() throws IOException, CKANException
+	{
+		server_ = new MockCkanServer();
+		connection_ = new Connection("http://127.0.0.1", server_.getPort());
+		client_ = new Client(connection_, "key");
+		client_.setRetryPolicy(RetryPolicy.NONE);
+
+		Dataset dataset = new Dataset();
+		dataset.setName("roads");
+		client_.createDataset(dataset);
+		Resource resource = new Resource();
+		resource.setPackage_id("roads");
+		resource.setName("roads.csv");
+		resourceId_ = client_.urlCreateResource(resource).getId();
+
+		content_ = new byte[10 * PART_SIZE - 100];
+		new Random(1).nextBytes(content_);
+		file_ = folder_.newFile("roads.csv");
+		write(content_);
+	}
+
+	@After
+	public void stop()
+	{
+		connection_.close();
+		server_.stop();
+	}
+
+	private void write(byte[] content) throws IOException
+	{
+		FileOutputStream out = new FileOutputStream(file_);
+		out.write(content);
+		out.close();
+	}
+
+	private File sidecar()
+	{
+		return new File(file_.getPath() + ".parts");
+	}
+
+	/**
+	 * Uploads the file with the fifth part failing, leaving parts 1 to 4 sent.
+	 */
+	private void failHalfway() throws Exception
+	{
+		server_.failAfter("cloudstorage_upload_multipart", 4, 1, MockCkanServer.Failure.VALIDATION_ERROR);
+		try
+		{
+			new PartUploader(client_, file_, PART_SIZE, 1).upload(resourceId_);
+			fail("The upload should have failed");
+		}
+		catch (CKANException e)
+		{
+			server_.clearFailures();
+		}
+	}
+
+	@Test
+	public void uploadsTheFileInParts() throws Exception
+	{
+		PartUploader uploader = new PartUploader(client_, file_, PART_SIZE, 3);
+		uploader.upload(resourceId_);
+
+		assertEquals(10, uploader.getPartCount());
+		assertEquals(10, uploader.getSentPartCount());
+		assertEquals(content_.length, uploader.getSentBytes());
+		assertArrayEquals(content_, server_.getUploadedFile(resourceId_));
+		assertFalse(sidecar().exists());
+		assertFalse(server_.hasUpload(resourceId_));
+	}
+
+	@Test
+	public void resumesAFailedUpload() throws Exception
+	{
+		failHalfway();
+		assertTrue(sidecar().exists());
+		assertEquals(resourceId_, PartUploader.findResourceId(file_));
+
+		PartUploader uploader = new PartUploader(client_, file_, PART_SIZE, 2);
+		uploader.upload(resourceId_);
+
+		assertTrue(uploader.isResumed());
+		assertEquals(4, uploader.getSkippedPartCount());
+		assertEquals(6, uploader.getSentPartCount());
+		assertArrayEquals(content_, server_.getUploadedFile(resourceId_));
+		assertFalse(sidecar().exists());
+	}
+
+	@Test
+	public void sendsChangedPartsAgainWhenResuming() throws Exception
+	{
+		failHalfway();
+		RandomAccessFile file = new RandomAccessFile(file_, "rw");
+		file.seek(PART_SIZE + 10);
+		file.write(new byte[] { 1, 2, 3 });
+		file.close();
+		content_[PART_SIZE + 10] = 1;
+		content_[PART_SIZE + 11] = 2;
+		content_[PART_SIZE + 12] = 3;
+
+		PartUploader uploader = new PartUploader(client_, file_, PART_SIZE, 2);
+		uploader.upload(resourceId_);
+
+		assertEquals(3, uploader.getSkippedPartCount());
+		assertEquals(7, uploader.getSentPartCount());
+		assertArrayEquals(content_, server_.getUploadedFile(resourceId_));
+	}
+
+	@Test
+	public void startsOverWhenTheFileSizeChanged() throws Exception
+	{
+		failHalfway();
+		byte[] longer = new byte[content_.length + 500];
+		System.arraycopy(content_, 0, longer, 0, content_.length);
+		write(longer);
+
+		PartUploader uploader = new PartUploader(client_, file_, PART_SIZE, 2);
+		uploader.upload(resourceId_);
+
+		assertFalse(uploader.isResumed());
+		assertEquals(1, server_.getRequestCount("cloudstorage_abort_multipart"));
+		assertEquals(11, uploader.getSentPartCount());
+		assertArrayEquals(longer, server_.getUploadedFile(resourceId_));
+	}
+
+	@Test
+	public void abortForgetsTheUpload() throws Exception
+	{
+		failHalfway();
+		assertTrue(server_.hasUpload(resourceId_));
+
+		new PartUploader(client_, file_, PART_SIZE, 1).abort(resourceId_);
+
+		assertFalse(sidecar().exists());
+		assertFalse(server_.hasUpload(resourceId_));
+		assertEquals("", PartUploader.findResourceId(file_));
+	}
+}
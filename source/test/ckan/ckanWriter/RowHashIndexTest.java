@@ -0,0 +1,143 @@
+package ckan.ckanWriter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RowHashIndexTest
+{
+	@Rule
+	public TemporaryFolder folder_ = new TemporaryFolder();
+
+	private static final int[] KEY = { 0 };
+
+	private RowHashIndex open(File file, long schemaHash) throws IOException
+	{
+		return new RowHashIndex(file, schemaHash, KEY);
+	}
+
+	@Test
+	public void treatsEveryRowAsChangedWithoutAPreviousIndex() throws IOException
+	{
+		RowHashIndex index = open(new File(folder_.getRoot(), "t.idx"), 1);
+
+		assertTrue(index.update(new String[] { "1", "a" }));
+		assertTrue(index.update(new String[] { "2", "b" }));
+		assertEquals(0, index.getUnchangedCount());
+		assertTrue(index.getMissingKeys().isEmpty());
+		index.discard();
+	}
+
+	@Test
+	public void findsChangedNewAndMissingRowsOfThePreviousRun() throws IOException
+	{
+		File file = new File(folder_.getRoot(), "t.idx");
+		RowHashIndex first = open(file, 1);
+		for (int i = 0; i < 5000; i++)
+		{
+			first.update(new String[] { "key " + i, "value " + i });
+		}
+		first.commit();
+
+		RowHashIndex second = open(file, 1);
+		assertFalse(second.update(new String[] { "key 10", "value 10" }));
+		assertTrue(second.update(new String[] { "key 11", "changed" }));
+		assertTrue(second.update(new String[] { "key new", "value" }));
+		for (int i = 12; i < 5000; i++)
+		{
+			second.update(new String[] { "key " + i, "value " + i });
+		}
+
+		assertEquals(4989, second.getUnchangedCount());
+		List<String[]> missing = second.getMissingKeys();
+		assertEquals(10, missing.size());
+		for (String[] key : missing)
+		{
+			int i = Integer.parseInt(key[0].substring(4));
+			assertTrue(key[0], i < 10);
+		}
+		second.discard();
+	}
+
+	@Test
+	public void keepsThePreviousIndexWhenDiscarded() throws IOException
+	{
+		File file = new File(folder_.getRoot(), "t.idx");
+		RowHashIndex first = open(file, 1);
+		first.update(new String[] { "1", "a" });
+		first.commit();
+
+		RowHashIndex failed = open(file, 1);
+		failed.update(new String[] { "1", "b" });
+		failed.discard();
+
+		RowHashIndex third = open(file, 1);
+		assertFalse(third.update(new String[] { "1", "a" }));
+		third.discard();
+	}
+
+	@Test
+	public void deletesAnIndexMovedAsideByAnEarlierRun() throws IOException
+	{
+		File file = new File(folder_.getRoot(), "t.idx");
+		File old = new File(folder_.getRoot(), "t.idx.old");
+		assertTrue(old.createNewFile());
+
+		RowHashIndex index = open(file, 1);
+		index.update(new String[] { "1", "a" });
+		index.commit();
+		open(file, 1).commit();
+
+		assertFalse(old.exists());
+		assertTrue(file.isFile());
+	}
+
+	@Test
+	public void ignoresAnIndexWrittenForAnotherSchema() throws IOException
+	{
+		File file = new File(folder_.getRoot(), "t.idx");
+		RowHashIndex first = open(file, 1);
+		first.update(new String[] { "1", "a" });
+		first.commit();
+
+		RowHashIndex other = open(file, 2);
+		assertTrue(other.update(new String[] { "1", "a" }));
+		assertTrue(other.getMissingKeys().isEmpty());
+		other.discard();
+	}
+
+	@Test
+	public void splitsMultiColumnKeys() throws IOException
+	{
+		File file = new File(folder_.getRoot(), "t.idx");
+		RowHashIndex first = new RowHashIndex(file, 1, new int[] { 0, 2 });
+		first.update(new String[] { "a", "x", "b" });
+		first.update(new String[] { "c", "x", null });
+		first.commit();
+
+		RowHashIndex second = new RowHashIndex(file, 1, new int[] { 0, 2 });
+		List<String[]> missing = second.getMissingKeys();
+		assertEquals(2, missing.size());
+		assertArrayEquals(new String[] { "a", "b" }, missing.get(0)[0].equals("a") ? missing.get(0) : missing.get(1));
+		assertArrayEquals(new String[] { "c", "" }, missing.get(0)[0].equals("c") ? missing.get(0) : missing.get(1));
+		second.discard();
+	}
+
+	@Test
+	public void hashesNullApartFromEmptyAndValueBoundaries()
+	{
+		assertNotEquals(RowHashIndex.hash(new String[] { null }), RowHashIndex.hash(new String[] { "" }));
+		assertNotEquals(RowHashIndex.hash(new String[] { "ab", "c" }), RowHashIndex.hash(new String[] { "a", "bc" }));
+		assertEquals(RowHashIndex.hash(new String[] { "a", null }), RowHashIndex.hash(new String[] { "a", null }));
+	}
+}
@@ -0,0 +1,170 @@
+package ckan.ckanWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ckan.CKANclient.CKANException;
+import ckan.CKANclient.Client;
+import ckan.CKANclient.Connection;
+import ckan.CKANclient.DataStore;
+import ckan.CKANclient.Dataset;
+import ckan.CKANclient.Field;
+import ckan.CKANclient.MockCkanServer;
+import ckan.CKANclient.Resource;
+import ckan.CKANclient.RetryPolicy;
+
+/**
+ * Tests StagedReplace against MockCkanServer by running staged replaces
+ * the way the writer does: load a staging table, give it the alias, then
+ * delete the previous resource.
+ */
+public class StagedReplaceTest
+{
+	private MockCkanServer server_;
+	private Connection connection_;
+	private Client client_;
+
+	@Before
+	public void start() throws IOException, CKANException
+	{
+		server_ = new MockCkanServer();
+		connection_ = new Connection("http://127.0.0.1", server_.getPort());
+		client_ = new Client(connection_, "key");
+		client_.setRetryPolicy(RetryPolicy.NONE);
+
+		Dataset dataset = new Dataset();
+		dataset.setName("roads");
+		client_.createDataset(dataset);
+	}
+
+	@After
+	public void stop()
+	{
+		connection_.close();
+		server_.stop();
+	}
+
+	private String createTable() throws CKANException
+	{
+		Resource resource = new Resource();
+		resource.setPackage_id("roads");
+		resource.setName("roads");
+		DataStore ds = new DataStore();
+		ds.setResource(resource);
+		ds.setFields(Arrays.asList(new Field("id", "int")));
+		return client_.createDataStore(ds, 1).getResource_id();
+	}
+
+	/**
+	 * Runs a staged replace as FeatureWriter does.
+	 * @param resourceId The resource replaced while the alias does not exist
+	 * @return The staging resource, which the alias now reads from
+	 */
+	private String replace(String resourceId) throws CKANException
+	{
+		StagedReplace replace = new StagedReplace(client_, "roads-latest");
+		if (!replace.findPrevious())
+		{
+			replace.setPrevious(resourceId);
+		}
+		String stagingId = createTable();
+		if (replace.swap(stagingId))
+		{
+			replace.delete(replace.getPrevious());
+		}
+		return stagingId;
+	}
+
+	@Test
+	public void movesTheAliasOnEveryRun() throws CKANException
+	{
+		String firstId = createTable();
+
+		String secondId = replace(firstId);
+		assertEquals(secondId, server_.getAliasResourceId("roads-latest"));
+		assertNull(server_.getResource(firstId));
+
+		String thirdId = replace("");
+		assertEquals(thirdId, server_.getAliasResourceId("roads-latest"));
+		assertNull(server_.getResource(secondId));
+		assertNotNull(server_.getResource(thirdId));
+	}
+
+	@Test
+	public void findsThePreviousResourceThroughTheAlias() throws CKANException
+	{
+		String previousId = replace(createTable());
+
+		StagedReplace replace = new StagedReplace(client_, "roads-latest");
+		assertTrue(replace.findPrevious());
+		assertEquals(previousId, replace.getPrevious());
+		assertFalse(new StagedReplace(client_, "rivers-latest").findPrevious());
+	}
+
+	@Test
+	public void givesTheAliasBackIfItCannotBeMoved() throws CKANException
+	{
+		String previousId = replace(createTable());
+		StagedReplace replace = new StagedReplace(client_, "roads-latest");
+		replace.findPrevious();
+		String stagingId = createTable();
+		// Dropping the alias from the previous table works, creating it on the staging one does not
+		server_.failAfter("datastore_create", 1, 1, MockCkanServer.Failure.VALIDATION_ERROR);
+
+		try
+		{
+			replace.swap(stagingId);
+			fail("The alias should not have been created");
+		}
+		catch (CKANException e)
+		{
+			assertEquals(previousId, server_.getAliasResourceId("roads-latest"));
+			assertNotNull(server_.getResource(previousId));
+		}
+	}
+
+	@Test
+	public void reportsAnAliasThatCouldNotBeGivenBack() throws CKANException
+	{
+		String previousId = replace(createTable());
+		StagedReplace replace = new StagedReplace(client_, "roads-latest");
+		replace.findPrevious();
+		String stagingId = createTable();
+		server_.failAfter("datastore_create", 1, 2, MockCkanServer.Failure.VALIDATION_ERROR);
+
+		try
+		{
+			replace.swap(stagingId);
+			fail("The alias should not have been created");
+		}
+		catch (CKANException e)
+		{
+			String last = e.getErrorMessages().get(e.getErrorMessages().size() - 1);
+			assertTrue(e.toString(), last.contains("back to resource " + previousId));
+			assertNull(server_.getAliasResourceId("roads-latest"));
+		}
+	}
+
+	@Test
+	public void keepsTheResourceWithoutAnAlias() throws CKANException
+	{
+		String stagingId = createTable();
+		StagedReplace replace = new StagedReplace(client_, "");
+		assertFalse(replace.findPrevious());
+		replace.setPrevious(stagingId);
+
+		assertFalse(replace.swap(stagingId));
+		assertNotNull(server_.getResource(stagingId));
+	}
+}